@@ -0,0 +1,114 @@
+/******************************************************************************
+ * Copyright (C) 2012, 2013, 2014, 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of FeedHive
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.feeder;
+
+import android.app.Application;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.database.DatabaseErrorHandler;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.runner.AndroidJUnitRunner;
+
+import java.io.File;
+
+//
+// Instrumentation runner redirecting all databases of application to scratch files.
+//
+// Tests(ex. UpdateBenchmarkTest) add and delete channels through real DB/DBPolicy.
+// User's database SHOULD NOT be touched by them. So, application is created with context
+//   whose database named '<name>' is actually 'scratch_<name>'. Scratch databases left by
+//   previous run are removed before application is created.
+//
+// NOTE
+// Only databases are redirected. Preferences and files are still shared with the application.
+//
+public class ScratchDBTestRunner extends AndroidJUnitRunner {
+    private static final String SCRATCH_PREFIX = "scratch_";
+
+    private static class ScratchDBContext extends ContextWrapper {
+        ScratchDBContext(Context base) {
+            super(base);
+        }
+
+        private static String
+        scratch(String name) {
+            return name.startsWith(SCRATCH_PREFIX)? name: SCRATCH_PREFIX + name;
+        }
+
+        @Override
+        public File
+        getDatabasePath(String name) {
+            return super.getDatabasePath(scratch(name));
+        }
+
+        @Override
+        public SQLiteDatabase
+        openOrCreateDatabase(String name, int mode, SQLiteDatabase.CursorFactory factory) {
+            return super.openOrCreateDatabase(scratch(name), mode, factory);
+        }
+
+        @Override
+        public SQLiteDatabase
+        openOrCreateDatabase(String name, int mode, SQLiteDatabase.CursorFactory factory,
+                             DatabaseErrorHandler errorHandler) {
+            return super.openOrCreateDatabase(scratch(name), mode, factory, errorHandler);
+        }
+
+        @Override
+        public boolean
+        deleteDatabase(String name) {
+            return super.deleteDatabase(scratch(name));
+        }
+    }
+
+    private static void
+    deleteScratchDatabases(Context context) {
+        for (String name : context.databaseList()) {
+            if (name.startsWith(SCRATCH_PREFIX))
+                context.deleteDatabase(name);
+        }
+    }
+
+    @Override
+    public Application
+    newApplication(ClassLoader cl, String className, Context context)
+            throws InstantiationException, IllegalAccessException, ClassNotFoundException {
+        // This is called before Application#onCreate opens DB.
+        deleteScratchDatabases(context);
+        return super.newApplication(cl, className, new ScratchDBContext(context));
+    }
+}
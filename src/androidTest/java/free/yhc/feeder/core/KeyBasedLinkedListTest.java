@@ -0,0 +1,195 @@
+/******************************************************************************
+ * Copyright (C) 2012, 2013, 2014, 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of FeedHive
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.feeder.core;
+
+import android.support.annotation.NonNull;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+//
+// Behavior of KeyBasedLinkedList while it is iterated.
+// ListenerManager notifies listeners by iterating the list, and listeners may register or
+//   unregister listeners(or notify again) while they are notified.
+//
+@RunWith(AndroidJUnit4.class)
+public class KeyBasedLinkedListTest {
+    private static final Object KEY_A = new Object();
+    private static final Object KEY_B = new Object();
+
+    @NonNull
+    private static List<String>
+    toList(@NonNull Iterator<String> it) {
+        List<String> l = new ArrayList<>();
+        while (it.hasNext())
+            l.add(it.next());
+        return l;
+    }
+
+    /**
+     * a0(A), b0(B), a1(A), b1(B), a2(A)
+     */
+    @NonNull
+    private static KeyBasedLinkedList<String>
+    create() {
+        KeyBasedLinkedList<String> l = new KeyBasedLinkedList<>();
+        l.add(KEY_A, "a0");
+        l.add(KEY_B, "b0");
+        l.add(KEY_A, "a1");
+        l.add(KEY_B, "b1");
+        l.add(KEY_A, "a2");
+        return l;
+    }
+
+    @Test
+    public void
+    nestedIteration() {
+        KeyBasedLinkedList<String> l = create();
+        List<String> expected = Arrays.asList("a0", "b0", "a1", "b1", "a2");
+        List<String> visited = new ArrayList<>();
+        Iterator<String> outer = l.iterator();
+        while (outer.hasNext()) {
+            String s = outer.next();
+            // Inner iteration SHOULD NOT affect outer one.
+            assertEquals(expected, toList(l.iterator()));
+            visited.add(s);
+        }
+        assertEquals(expected, visited);
+    }
+
+    @Test
+    public void
+    removeByIterator() {
+        KeyBasedLinkedList<String> l = create();
+        Iterator<String> it = l.iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith("a"))
+                it.remove();
+        }
+        assertEquals(2, l.size());
+        assertEquals(Arrays.asList("b0", "b1"), toList(l.iterator()));
+        assertTrue(l.getByKey(KEY_A).isEmpty());
+        assertEquals(Arrays.asList("b1", "b0"), l.getByKey(KEY_B));
+    }
+
+    @Test
+    public void
+    removeByIteratorWhileNested() {
+        KeyBasedLinkedList<String> l = create();
+        Iterator<String> outer = l.iterator();
+        assertEquals("a0", outer.next());
+        // Inner iterator removes the element that outer one will return next.
+        Iterator<String> inner = l.iterator();
+        assertEquals("a0", inner.next());
+        assertEquals("b0", inner.next());
+        inner.remove();
+        assertEquals(Arrays.asList("a1", "b1", "a2"), toList(outer));
+        // Outer iterator removes the element that inner one will return next.
+        outer = l.iterator();
+        assertEquals("a0", outer.next());
+        assertEquals("a1", inner.next());
+        outer.remove();
+        assertEquals(Arrays.asList("a1", "b1", "a2"), toList(outer));
+        assertEquals(Arrays.asList("b1", "a2"), toList(inner));
+        assertEquals(Arrays.asList("a1", "b1", "a2"), toList(l.iterator()));
+    }
+
+    @Test
+    public void
+    removeByKeyAndItemWhileIterating() {
+        KeyBasedLinkedList<String> l = create();
+        Iterator<String> it = l.iterator();
+        assertEquals("a0", it.next());
+        // Current element and the next one are removed.
+        assertTrue(l.remove(KEY_A, "a0"));
+        assertTrue(l.remove(KEY_B, "b0"));
+        // Key doesn't match.
+        assertFalse(l.remove(KEY_B, "a1"));
+        // Already removed.
+        it.remove();
+        assertEquals(Arrays.asList("a1", "b1", "a2"), toList(it));
+        assertEquals(3, l.size());
+        assertEquals(Arrays.asList("a2", "a1"), l.getByKey(KEY_A));
+        assertEquals(Arrays.asList("b1"), l.getByKey(KEY_B));
+    }
+
+    @Test
+    public void
+    removeByKeyWhileIterating() {
+        KeyBasedLinkedList<String> l = create();
+        Iterator<String> it = l.iterator();
+        assertEquals("a0", it.next());
+        l.remove(KEY_B);
+        assertEquals(Arrays.asList("a1", "a2"), toList(it));
+        assertEquals(3, l.size());
+        assertTrue(l.getByKey(KEY_B).isEmpty());
+        assertEquals(Arrays.asList("a2", "a1", "a0"), l.getByKey(KEY_A));
+    }
+
+    @Test
+    public void
+    getByKeyAfterRemovals() {
+        KeyBasedLinkedList<String> l = create();
+        // Head, middle and tail of chain of the key.
+        assertTrue(l.remove(KEY_A, "a2"));
+        assertEquals(Arrays.asList("a1", "a0"), l.getByKey(KEY_A));
+        l.add(KEY_A, "a3");
+        assertTrue(l.remove(KEY_A, "a1"));
+        assertEquals(Arrays.asList("a3", "a0"), l.getByKey(KEY_A));
+        assertTrue(l.remove(KEY_A, "a0"));
+        assertEquals(Arrays.asList("a3"), l.getByKey(KEY_A));
+        assertTrue(l.remove(KEY_A, "a3"));
+        assertTrue(l.getByKey(KEY_A).isEmpty());
+        // Same item with different keys.
+        l.add(KEY_A, "b0");
+        assertTrue(l.remove(KEY_B, "b0"));
+        assertEquals(Arrays.asList("b0"), l.getByKey(KEY_A));
+        assertEquals(Arrays.asList("b1"), l.getByKey(KEY_B));
+        assertEquals(Arrays.asList("b1", "b0"), toList(l.iterator()));
+        assertEquals(2, l.size());
+    }
+}
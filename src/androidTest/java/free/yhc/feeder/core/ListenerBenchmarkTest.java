@@ -0,0 +1,198 @@
+/******************************************************************************
+ * Copyright (C) 2012, 2013, 2014, 2015, 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of FeedHive
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.feeder.core;
+
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+//
+// Micro benchmark of listener registration.
+// Thousands of listeners(ex. one per widget row or per task) are registered and unregistered
+//   by key in random order, like lifecycle events of activities/fragments/widgets.
+// KeyBasedLinkedList is compared with linear scan of java.util.LinkedList, that was used before.
+//
+// Numbers of listeners can be given by instrumentation argument 'nrListeners'.
+//   ex. -e nrListeners 100,10000
+//
+@RunWith(AndroidJUnit4.class)
+public class ListenerBenchmarkTest {
+    private static final String TAG = "ListenerBenchmarkTest";
+    private static final String DEFAULT_NR_LISTENERS = "100,1000,10000";
+    private static final int NR_ROUNDS = 5;
+
+    private static class Entry {
+        final Object key;
+        final Object item;
+
+        Entry(Object aKey, Object aItem) {
+            key = aKey;
+            item = aItem;
+        }
+    }
+
+    private static final ListenerManager.Listener sListener = new ListenerManager.Listener() {
+        @Override
+        public void
+        onNotify(Object user, ListenerManager.Type type, Object a0, Object a1) { }
+    };
+
+    @NonNull
+    private static Object[]
+    createKeys(int nr) {
+        Object[] keys = new Object[nr];
+        for (int i = 0; i < nr; i++)
+            keys[i] = new Object();
+        return keys;
+    }
+
+    private static void
+    shuffle(@NonNull Object[] a, @NonNull Random r) {
+        for (int i = a.length - 1; i > 0; i--) {
+            int j = r.nextInt(i + 1);
+            Object t = a[i];
+            a[i] = a[j];
+            a[j] = t;
+        }
+    }
+
+    /**
+     * @return ns per (add + remove) pair.
+     */
+    private static long
+    benchKeyBasedLinkedList(@NonNull Object[] keys, @NonNull Object[] removeOrder) {
+        KeyBasedLinkedList<Object> l = new KeyBasedLinkedList<>();
+        long start = System.nanoTime();
+        for (int round = 0; round < NR_ROUNDS; round++) {
+            for (Object k : keys)
+                l.add(k, sListener);
+            for (Object k : removeOrder)
+                l.remove(k);
+        }
+        assertEquals(0, l.size());
+        return (System.nanoTime() - start) / ((long)NR_ROUNDS * keys.length);
+    }
+
+    private static long
+    benchLinkedList(@NonNull Object[] keys, @NonNull Object[] removeOrder) {
+        LinkedList<Entry> l = new LinkedList<>();
+        long start = System.nanoTime();
+        for (int round = 0; round < NR_ROUNDS; round++) {
+            for (Object k : keys)
+                l.add(new Entry(k, sListener));
+            for (Object k : removeOrder) {
+                Iterator<Entry> itr = l.iterator();
+                while (itr.hasNext()) {
+                    if (itr.next().key == k)
+                        itr.remove();
+                }
+            }
+        }
+        return (System.nanoTime() - start) / ((long)NR_ROUNDS * keys.length);
+    }
+
+    private static long
+    benchListenerManager(@NonNull Object[] keys, @NonNull Object[] removeOrder) {
+        ListenerManager lm = new ListenerManager();
+        // Each registration has it's own listener instance, like real use cases.
+        ListenerManager.Listener[] listeners = new ListenerManager.Listener[keys.length];
+        for (int i = 0; i < listeners.length; i++)
+            listeners[i] = new ListenerManager.Listener() {
+                @Override
+                public void
+                onNotify(Object user, ListenerManager.Type type, Object a0, Object a1) { }
+            };
+        long start = System.nanoTime();
+        for (int round = 0; round < NR_ROUNDS; round++) {
+            for (int i = 0; i < keys.length; i++)
+                lm.registerListener(keys[i], listeners[i], null, 0);
+            for (Object k : removeOrder)
+                lm.unregisterListenerByKey(k);
+        }
+        return (System.nanoTime() - start) / ((long)NR_ROUNDS * keys.length);
+    }
+
+    @NonNull
+    private static int[]
+    getNrListeners() {
+        String v = InstrumentationRegistry.getArguments().getString("nrListeners");
+        String[] toks = (null == v? DEFAULT_NR_LISTENERS: v).split(",");
+        int[] nrs = new int[toks.length];
+        for (int i = 0; i < toks.length; i++)
+            nrs[i] = Integer.parseInt(toks[i].trim());
+        return nrs;
+    }
+
+    @NonNull
+    private static String
+    run(int nrListeners) {
+        Random r = new Random(0);
+        Object[] keys = createKeys(nrListeners);
+        Object[] removeOrder = keys.clone();
+        shuffle(removeOrder, r);
+        // Warming up JIT.
+        benchKeyBasedLinkedList(keys, removeOrder);
+        return String.format(Locale.US,
+                             "listeners %d : KeyBasedLinkedList %d ns, LinkedList %d ns, "
+                             + "ListenerManager %d ns (per add+remove)",
+                             nrListeners,
+                             benchKeyBasedLinkedList(keys, removeOrder),
+                             benchLinkedList(keys, removeOrder),
+                             benchListenerManager(keys, removeOrder));
+    }
+
+    /**
+     * It may take several seconds for large number of listeners.
+     */
+    @Test
+    public void
+    registerUnregister() {
+        for (int nr : getNrListeners())
+            Log.i(TAG, run(nr));
+    }
+}
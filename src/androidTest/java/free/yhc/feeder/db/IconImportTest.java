@@ -0,0 +1,104 @@
+/******************************************************************************
+ * Copyright (C) 2012, 2013, 2014, 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of FeedHive
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.feeder.db;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import free.yhc.feeder.core.FeederException;
+import free.yhc.feeder.core.IconStore;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+//
+// Channel icon after importing database.
+//
+// Icon files at IconStore are not part of database. So, imported database may have references
+//   to icons and their sources(iconsrc table), but not icon files.
+// Importing is 'copying database file + DBPolicy.reloadDatabase()'. See DBManagerActivity.
+//
+// Channels are added to DB of application, and deleted at the end.
+// ScratchDBTestRunner redirects it to scratch database. So, user's database is NOT touched.
+//
+@RunWith(AndroidJUnit4.class)
+public class IconImportTest {
+    private static final String URL_BASE = "http://127.0.0.1/icon_import_test/";
+
+    private static long
+    addChannelWithIcon(String name, String ref) throws FeederException {
+        DBPolicy dbp = DBPolicy.get();
+        String url = URL_BASE + name;
+        long cid = dbp.insertNewChannel(dbp.getDefaultCategoryId(), url);
+        dbp.updateChannel(cid, ColumnChannel.IMAGEBLOB, ref.getBytes());
+        // Icon is fetched just before, and it is known to be valid.
+        dbp.putIconSrc(cid, new DBPolicy.IconSrc(url, url, "\"icon\"", "", ref,
+                                                 System.currentTimeMillis()));
+        return cid;
+    }
+
+    @Test
+    public void
+    iconFileIsMissing() throws FeederException {
+        DBPolicy dbp = DBPolicy.get();
+        // Reference whose icon file doesn't exist - as if it's stored at other device.
+        String missingRef = IconStore.hash(("missing-" + System.nanoTime()).getBytes());
+        String storedRef = IconStore.get().put(("stored-" + System.nanoTime()).getBytes());
+        assertTrue(null != missingRef && null != storedRef);
+        assertFalse(IconStore.get().contains(missingRef));
+
+        long missing = addChannelWithIcon("missing", missingRef);
+        long stored = addChannelWithIcon("stored", storedRef);
+        try {
+            assertFalse(dbp.hasChannelImage(missing));
+            assertTrue(dbp.hasChannelImage(stored));
+
+            dbp.reloadDatabase();
+
+            // Validators of icons are dropped. So, icons are fetched again at next update.
+            assertNull(dbp.getIconSrc(missing));
+            assertNull(dbp.getIconSrc(stored));
+            assertFalse(dbp.hasChannelImage(missing));
+            assertTrue(dbp.hasChannelImage(stored));
+        } finally {
+            dbp.deleteChannel(new long[] { missing, stored });
+        }
+    }
+}
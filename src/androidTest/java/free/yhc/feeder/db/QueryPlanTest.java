@@ -0,0 +1,504 @@
+/******************************************************************************
+ * Copyright (C) 2012, 2013, 2014, 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of FeedHive
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.feeder.db;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import free.yhc.feeder.feed.Feed;
+
+import static org.junit.Assert.assertTrue;
+
+//
+// Query plan regression test of item queries.
+//
+// SQL is built by the same builders used by DB(DB.buildQueryItemXXXSQL etc).
+// Synthetic database (item table + archive table) is created at scratch file.
+// Real application database is NOT touched.
+//
+// For each query shape
+//   - 'EXPLAIN QUERY PLAN' is checked against expectation of the shape.
+//   - latency(median of several runs) is compared with baseline recorded by previous run
+//     on same device, and recorded as new baseline if test passes.
+//     Baseline file : <external files dir>/query_plan_baseline.txt
+//
+// Run with
+//   ./gradlew connectedAndroidTest \
+//       -Pandroid.testInstrumentationRunnerArguments.class=free.yhc.feeder.db.QueryPlanTest
+// Number of items can be changed with instrumentation argument 'nrItems'.
+//
+@RunWith(AndroidJUnit4.class)
+public class QueryPlanTest {
+    private static final String DB_NAME = "queryplan_test.db";
+    private static final String BASELINE_NAME = "query_plan_baseline.txt";
+
+    private static final int NR_CHANNELS = 300;
+    private static final int DEFAULT_NR_ITEMS = 500000;
+    // Percent of items at archive.
+    private static final int ARCHIVE_PERCENT = 10;
+    // Percent of favorite items.
+    private static final int FAV_PERCENT = 1;
+    private static final int NR_RUNS = 5;
+    // Latency is regression if it's larger than both of below.
+    private static final int LATENCY_REGRESSION_RATIO = 3;
+    private static final long LATENCY_REGRESSION_MIN_MS = 20;
+
+    private static final String[] WORDS = new String[] {
+            "android", "linux", "kernel", "market", "science", "election", "weather",
+            "football", "music", "movie", "travel", "health", "economy", "space" };
+
+    private static SQLiteDatabase sDb = null;
+    private static long sPubtimeMin;
+    private static long sPubtimeMax;
+
+    private enum Expect {
+        // Every access to item table SHOULD be lookup with index or primary key.
+        SEARCH,
+        // Item table may be scanned in order of index (ex. all items ordered by pubtime).
+        INDEX,
+        // Scanning whole table can't be avoided (ex. LIKE or bit-mask).
+        // Plan and latency are recorded only.
+        ANY,
+    }
+
+    private static class Shape {
+        final String name;
+        final String sql;
+        final Expect expect;
+
+        Shape(String aName, String aSql, Expect aExpect) {
+            name = aName;
+            sql = aSql;
+            expect = aExpect;
+        }
+    }
+
+    private static Context
+    getContext() {
+        return InstrumentationRegistry.getTargetContext();
+    }
+
+    private static int
+    getNrItems() {
+        String v = InstrumentationRegistry.getArguments().getString("nrItems");
+        return null == v? DEFAULT_NR_ITEMS: Integer.parseInt(v);
+    }
+
+    private static void
+    deleteDatabase(String name) {
+        getContext().deleteDatabase(name);
+    }
+
+    private static String
+    randomTitle(Random r) {
+        return WORDS[r.nextInt(WORDS.length)] + " " + WORDS[r.nextInt(WORDS.length)] + " " + r.nextInt();
+    }
+
+    /**
+     * Items of archive are older than ones of item table. Same with real archiving.
+     */
+    private static void
+    populate(String table, int nrItems, long pubtimeFrom, long pubtimeTo, Random r) {
+        ColumnItem[] cols = ColumnItem.values();
+        StringBuilder sbldr = new StringBuilder("INSERT INTO " + table + " (");
+        int nrCols = 0;
+        for (ColumnItem col : cols) {
+            if (ColumnItem.ID == col)
+                continue;
+            sbldr.append(nrCols > 0? ", ": "").append(col.getName());
+            nrCols++;
+        }
+        sbldr.append(") VALUES (");
+        for (int i = 0; i < nrCols; i++)
+            sbldr.append(i > 0? ", ?": "?");
+        sbldr.append(");");
+
+        SQLiteStatement stmt = sDb.compileStatement(sbldr.toString());
+        long step = (pubtimeTo - pubtimeFrom) / nrItems;
+        sDb.beginTransaction();
+        try {
+            for (int i = 0; i < nrItems; i++) {
+                long state = Feed.Item.FSTAT_DEFAULT;
+                if (r.nextInt(100) < FAV_PERCENT)
+                    state |= Feed.Item.FSTAT_FAV_ON;
+                if (r.nextBoolean())
+                    state |= Feed.Item.FSTAT_OPEN_OPENED;
+                int bi = 1;
+                for (ColumnItem col : cols) {
+                    switch (col) {
+                    case ID:
+                        continue;
+                    case STATE:
+                        stmt.bindLong(bi, state);
+                        break;
+                    case PUBTIME:
+                        stmt.bindLong(bi, pubtimeFrom + step * i);
+                        break;
+                    case CHANNELID:
+                        stmt.bindLong(bi, r.nextInt(NR_CHANNELS) + 1);
+                        break;
+                    case TITLE:
+                    case DESCRIPTION:
+                        stmt.bindString(bi, randomTitle(r));
+                        break;
+                    default:
+                        stmt.bindString(bi, "");
+                    }
+                    bi++;
+                }
+                stmt.executeInsert();
+            }
+            sDb.setTransactionSuccessful();
+        } finally {
+            sDb.endTransaction();
+            stmt.close();
+        }
+    }
+
+    @BeforeClass
+    public static void
+    setUp() {
+        deleteDatabase(DB_NAME);
+        sDb = SQLiteDatabase.openOrCreateDatabase(getContext().getDatabasePath(DB_NAME), null);
+        // Same schema and indexes with application database.
+        DB.createItemTable(sDb, DB.TABLE_ITEM);
+        DB.createItemTable(sDb, DB.TABLE_ITEM_ARCHIVE);
+
+        int nrItems = getNrItems();
+        int nrArchived = nrItems * ARCHIVE_PERCENT / 100;
+        Random r = new Random(0);
+        sPubtimeMax = System.currentTimeMillis();
+        sPubtimeMin = sPubtimeMax - 5L * 365 * 24 * 60 * 60 * 1000;
+        long archiveBefore = sPubtimeMin + (sPubtimeMax - sPubtimeMin) * ARCHIVE_PERCENT / 100;
+        populate(DB.TABLE_ITEM_ARCHIVE, nrArchived, sPubtimeMin, archiveBefore, r);
+        populate(DB.TABLE_ITEM, nrItems - nrArchived, archiveBefore, sPubtimeMax, r);
+        // NOTE
+        // 'ANALYZE' is NOT run. Application doesn't run it either.
+    }
+
+    @AfterClass
+    public static void
+    tearDown() {
+        if (null != sDb)
+            sDb.close();
+        deleteDatabase(DB_NAME);
+    }
+
+    private static Shape[]
+    buildShapes() {
+        final ColumnItem[] proj = new ColumnItem[] {
+                ColumnItem.ID,
+                ColumnItem.CHANNELID,
+                ColumnItem.TITLE,
+                ColumnItem.DESCRIPTION,
+                ColumnItem.ENCLOSURE_LENGTH,
+                ColumnItem.ENCLOSURE_URL,
+                ColumnItem.ENCLOSURE_TYPE,
+                ColumnItem.PUBDATE,
+                ColumnItem.LINK };
+        final ColumnItem[] searchFields = new ColumnItem[] { ColumnItem.TITLE, ColumnItem.DESCRIPTION };
+        final String[] search = new String[] { "android kernel", "android kernel" };
+        final String[] noSearch = null;
+        final ColumnItem[] cidCol = new ColumnItem[] { ColumnItem.CHANNELID };
+        final Object[] cid = new Object[] { 7L };
+        final ColumnItem[] cidsCols = new ColumnItem[10];
+        final Object[] cids = new Object[cidsCols.length];
+        for (int i = 0; i < cids.length; i++) {
+            cidsCols[i] = ColumnItem.CHANNELID;
+            cids[i] = (long)(i * 3 + 1);
+        }
+        long from = sPubtimeMax - 30L * 24 * 60 * 60 * 1000;
+        long oldTime = sPubtimeMin + (sPubtimeMax - sPubtimeMin) / 2;
+        // Item states not written to DB yet. See DBPolicy#updateItemAsync_state.
+        final HashMap<Long, Long> pending = new HashMap<>();
+        for (long id = 1; id <= 64; id++)
+            pending.put(id * 97, Feed.Item.FSTAT_OPEN_OPENED | Feed.Item.FSTAT_FAV_ON);
+        final ColumnItem[] projWithState = Arrays.copyOf(proj, proj.length + 1);
+        projWithState[proj.length] = ColumnItem.STATE;
+
+        return new Shape[] {
+                // ItemListActivity : OpModeChannel.
+                new Shape("channel items",
+                          DB.buildQueryItemORSQL(proj, cidCol, cid, searchFields, noSearch,
+                                                 -1, -1, 0, true, false, null),
+                          Expect.SEARCH),
+                // Merging pending states SHOULD NOT change plan.
+                new Shape("channel items with pending states",
+                          DB.buildQueryItemORSQL(projWithState, cidCol, cid, searchFields, noSearch,
+                                                 -1, -1, 0, true, false, pending),
+                          Expect.SEARCH),
+                // ItemListActivity : OpModeCategory.
+                new Shape("category items",
+                          DB.buildQueryItemORSQL(proj, cidsCols, cids, searchFields, noSearch,
+                                                 -1, -1, 0, true, false, null),
+                          Expect.SEARCH),
+                new Shape("channel items in pubtime range",
+                          DB.buildQueryItemORSQL(proj, cidCol, cid, searchFields, noSearch,
+                                                 from, sPubtimeMax, 0, true, false, null),
+                          Expect.SEARCH),
+                // Search spans archive too.
+                new Shape("channel search with archive",
+                          DB.buildQueryItemORSQL(proj, cidCol, cid, searchFields, search,
+                                                 -1, -1, 0, true, true, null),
+                          Expect.SEARCH),
+                new Shape("category search with archive in pubtime range",
+                          DB.buildQueryItemORSQL(proj, cidsCols, cids, searchFields, search,
+                                                 from, sPubtimeMax, 0, true, true, null),
+                          Expect.SEARCH),
+                // ItemListActivity : OpModeAll.
+                new Shape("all items",
+                          DB.buildQueryItemORSQL(proj, null, null, searchFields, noSearch,
+                                                 -1, -1, 0, true, false, null),
+                          Expect.INDEX),
+                new Shape("all items in pubtime range with archive",
+                          DB.buildQueryItemORSQL(proj, null, null, searchFields, noSearch,
+                                                 from, sPubtimeMax, 0, true, true, null),
+                          Expect.SEARCH),
+                new Shape("all items search with archive",
+                          DB.buildQueryItemORSQL(proj, null, null, searchFields, search,
+                                                 -1, -1, 0, true, true, null),
+                          Expect.ANY),
+                // DBPolicy.getNewItems : dedupe.
+                new Shape("dedupe items of channel",
+                          DB.buildQueryItemANDSQL(new ColumnItem[] { ColumnItem.ID,
+                                                                     ColumnItem.TITLE,
+                                                                     ColumnItem.LINK },
+                                                  cidCol, cid, 0, false),
+                          Expect.SEARCH),
+                new Shape("item by id with archive",
+                          DB.buildQueryItemANDSQL(new ColumnItem[] { ColumnItem.STATE },
+                                                  new ColumnItem[] { ColumnItem.ID },
+                                                  new Object[] { 12345L }, 0, true),
+                          Expect.SEARCH),
+                new Shape("item count of channel",
+                          DB.buildQueryItemCountSQL(ColumnItem.ID, ColumnItem.CHANNELID, 7),
+                          Expect.SEARCH),
+                new Shape("max item id of channel",
+                          DB.buildQueryItemIdsSQL(7, 1),
+                          Expect.SEARCH),
+                new Shape("min pubtime of channels",
+                          DB.buildQueryItemMinMaxSQL(new long[] { 1, 4, 7 },
+                                                     ColumnItem.PUBTIME, false),
+                          Expect.SEARCH),
+                new Shape("delete old items of channel",
+                          "DELETE FROM " + DB.TABLE_ITEM
+                          + " WHERE " + DB.buildDeleteOldItemsWhere(7, oldTime),
+                          Expect.SEARCH),
+                new Shape("delete old items",
+                          "DELETE FROM " + DB.TABLE_ITEM
+                          + " WHERE " + DB.buildDeleteOldItemsWhere(-1, oldTime),
+                          Expect.SEARCH),
+                // ItemListActivity : OpModeFavorite.
+                // Bit-mask can't be looked up with index.
+                new Shape("favorite items with archive",
+                          DB.buildQueryItemMaskSQL(proj, ColumnItem.STATE,
+                                                   Feed.Item.MSTAT_FAV, Feed.Item.FSTAT_FAV_ON,
+                                                   searchFields, noSearch,
+                                                   -1, -1, true, true, null),
+                          Expect.ANY),
+                new Shape("favorite search with archive in pubtime range",
+                          DB.buildQueryItemMaskSQL(proj, ColumnItem.STATE,
+                                                   Feed.Item.MSTAT_FAV, Feed.Item.FSTAT_FAV_ON,
+                                                   searchFields, search,
+                                                   from, sPubtimeMax, true, true, null),
+                          Expect.SEARCH),
+                new Shape("favorite items with archive and pending states",
+                          DB.buildQueryItemMaskSQL(projWithState, ColumnItem.STATE,
+                                                   Feed.Item.MSTAT_FAV, Feed.Item.FSTAT_FAV_ON,
+                                                   searchFields, noSearch,
+                                                   -1, -1, true, true, pending),
+                          Expect.ANY),
+                new Shape("min pubtime of favorite items with archive",
+                          DB.buildQueryItemMinMaxSQL(ColumnItem.STATE,
+                                                     Feed.Item.MSTAT_FAV, Feed.Item.FSTAT_FAV_ON,
+                                                     ColumnItem.PUBTIME, false, true, null),
+                          Expect.ANY),
+        };
+    }
+
+    private static ArrayList<String>
+    explain(String sql) {
+        ArrayList<String> plan = new ArrayList<>();
+        Cursor c = sDb.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        if (c.moveToFirst()) {
+            // Last column is 'detail'. (ex. "SCAN TABLE item")
+            final int detailI = c.getColumnCount() - 1;
+            do {
+                plan.add(c.getString(detailI));
+            } while (c.moveToNext());
+        }
+        c.close();
+        return plan;
+    }
+
+    /**
+     * @return error message. 'null' if plan is expected one.
+     */
+    private static String
+    checkPlan(Shape shape, ArrayList<String> plan) {
+        for (String detail : plan) {
+            // "SCAN TABLE item ..." (or "SCAN item ..." at newer SQLite).
+            if (!detail.matches("^SCAN (TABLE )?(" + DB.TABLE_ITEM + "|" + DB.TABLE_ITEM_ARCHIVE
+                                + ")\\b.*"))
+                continue;
+            switch (shape.expect) {
+            case SEARCH:
+                return "Item table is scanned : " + detail;
+            case INDEX:
+                if (!detail.contains(" USING "))
+                    return "Item table is scanned without index : " + detail;
+                break;
+            default:
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Median of running query and reading all rows.
+     * DELETE is measured as SELECT with same where clause. DB is not changed.
+     */
+    private static long
+    measure(Shape shape) {
+        String sql = shape.sql;
+        if (sql.startsWith("DELETE FROM "))
+            sql = "SELECT " + ColumnItem.ID.getName() + " FROM " + sql.substring("DELETE FROM ".length());
+        long[] times = new long[NR_RUNS];
+        for (int i = 0; i < NR_RUNS; i++) {
+            long startTime = System.nanoTime();
+            Cursor c = sDb.rawQuery(sql, null);
+            //noinspection StatementWithEmptyBody
+            while (c.moveToNext());
+            c.close();
+            times[i] = (System.nanoTime() - startTime) / 1000000;
+        }
+        Arrays.sort(times);
+        return times[NR_RUNS / 2];
+    }
+
+    private static File
+    getBaselineFile() {
+        return new File(getContext().getExternalFilesDir(null), BASELINE_NAME);
+    }
+
+    /**
+     * @return Key : shape name, Value : latency(ms)
+     */
+    private static HashMap<String, Long>
+    readBaseline() throws IOException {
+        HashMap<String, Long> map = new HashMap<>();
+        File f = getBaselineFile();
+        if (!f.exists())
+            return map;
+        BufferedReader br = new BufferedReader(new FileReader(f));
+        try {
+            String line;
+            while (null != (line = br.readLine())) {
+                String[] toks = line.split("\t");
+                if (toks.length >= 2)
+                    map.put(toks[0], Long.parseLong(toks[1]));
+            }
+        } finally {
+            br.close();
+        }
+        return map;
+    }
+
+    private static void
+    writeBaseline(Shape[] shapes, long[] latencies, ArrayList<ArrayList<String>> plans)
+            throws IOException {
+        FileWriter fw = new FileWriter(getBaselineFile());
+        try {
+            // Line : <name> \t <latency ms> \t <plan>
+            for (int i = 0; i < shapes.length; i++)
+                fw.write(shapes[i].name + "\t" + latencies[i] + "\t" + plans.get(i) + "\n");
+        } finally {
+            fw.close();
+        }
+    }
+
+    @Test
+    public void
+    queryPlans() throws IOException {
+        Shape[] shapes = buildShapes();
+        HashMap<String, Long> baseline = readBaseline();
+        long[] latencies = new long[shapes.length];
+        ArrayList<ArrayList<String>> plans = new ArrayList<>();
+        StringBuilder errors = new StringBuilder();
+        for (int i = 0; i < shapes.length; i++) {
+            Shape shape = shapes[i];
+            ArrayList<String> plan = explain(shape.sql);
+            plans.add(plan);
+            String err = checkPlan(shape, plan);
+            if (null != err)
+                errors.append("[").append(shape.name).append("] ").append(err)
+                      .append("\n    SQL : ").append(shape.sql).append("\n");
+
+            latencies[i] = measure(shape);
+            Long base = baseline.get(shape.name);
+            if (null != base
+                && latencies[i] > base * LATENCY_REGRESSION_RATIO
+                && latencies[i] - base > LATENCY_REGRESSION_MIN_MS)
+                errors.append("[").append(shape.name).append("] ")
+                      .append("Latency regression : ").append(base).append(" ms -> ")
+                      .append(latencies[i]).append(" ms\n");
+        }
+        // Baseline is NOT updated by failed run.
+        assertTrue(errors.toString(), 0 == errors.length());
+        writeBaseline(shapes, latencies, plans);
+    }
+}
@@ -0,0 +1,303 @@
+/******************************************************************************
+ * Copyright (C) 2012, 2013, 2014, 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of FeedHive
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.feeder.task;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import free.yhc.baselib.Logger;
+
+//
+// In-process HTTP server serving one entity at loopback interface.
+// Supports "Range", "If-Range" and validators. So, resuming and segmented download can be
+//   tested without network.
+// One request per connection.
+//
+class ContentServer {
+    private static final boolean DBG = Logger.DBG_DEFAULT;
+    private static final Logger P = Logger.create(ContentServer.class, Logger.LOGLV_DEFAULT);
+
+    private static final String PATH = "/content";
+    private static final int WRITE_CHUNK = 4 * 1024;
+
+    static class Request {
+        final String range;   // "Range" header. 'null' if not requested.
+        final String ifRange; // "If-Range" header. 'null' if not requested.
+        volatile int status;
+
+        Request(String aRange, String aIfRange) {
+            range = aRange;
+            ifRange = aIfRange;
+        }
+    }
+
+    private final ServerSocket mSocket;
+    private final ExecutorService mWorkers = Executors.newCachedThreadPool();
+    private final AtomicInteger mNrConnections = new AtomicInteger(0);
+    // Guarded by 'this'.
+    private final LinkedList<Request> mRequests = new LinkedList<>();
+    private byte[] mEntity = new byte[0];
+    private int mVersion = 0;
+    // Body of next response is cut after this bytes. '< 0' not to cut.
+    private long mDropAfter = -1;
+    // Bytes per second of each connection. '0' for unlimited.
+    private volatile long mThrottle = 0;
+
+    ContentServer() throws IOException {
+        mSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    }
+
+    String
+    url() {
+        return "http://127.0.0.1:" + mSocket.getLocalPort() + PATH;
+    }
+
+    /**
+     * Replace entity. Validator(ETag) is changed too.
+     */
+    synchronized void
+    setEntity(@NonNull byte[] data) {
+        mEntity = data;
+        mVersion++;
+    }
+
+    synchronized byte[]
+    getEntity() {
+        return mEntity;
+    }
+
+    synchronized String
+    getEtag() {
+        return "\"v" + mVersion + "\"";
+    }
+
+    synchronized void
+    dropNextAfter(long bytes) {
+        mDropAfter = bytes;
+    }
+
+    void
+    setThrottle(long bytesPerSec) {
+        mThrottle = bytesPerSec;
+    }
+
+    @NonNull
+    synchronized LinkedList<Request>
+    getRequests() {
+        return new LinkedList<>(mRequests);
+    }
+
+    synchronized void
+    clearRequests() {
+        mRequests.clear();
+    }
+
+    int
+    getNrConnections() {
+        return mNrConnections.get();
+    }
+
+    void
+    start() {
+        Thread t = new Thread() {
+            @Override
+            public void
+            run() {
+                while (!mSocket.isClosed()) {
+                    try {
+                        final Socket s = mSocket.accept();
+                        mNrConnections.incrementAndGet();
+                        mWorkers.execute(new Runnable() {
+                            @Override
+                            public void
+                            run() {
+                                serve(s);
+                            }
+                        });
+                    } catch (IOException ignored) { }
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    void
+    close() {
+        try {
+            mSocket.close();
+        } catch (IOException ignored) { }
+        mWorkers.shutdownNow();
+    }
+
+    /**
+     * @return { start, end(inclusive) }. 'null' if header is not single byte range.
+     */
+    private static long[]
+    parseRange(String range, long size) {
+        if (null == range || !range.startsWith("bytes="))
+            return null;
+        String spec = range.substring("bytes=".length()).trim();
+        int i = spec.indexOf('-');
+        if (i <= 0 || spec.indexOf(',') >= 0)
+            return null;
+        try {
+            long start = Long.parseLong(spec.substring(0, i).trim());
+            String e = spec.substring(i + 1).trim();
+            long end = e.isEmpty()? size - 1: Math.min(Long.parseLong(e), size - 1);
+            return new long[] { start, end };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void
+    write(@NonNull OutputStream os, @NonNull byte[] data, int off, int len, long dropAfter)
+            throws IOException, InterruptedException {
+        long throttle = mThrottle;
+        long startTime = System.currentTimeMillis();
+        int sent = 0;
+        while (sent < len) {
+            if (dropAfter >= 0 && sent >= dropAfter)
+                return; // Connection is closed by caller.
+            int n = Math.min(WRITE_CHUNK, len - sent);
+            if (dropAfter >= 0)
+                n = (int)Math.min(n, dropAfter - sent);
+            os.write(data, off + sent, n);
+            sent += n;
+            if (throttle > 0) {
+                long due = startTime + sent * 1000L / throttle;
+                long wait = due - System.currentTimeMillis();
+                if (wait > 0)
+                    Thread.sleep(wait);
+            }
+        }
+    }
+
+    private void
+    serve(@NonNull Socket s) {
+        try {
+            BufferedReader br = new BufferedReader(new InputStreamReader(s.getInputStream(), "UTF-8"));
+            String reqLine = br.readLine();
+            String range = null;
+            String ifRange = null;
+            String line;
+            while (null != (line = br.readLine()) && !line.isEmpty()) {
+                int i = line.indexOf(':');
+                if (i < 0)
+                    continue;
+                String name = line.substring(0, i).trim().toLowerCase(Locale.US);
+                String value = line.substring(i + 1).trim();
+                if ("range".equals(name))
+                    range = value;
+                else if ("if-range".equals(name))
+                    ifRange = value;
+            }
+
+            Request req = new Request(range, ifRange);
+            byte[] entity;
+            String etag;
+            long dropAfter;
+            synchronized (this) {
+                entity = mEntity;
+                etag = getEtag();
+                dropAfter = mDropAfter;
+                mDropAfter = -1;
+                mRequests.add(req);
+            }
+
+            String header;
+            int off = 0;
+            int len = 0;
+            if (null == reqLine || !reqLine.startsWith("GET " + PATH + " ")) {
+                req.status = 404;
+                header = "HTTP/1.1 404 Not Found\r\n"
+                         + "Content-Length: 0\r\n";
+            } else {
+                long[] r = parseRange(range, entity.length);
+                // Range is ignored if entity is changed since client's one.
+                if (null != r && null != ifRange && !ifRange.equals(etag))
+                    r = null;
+                if (null == r) {
+                    req.status = 200;
+                    len = entity.length;
+                    header = "HTTP/1.1 200 OK\r\n"
+                             + "Content-Length: " + len + "\r\n";
+                } else if (r[0] >= entity.length || r[0] > r[1]) {
+                    req.status = 416;
+                    header = "HTTP/1.1 416 Range Not Satisfiable\r\n"
+                             + "Content-Range: bytes */" + entity.length + "\r\n"
+                             + "Content-Length: 0\r\n";
+                } else {
+                    req.status = 206;
+                    off = (int)r[0];
+                    len = (int)(r[1] - r[0] + 1);
+                    header = "HTTP/1.1 206 Partial Content\r\n"
+                             + "Content-Range: bytes " + r[0] + "-" + r[1] + "/" + entity.length + "\r\n"
+                             + "Content-Length: " + len + "\r\n";
+                }
+                header += "ETag: " + etag + "\r\n"
+                          + "Accept-Ranges: bytes\r\n";
+            }
+            OutputStream os = s.getOutputStream();
+            os.write((header
+                      + "Content-Type: application/octet-stream\r\n"
+                      + "Connection: close\r\n\r\n").getBytes("UTF-8"));
+            write(os, entity, off, len, dropAfter);
+            os.flush();
+        } catch (IOException | InterruptedException e) {
+            // Client may close connection before all data is sent.(ex. cancelled segment)
+            if (DBG) P.w("ContentServer : " + e.getMessage());
+        } finally {
+            try {
+                s.close();
+            } catch (IOException ignored) { }
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/******************************************************************************
+ * Copyright (C) 2012, 2013, 2014, 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of FeedHive
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.feeder.task;
+
+import android.support.annotation.NonNull;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Random;
+
+import free.yhc.feeder.core.ContentsManager;
+import free.yhc.feeder.core.FeederException;
+import free.yhc.feeder.db.DBPolicy;
+import free.yhc.feeder.feed.Feed;
+import free.yhc.feeder.feed.FeedParser;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeFalse;
+
+//
+// Resuming download(DownloadTask#downloadResumable) against ContentServer at loopback interface.
+// Each step uses new DownloadTask like download resumed after process is restarted.
+// Download uses one connection. See SegmentedDownloadBenchmarkTest for segmented one.
+// Partial data and it's journal are all that are passed between steps.
+//
+// Channel and item are added to DB of application, and deleted at the end.
+// ScratchDBTestRunner redirects it to scratch database. So, user's database is NOT touched.
+//
+// NOTE
+// DownloadTask checks network availability before connecting. So, device should be online,
+//   even though data comes from loopback interface.
+//
+@RunWith(AndroidJUnit4.class)
+public class DownloadResumeTest {
+    private static final int ENTITY_SIZE = 256 * 1024;
+    private static final int DROP_AFTER = 100 * 1024;
+    private static final String FEED
+            = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+              + "<rss version=\"2.0\"><channel>"
+              + "<title>DownloadResumeTest</title>"
+              + "<link>http://download.test.local</link>"
+              + "<description>DownloadResumeTest</description>"
+              + "<item><title>Item</title>"
+              + "<link>http://download.test.local/item</link>"
+              + "<pubDate>Mon, 03 Oct 2016 10:00:00 +0000</pubDate>"
+              + "<description>item</description></item>"
+              + "</channel></rss>";
+
+    private final DBPolicy mDbp = DBPolicy.get();
+    private final Random mRandom = new Random(0);
+    private ContentServer mServer;
+    private long mCid = -1;
+    private long mId = -1;
+    private File mPart;
+
+    private byte[]
+    randomBytes(int size) {
+        byte[] data = new byte[size];
+        mRandom.nextBytes(data);
+        return data;
+    }
+
+    @NonNull
+    static byte[]
+    readFile(@NonNull File f) throws IOException {
+        byte[] data = new byte[(int)f.length()];
+        try (FileInputStream fis = new FileInputStream(f)) {
+            int off = 0;
+            int nr;
+            while (off < data.length
+                   && 0 < (nr = fis.read(data, off, data.length - off)))
+                off += nr;
+        }
+        return data;
+    }
+
+    private static void
+    writeFile(@NonNull File f, @NonNull byte[] data) throws IOException {
+        //noinspection ResultOfMethodCallIgnored
+        f.getParentFile().mkdirs();
+        try (FileOutputStream fos = new FileOutputStream(f)) {
+            fos.write(data);
+        }
+    }
+
+    /**
+     * Add channel having one item, as if it is updated.
+     * @return { channel id, item id }
+     */
+    @NonNull
+    static long[]
+    addChannelWithItem() throws IOException, FeederException {
+        final DBPolicy dbp = DBPolicy.get();
+        final FeedParser.Result r = FeedParser.parse(FEED.getBytes("UTF-8"));
+        final long cid = dbp.insertNewChannel(dbp.getDefaultCategoryId(),
+                                              "http://download.test.local/" + System.nanoTime());
+        final LinkedList<Feed.Item.ParD> items = new LinkedList<>(Arrays.asList(r.items));
+        final LinkedList<Long> ids = new LinkedList<>();
+        dbp.runChannelUpdatesInTransaction(new long[] { cid }, new Runnable() {
+            @Override
+            public void
+            run() {
+                try {
+                    dbp.runChannelUpdateInSavepoint(cid, new DBPolicy.ChannelUpdateJob() {
+                        @Override
+                        public void
+                        run() throws FeederException {
+                            dbp.updateChannel(cid, r.channel, items, ids);
+                        }
+                    });
+                } catch (FeederException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        assertEquals(1, ids.size());
+        return new long[] { cid, ids.getFirst() };
+    }
+
+    @NonNull
+    static DownloadTask
+    newTask(@NonNull String url, long id) throws IOException {
+        DownloadTask t = DownloadTask.create(url, id);
+        // Slot is assigned by DownloadManager at real download.
+        t.setTicket(new DownloadManager.Ticket(DownloadManager.Priority.USER, id));
+        return t;
+    }
+
+    @NonNull
+    private DownloadTask
+    newTask() throws IOException {
+        return newTask(mServer.url(), mId);
+    }
+
+    /**
+     * Download is stopped by connection dropped in the middle of body.
+     */
+    private void
+    downloadDropped() throws IOException, InterruptedException {
+        mServer.dropNextAfter(DROP_AFTER);
+        try {
+            newTask().downloadResumable(1);
+            fail("Dropped connection should fail download");
+        } catch (IOException ignored) { }
+        assertTrue(mPart.length() > 0 && mPart.length() < ENTITY_SIZE);
+        DBPolicy.DnJournal jn = mDbp.getDnJournal(mId);
+        assertNotNull(jn);
+        assertEquals(mServer.getEtag(), jn.etag);
+        assertEquals(ENTITY_SIZE, jn.length);
+        mServer.clearRequests();
+    }
+
+    @Before
+    public void
+    setUp() throws IOException, FeederException {
+        long[] ids = addChannelWithItem();
+        mCid = ids[0];
+        mId = ids[1];
+        mPart = ContentsManager.get().getItemPartialFile(mId);
+        // Files are shared with application. See ScratchDBTestRunner.
+        assumeFalse("Partial file of application exists : " + mPart, mPart.exists());
+        mServer = new ContentServer();
+        mServer.setEntity(randomBytes(ENTITY_SIZE));
+        mServer.start();
+    }
+
+    @After
+    public void
+    tearDown() {
+        if (null != mServer)
+            mServer.close();
+        if (mId >= 0) {
+            mDbp.removeDnJournal(mId);
+            //noinspection ResultOfMethodCallIgnored
+            mPart.delete();
+        }
+        if (mCid >= 0)
+            mDbp.deleteChannel(mCid);
+    }
+
+    @Test
+    public void
+    resumeAfterDrop() throws IOException, InterruptedException {
+        downloadDropped();
+        long offset = mPart.length();
+        File f = newTask().downloadResumable(1);
+        assertArrayEquals(mServer.getEntity(), readFile(f));
+        LinkedList<ContentServer.Request> reqs = mServer.getRequests();
+        assertEquals(1, reqs.size());
+        ContentServer.Request req = reqs.getFirst();
+        assertEquals("bytes=" + offset + "-", req.range);
+        assertEquals(mServer.getEtag(), req.ifRange);
+        assertEquals(206, req.status);
+    }
+
+    @Test
+    public void
+    restartIfEntityIsChanged() throws IOException, InterruptedException {
+        downloadDropped();
+        String oldEtag = mServer.getEtag();
+        mServer.setEntity(randomBytes(ENTITY_SIZE / 2));
+        File f = newTask().downloadResumable(1);
+        // Server ignores range and sends new entity as a whole.
+        assertArrayEquals(mServer.getEntity(), readFile(f));
+        LinkedList<ContentServer.Request> reqs = mServer.getRequests();
+        assertEquals(1, reqs.size());
+        assertEquals(oldEtag, reqs.getFirst().ifRange);
+        assertEquals(200, reqs.getFirst().status);
+        assertEquals(mServer.getEtag(), mDbp.getDnJournal(mId).etag);
+    }
+
+    @Test
+    public void
+    rangeNotSatisfiableOfCompleteData() throws IOException, InterruptedException {
+        // All data was received, but task was stopped before finishing.(ex. process is killed)
+        byte[] entity = mServer.getEntity();
+        writeFile(mPart, entity);
+        mDbp.putDnJournal(mId, new DBPolicy.DnJournal(mServer.url(), mServer.getEtag(), "",
+                                                      entity.length));
+        File f = newTask().downloadResumable(1);
+        assertArrayEquals(entity, readFile(f));
+        LinkedList<ContentServer.Request> reqs = mServer.getRequests();
+        assertEquals(1, reqs.size());
+        assertEquals(416, reqs.getFirst().status);
+    }
+
+    @Test
+    public void
+    rangeNotSatisfiableRestarts() throws IOException, InterruptedException {
+        // Partial data is longer than entity. Length isn't journaled.
+        writeFile(mPart, randomBytes(ENTITY_SIZE + 1024));
+        mDbp.putDnJournal(mId, new DBPolicy.DnJournal(mServer.url(), mServer.getEtag(), "", -1));
+        File f = newTask().downloadResumable(1);
+        assertArrayEquals(mServer.getEntity(), readFile(f));
+        LinkedList<ContentServer.Request> reqs = mServer.getRequests();
+        assertEquals(2, reqs.size());
+        assertEquals(416, reqs.getFirst().status);
+        assertNull(reqs.getLast().range);
+        assertEquals(200, reqs.getLast().status);
+    }
+}
@@ -0,0 +1,319 @@
+/******************************************************************************
+ * Copyright (C) 2012, 2013, 2014, 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of FeedHive
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.feeder.task;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import free.yhc.baselib.Logger;
+import free.yhc.feeder.core.Util;
+
+//
+// In-process HTTP server serving generated feeds at loopback interface.
+// Used by benchmarks of update path. So, they don't depend on network, and result
+//   is reproducible.
+//
+class FeedServer {
+    private static final boolean DBG = Logger.DBG_DEFAULT;
+    private static final Logger P = Logger.create(FeedServer.class, Logger.LOGLV_DEFAULT);
+
+    // Idle keep-alive connection is closed after this time.
+    private static final int KEEP_ALIVE_TIMEOUT = 5000; // ms
+
+    static class Config {
+        int nrChannels = 50;
+        // Channels are spread over this number of loopback hosts(127.0.0.x).
+        // Otherwise, all requests are serialized by per-host limit of HostGate.
+        int nrHosts = 16;
+        int nrItems = 30;        // items per feed document.
+        int itemSize = 512;      // bytes of description of each item.
+        long latency = 50;       // ms. Delay before response.
+        float errorRate = 0.0f;  // [0, 1]. Ratio of requests answered with HTTP 500.
+        // [0, 1]. Ratio of new items at each fetch.
+        // First fetch of a channel gives all new items. Following ones exercise 'churn'.
+        float churn = 0.2f;
+        // If false, connection is closed after each response.
+        boolean keepAlive = true;
+        long seed = 0;
+    }
+
+    private final Config mCfg;
+    private final ServerSocket[] mSockets;
+    // One thread per connection. Idle keep-alive connection holds it's thread.
+    private final ExecutorService mWorkers = Executors.newCachedThreadPool();
+    // Number of TCP connections accepted, and requests served.
+    private final AtomicInteger mNrConnections = new AtomicInteger(0);
+    private final AtomicInteger mNrRequests = new AtomicInteger(0);
+    // Open connections. They are closed by close().
+    private final HashSet<Socket> mConns = new HashSet<>();
+    // Number of fetches served per channel. Used to generate new items by 'churn'.
+    private final AtomicInteger[] mFetchCnt;
+    private final Random mRandom;
+    // Publish time of item 0. Items are recent enough not to be archived at once.
+    private final long mBaseTime = System.currentTimeMillis() - Util.DAY_IN_MS;
+
+    FeedServer(@NonNull Config cfg) throws IOException {
+        mCfg = cfg;
+        mRandom = new Random(cfg.seed);
+        mFetchCnt = new AtomicInteger[cfg.nrChannels];
+        for (int i = 0; i < mFetchCnt.length; i++)
+            mFetchCnt[i] = new AtomicInteger(0);
+        mSockets = new ServerSocket[cfg.nrHosts];
+        int port = 0; // any free port at first host. Other hosts use same port.
+        for (int i = 0; i < mSockets.length; i++) {
+            mSockets[i] = new ServerSocket(port, 50, InetAddress.getByName(host(i)));
+            port = mSockets[i].getLocalPort();
+        }
+    }
+
+    private static String
+    host(int i) {
+        return "127.0.0." + (i + 1);
+    }
+
+    String
+    url(int channel) {
+        return "http://" + host(channel % mSockets.length) + ":"
+               + mSockets[0].getLocalPort() + "/feed/" + channel;
+    }
+
+    int
+    getNrConnections() {
+        return mNrConnections.get();
+    }
+
+    int
+    getNrRequests() {
+        return mNrRequests.get();
+    }
+
+    void
+    start() {
+        for (final ServerSocket ss : mSockets) {
+            Thread t = new Thread() {
+                @Override
+                public void
+                run() {
+                    while (!ss.isClosed()) {
+                        try {
+                            final Socket s = ss.accept();
+                            mNrConnections.incrementAndGet();
+                            synchronized (mConns) {
+                                mConns.add(s);
+                            }
+                            mWorkers.execute(new Runnable() {
+                                @Override
+                                public void
+                                run() {
+                                    serve(s);
+                                }
+                            });
+                        } catch (IOException ignored) { }
+                    }
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    void
+    close() {
+        for (ServerSocket ss : mSockets) {
+            try {
+                ss.close();
+            } catch (IOException ignored) { }
+        }
+        synchronized (mConns) {
+            for (Socket s : mConns) {
+                try {
+                    s.close();
+                } catch (IOException ignored) { }
+            }
+        }
+        mWorkers.shutdownNow();
+    }
+
+    private boolean
+    isError() {
+        synchronized (mRandom) {
+            return mRandom.nextFloat() < mCfg.errorRate;
+        }
+    }
+
+    /**
+     * @return false if connection should be closed.
+     */
+    private boolean
+    serveRequest(@NonNull BufferedReader br, @NonNull OutputStream os)
+            throws IOException, InterruptedException {
+        String reqLine = br.readLine();
+        if (null == reqLine)
+            return false; // closed by client.
+        boolean close = !mCfg.keepAlive;
+        String line;
+        while (null != (line = br.readLine()) && !line.isEmpty()) {
+            if (line.toLowerCase(Locale.US).startsWith("connection:")
+                && line.toLowerCase(Locale.US).contains("close"))
+                close = true;
+        }
+        mNrRequests.incrementAndGet();
+
+        int channel = -1;
+        String[] toks = reqLine.split(" ");
+        if (toks.length >= 2 && toks[1].startsWith("/feed/")) {
+            try {
+                channel = Integer.parseInt(toks[1].substring("/feed/".length()));
+            } catch (NumberFormatException ignored) { }
+        }
+        if (mCfg.latency > 0)
+            Thread.sleep(mCfg.latency);
+
+        int status;
+        byte[] body;
+        if (channel < 0 || channel >= mCfg.nrChannels) {
+            status = 404;
+            body = new byte[0];
+        } else if (isError()) {
+            status = 500;
+            body = new byte[0];
+        } else {
+            status = 200;
+            body = generateFeed(channel, mFetchCnt[channel].getAndIncrement()).getBytes("UTF-8");
+        }
+        os.write(("HTTP/1.1 " + status + (200 == status? " OK": " Error") + "\r\n"
+                  + "Content-Type: application/xml; charset=utf-8\r\n"
+                  + "Content-Length: " + body.length + "\r\n"
+                  + "Connection: " + (close? "close": "keep-alive") + "\r\n\r\n")
+                 .getBytes("UTF-8"));
+        os.write(body);
+        os.flush();
+        return !close;
+    }
+
+    private void
+    serve(@NonNull Socket s) {
+        try {
+            s.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+            BufferedReader br = new BufferedReader(new InputStreamReader(s.getInputStream(), "UTF-8"));
+            OutputStream os = s.getOutputStream();
+            //noinspection StatementWithEmptyBody
+            while (serveRequest(br, os));
+        } catch (SocketTimeoutException ignored) {
+            // Idle keep-alive connection.
+        } catch (IOException | InterruptedException e) {
+            if (DBG) P.w("FeedServer : " + e.getMessage());
+        } finally {
+            synchronized (mConns) {
+                mConns.remove(s);
+            }
+            try {
+                s.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    /**
+     * Even channels are RSS, and odd ones are Atom.
+     * Items of 'fetch'th document are shifted by 'churn' from previous document.
+     */
+    @NonNull
+    private String
+    generateFeed(int channel, int fetch) {
+        int nrNew = Math.max(1, Math.round(mCfg.nrItems * mCfg.churn));
+        int first = fetch * nrNew; // newest item number is 'first + nrItems - 1'
+        char[] desc = new char[mCfg.itemSize];
+        for (int i = 0; i < desc.length; i++)
+            desc[i] = (char)('a' + i % 26);
+        String descStr = new String(desc);
+        boolean atom = 1 == (channel % 2);
+        SimpleDateFormat df = atom
+                ? new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US)
+                : new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z", Locale.US);
+        df.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String link = "http://bench.local/" + channel;
+
+        StringBuilder sbldr = new StringBuilder(mCfg.nrItems * (mCfg.itemSize + 256));
+        sbldr.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        if (atom)
+            sbldr.append("<feed xmlns=\"http://www.w3.org/2005/Atom\">")
+                 .append("<title>Benchmark ").append(channel).append("</title>")
+                 .append("<link href=\"").append(link).append("\"/>");
+        else
+            sbldr.append("<rss version=\"2.0\"><channel>")
+                 .append("<title>Benchmark ").append(channel).append("</title>")
+                 .append("<link>").append(link).append("</link>")
+                 .append("<description>Benchmark</description>");
+        // Newest first. One item per minute.
+        for (int i = first + mCfg.nrItems - 1; i >= first; i--) {
+            String date = df.format(new Date(mBaseTime + i * 60 * 1000L));
+            String itemLink = link + "/" + i;
+            if (atom)
+                sbldr.append("<entry><title>Item ").append(i).append("</title>")
+                     .append("<link href=\"").append(itemLink).append("\"/>")
+                     .append("<id>").append(itemLink).append("</id>")
+                     .append("<updated>").append(date).append("</updated>")
+                     .append("<content type=\"html\">").append(descStr).append("</content>")
+                     .append("</entry>");
+            else
+                sbldr.append("<item><title>Item ").append(i).append("</title>")
+                     .append("<link>").append(itemLink).append("</link>")
+                     .append("<pubDate>").append(date).append("</pubDate>")
+                     .append("<description>").append(descStr).append("</description>")
+                     .append("</item>");
+        }
+        sbldr.append(atom? "</feed>": "</channel></rss>");
+        return sbldr.toString();
+    }
+}
@@ -0,0 +1,164 @@
+/******************************************************************************
+ * Copyright (C) 2012, 2013, 2014, 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of FeedHive
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.feeder.task;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+
+import free.yhc.feeder.core.ContentsManager;
+import free.yhc.feeder.core.FeederException;
+import free.yhc.feeder.db.DBPolicy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+//
+// Segmented download vs. download through one connection.
+// ContentServer throttles each connection. That is, it acts like server(or path) limiting
+//   bandwidth per connection, where segmented download is expected to help.
+//
+// Run with
+//   ./gradlew connectedAndroidTest \
+//       -Pandroid.testInstrumentationRunnerArguments.class=free.yhc.feeder.task.SegmentedDownloadBenchmarkTest
+// Reports are written to logcat and <external files dir>/download_benchmark.txt
+//
+// NOTE
+// Rate limit of DownloadManager(preference) is applied to both. Disable it before running.
+//
+@RunWith(AndroidJUnit4.class)
+public class SegmentedDownloadBenchmarkTest {
+    private static final String TAG = "SegmentedDownloadBenchmarkTest";
+    private static final String REPORT_NAME = "download_benchmark.txt";
+    // Segmented download is used only for file larger than DownloadTask.SEGMENTED_MIN_SIZE.
+    private static final int ENTITY_SIZE = 12 * 1024 * 1024;
+    private static final long THROTTLE = 2 * 1024 * 1024; // bytes per second of each connection.
+    private static final int[] NR_SEGMENTS = new int[] { 1, 2, 4 };
+
+    private final DBPolicy mDbp = DBPolicy.get();
+    private ContentServer mServer;
+    private long mCid = -1;
+    private long mId = -1;
+    private File mPart;
+
+    private static void
+    writeReport(String name, String report) throws IOException {
+        Log.i(TAG, name + " : " + report);
+        File f = new File(InstrumentationRegistry.getTargetContext().getExternalFilesDir(null),
+                          REPORT_NAME);
+        FileWriter fw = new FileWriter(f, true);
+        try {
+            fw.write(name + "\t" + report + "\n");
+        } finally {
+            fw.close();
+        }
+    }
+
+    @Before
+    public void
+    setUp() throws IOException, FeederException {
+        long[] ids = DownloadResumeTest.addChannelWithItem();
+        mCid = ids[0];
+        mId = ids[1];
+        mPart = ContentsManager.get().getItemPartialFile(mId);
+        // Files are shared with application. See ScratchDBTestRunner.
+        assumeFalse("Partial file of application exists : " + mPart, mPart.exists());
+        byte[] entity = new byte[ENTITY_SIZE];
+        new Random(0).nextBytes(entity);
+        mServer = new ContentServer();
+        mServer.setEntity(entity);
+        mServer.setThrottle(THROTTLE);
+        mServer.start();
+    }
+
+    @After
+    public void
+    tearDown() {
+        if (null != mServer)
+            mServer.close();
+        if (mId >= 0) {
+            mDbp.removeDnJournal(mId);
+            //noinspection ResultOfMethodCallIgnored
+            mPart.delete();
+        }
+        if (mCid >= 0)
+            mDbp.deleteChannel(mCid);
+    }
+
+    @Test
+    public void
+    segmentedVsSingle() throws IOException, InterruptedException {
+        long[] elapsed = new long[NR_SEGMENTS.length];
+        for (int i = 0; i < NR_SEGMENTS.length; i++) {
+            int nrSegs = NR_SEGMENTS[i];
+            // Start from the beginning every time.
+            mDbp.removeDnJournal(mId);
+            //noinspection ResultOfMethodCallIgnored
+            mPart.delete();
+            int nrConns = mServer.getNrConnections();
+            long startTime = System.currentTimeMillis();
+            File f = DownloadResumeTest.newTask(mServer.url(), mId).downloadResumable(nrSegs);
+            elapsed[i] = System.currentTimeMillis() - startTime;
+            nrConns = mServer.getNrConnections() - nrConns;
+            assertArrayEquals(mServer.getEntity(), DownloadResumeTest.readFile(f));
+            assertEquals(nrSegs, nrConns);
+            writeReport("segmentedVsSingle",
+                        String.format(Locale.US,
+                                      "%d KB, %d KB/s per connection, %d segments : %d ms, %.1f KB/s",
+                                      ENTITY_SIZE / 1024, THROTTLE / 1024, nrSegs, elapsed[i],
+                                      elapsed[i] > 0? ENTITY_SIZE * 1000f / 1024 / elapsed[i]: 0));
+        }
+        // Each connection is throttled. So, more connections should be faster.
+        for (int i = 1; i < elapsed.length; i++)
+            assertTrue("segments " + NR_SEGMENTS[i] + " : " + elapsed[i] + " ms"
+                       + " >= segments " + NR_SEGMENTS[i - 1] + " : " + elapsed[i - 1] + " ms",
+                       elapsed[i] < elapsed[i - 1]);
+    }
+}
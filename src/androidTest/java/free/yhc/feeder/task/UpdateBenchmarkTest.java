@@ -0,0 +1,325 @@
+/******************************************************************************
+ * Copyright (C) 2012, 2013, 2014, 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of FeedHive
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.feeder.task;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import free.yhc.abaselib.AppEnv;
+import free.yhc.baselib.async.TaskBase;
+import free.yhc.feeder.core.Err;
+import free.yhc.feeder.core.FeederException;
+import free.yhc.feeder.core.RTTask;
+import free.yhc.feeder.db.DB;
+import free.yhc.feeder.db.DBPolicy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+//
+// End-to-end benchmark of update path.
+//   RTTask -> UpdateTask -> FeedParser -> UpdatePipeline -> DBPolicy
+// Feeds are served by FeedServer at loopback interface.
+//
+// Channels are added to DB of application, and deleted at the end.
+// ScratchDBTestRunner redirects it to scratch database. So, user's database is NOT touched.
+//
+// Run with
+//   ./gradlew connectedAndroidTest \
+//       -Pandroid.testInstrumentationRunnerArguments.class=free.yhc.feeder.task.UpdateBenchmarkTest
+// Numbers of channels can be changed with instrumentation argument 'nrChannels'.(ex. "50,500")
+// Reports are written to logcat and <external files dir>/update_benchmark.txt
+//
+@RunWith(AndroidJUnit4.class)
+public class UpdateBenchmarkTest {
+    private static final String TAG = "UpdateBenchmarkTest";
+    private static final String REPORT_NAME = "update_benchmark.txt";
+    private static final String DEFAULT_NR_CHANNELS = "50,500,5000";
+    // Number of update passes over all channels.
+    private static final int NR_ROUNDS = 3;
+    // Heap usage is sampled at this interval.
+    private static final long HEAP_SAMPLE_INTERVAL = 100; // ms
+
+    static class Report {
+        int nrChannels;
+        int nrUpdates;           // number of update tasks run.
+        int nrFailed;
+        long elapsed;            // ms
+        long[] roundElapsed;     // ms. Elapsed time of each round.
+        long nrNewItems;         // items inserted to DB.
+        long peakHeap;           // bytes
+        long dbGrowth;           // bytes
+        int nrRequests;          // HTTP requests served by FeedServer.
+        int nrConnections;       // TCP connections accepted by FeedServer.
+
+        float
+        channelsPerSec() {
+            return elapsed > 0? nrUpdates * 1000f / elapsed: 0;
+        }
+
+        float
+        itemsPerSec() {
+            return elapsed > 0? nrNewItems * 1000f / elapsed: 0;
+        }
+
+        @Override
+        public String
+        toString() {
+            return String.format(Locale.US,
+                                 "channels %d : %.1f ch/s, %.1f items/s, "
+                                 + "failed %d/%d, peak heap %d KB, db +%d KB, "
+                                 + "requests %d over %d connections",
+                                 nrChannels, channelsPerSec(), itemsPerSec(),
+                                 nrFailed, nrUpdates, peakHeap / 1024, dbGrowth / 1024,
+                                 nrRequests, nrConnections);
+        }
+    }
+
+    private static class HeapSampler extends Thread {
+        private final AtomicLong mPeak = new AtomicLong(0);
+        private volatile boolean mStop = false;
+
+        private void
+        sample() {
+            Runtime rt = Runtime.getRuntime();
+            long used = rt.totalMemory() - rt.freeMemory();
+            if (used > mPeak.get())
+                mPeak.set(used);
+        }
+
+        @Override
+        public void
+        run() {
+            while (!mStop) {
+                sample();
+                try {
+                    Thread.sleep(HEAP_SAMPLE_INTERVAL);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+
+        long
+        finish() {
+            mStop = true;
+            interrupt();
+            sample();
+            return mPeak.get();
+        }
+    }
+
+    private static class DoneListener extends TaskBase.EventListener<UpdateTask, Err> {
+        private final CountDownLatch _mLatch;
+        private final AtomicInteger _mNrFailed;
+
+        DoneListener(CountDownLatch latch, AtomicInteger nrFailed) {
+            _mLatch = latch;
+            _mNrFailed = nrFailed;
+        }
+
+        @Override
+        public void
+        onCancelled(@NonNull UpdateTask task, Object param) {
+            _mNrFailed.incrementAndGet();
+            _mLatch.countDown();
+        }
+
+        @Override
+        public void
+        onPostRun(@NonNull UpdateTask task, Err result, Exception ex) {
+            if (Err.NO_ERR != result)
+                _mNrFailed.incrementAndGet();
+            _mLatch.countDown();
+        }
+    }
+
+    private static Context
+    getContext() {
+        return InstrumentationRegistry.getTargetContext();
+    }
+
+    private static int[]
+    getNrChannels() {
+        String v = InstrumentationRegistry.getArguments().getString("nrChannels");
+        String[] toks = (null == v? DEFAULT_NR_CHANNELS: v).split(",");
+        int[] nrs = new int[toks.length];
+        for (int i = 0; i < toks.length; i++)
+            nrs[i] = Integer.parseInt(toks[i].trim());
+        return nrs;
+    }
+
+    /**
+     * Update all channels once, through RTTask, and wait until all are done.
+     */
+    private static void
+    runRound(@NonNull long[] cids, @NonNull AtomicInteger nrFailed)
+            throws InterruptedException {
+        RTTask rtt = RTTask.get();
+        CountDownLatch latch = new CountDownLatch(cids.length);
+        DoneListener listener = new DoneListener(latch, nrFailed);
+        for (long cid : cids) {
+            UpdateTask t = rtt.getUpdateTask(cid);
+            if (null != t)
+                rtt.removeWatchedTask(t);
+            t = new UpdateTask(cid, null);
+            t.addEventListener(listener);
+            if (!rtt.addTask(t, cid, RTTask.Action.UPDATE)) {
+                nrFailed.incrementAndGet();
+                latch.countDown();
+            }
+        }
+        latch.await();
+    }
+
+    /**
+     * Add channels served by 'server', update them 'nrRounds' times, and delete them.
+     */
+    @NonNull
+    static Report
+    run(@NonNull FeedServer.Config cfg, int nrRounds)
+            throws IOException, FeederException, InterruptedException {
+        DBPolicy dbp = DBPolicy.get();
+        // Path of scratch database. See ScratchDBTestRunner.
+        File dbf = AppEnv.getAppContext().getDatabasePath(DB.getDBName());
+        FeedServer server = new FeedServer(cfg);
+        long[] cids = new long[cfg.nrChannels];
+        int nrInserted = 0;
+        Report r = new Report();
+        r.nrChannels = cfg.nrChannels;
+        server.start();
+        try {
+            long catid = dbp.getDefaultCategoryId();
+            for (; nrInserted < cids.length; nrInserted++)
+                cids[nrInserted] = dbp.insertNewChannel(catid, server.url(nrInserted));
+
+            long dbSize = dbf.length();
+            long nrItems = 0;
+            for (long cid : cids)
+                nrItems += dbp.getChannelInfoNrItems(cid);
+            AtomicInteger nrFailed = new AtomicInteger(0);
+            HeapSampler sampler = new HeapSampler();
+            sampler.start();
+            r.roundElapsed = new long[nrRounds];
+            long startTime = System.currentTimeMillis();
+            for (int i = 0; i < nrRounds; i++) {
+                long roundStart = System.currentTimeMillis();
+                runRound(cids, nrFailed);
+                r.roundElapsed[i] = System.currentTimeMillis() - roundStart;
+            }
+            r.elapsed = System.currentTimeMillis() - startTime;
+            r.peakHeap = sampler.finish();
+            r.nrUpdates = cids.length * nrRounds;
+            r.nrFailed = nrFailed.get();
+            for (long cid : cids)
+                r.nrNewItems += dbp.getChannelInfoNrItems(cid);
+            r.nrNewItems -= nrItems;
+            r.dbGrowth = dbf.length() - dbSize;
+            r.nrRequests = server.getNrRequests();
+            r.nrConnections = server.getNrConnections();
+        } finally {
+            server.close();
+            if (nrInserted > 0) {
+                long[] inserted = new long[nrInserted];
+                System.arraycopy(cids, 0, inserted, 0, nrInserted);
+                dbp.deleteChannel(inserted);
+            }
+        }
+        return r;
+    }
+
+    static void
+    writeReport(@NonNull String name, @NonNull String report) throws IOException {
+        Log.i(TAG, name + " : " + report);
+        File f = new File(getContext().getExternalFilesDir(null), REPORT_NAME);
+        FileWriter fw = new FileWriter(f, true);
+        try {
+            fw.write(name + "\t" + report + "\n");
+        } finally {
+            fw.close();
+        }
+    }
+
+    @Test
+    public void
+    updateChannels() throws IOException, FeederException, InterruptedException {
+        for (int nr : getNrChannels()) {
+            FeedServer.Config cfg = new FeedServer.Config();
+            cfg.nrChannels = nr;
+            Report r = run(cfg, NR_ROUNDS);
+            writeReport("updateChannels", r.toString());
+            // Server doesn't make errors by default configuration.
+            assertEquals(r.toString(), 0, r.nrFailed);
+        }
+    }
+
+    /**
+     * Channels are crowded at a few hosts. So, requests to same host are limited by HostGate.
+     * Compare number of connections with and without keep-alive of server.
+     */
+    @Test
+    public void
+    connectionReuse() throws IOException, FeederException, InterruptedException {
+        for (boolean keepAlive : new boolean[] { false, true }) {
+            FeedServer.Config cfg = new FeedServer.Config();
+            cfg.nrChannels = 100;
+            cfg.nrHosts = 2;
+            cfg.keepAlive = keepAlive;
+            Report r = run(cfg, NR_ROUNDS);
+            writeReport("connectionReuse(keepAlive=" + keepAlive + ")", r.toString());
+            assertEquals(r.toString(), 0, r.nrFailed);
+            if (keepAlive)
+                assertTrue(r.toString(), r.nrConnections < r.nrRequests);
+            else
+                assertEquals(r.toString(), r.nrRequests, r.nrConnections);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/******************************************************************************
+ * Copyright (C) 2012, 2013, 2014, 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of FeedHive
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.feeder.task;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import free.yhc.feeder.core.FeederException;
+
+import static org.junit.Assert.assertEquals;
+
+//
+// End-to-end channels/sec of bulk update through UpdatePipeline(fetch -> parse -> batched persist),
+//   with 500 feeds served by FeedServer.
+//
+// - network : Server answers after some latency. Fetch stage is dominant.
+// - local   : Server answers at once. Parse and persist stages are dominant.
+// First round inserts all items of each feed. Second round inserts only new items by 'churn'.
+//
+// See UpdateBenchmarkTest for database used and where reports are written.
+//
+@RunWith(AndroidJUnit4.class)
+public class UpdatePipelineBenchmarkTest {
+    private static final int NR_FEEDS = 500;
+
+    private static void
+    bench(String name, long latency) throws IOException, FeederException, InterruptedException {
+        FeedServer.Config cfg = new FeedServer.Config();
+        cfg.nrChannels = NR_FEEDS;
+        cfg.latency = latency;
+        UpdateBenchmarkTest.Report r = UpdateBenchmarkTest.run(cfg, 2);
+        StringBuilder sbldr = new StringBuilder(r.toString());
+        for (int i = 0; i < r.roundElapsed.length; i++)
+            sbldr.append(String.format(Locale.US, ", round %d : %.1f ch/s",
+                                       i, NR_FEEDS * 1000f / Math.max(1, r.roundElapsed[i])));
+        UpdateBenchmarkTest.writeReport(name, sbldr.toString());
+        assertEquals(r.toString(), 0, r.nrFailed);
+    }
+
+    @Test
+    public void
+    network() throws IOException, FeederException, InterruptedException {
+        bench("pipeline-network", 50);
+    }
+
+    @Test
+    public void
+    local() throws IOException, FeederException, InterruptedException {
+        bench("pipeline-local", 0);
+    }
+}
@@ -39,9 +39,11 @@ package free.yhc.feeder;
 import java.util.LinkedList;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.BaseAdapter;
 import android.widget.ListView;
 
@@ -50,7 +52,6 @@ import free.yhc.baselib.Logger;
 import free.yhc.baselib.async.ThreadEx;
 import free.yhc.feeder.core.Err;
 import free.yhc.feeder.core.UnexpectedExceptionHandler;
-import free.yhc.feeder.core.Util;
 
 import static free.yhc.abaselib.util.AUtil.isUiThread;
 
@@ -59,6 +60,16 @@ UnexpectedExceptionHandler.TrackedModule {
     private static final boolean DBG = Logger.DBG_DEFAULT;
     private static final Logger P = Logger.create(AsyncAdapter.class, Logger.LOGLV_DEFAULT);
 
+    // Prefetching
+    // Next(or previous) window is requested before the edge is reached, if the edge is expected
+    //   to be reached while the window is loaded, at current scroll velocity.
+    // Expected loading time before any load is measured.
+    private static final long PREFETCH_DEFAULT_LOAD_TIME = 300; // ms
+    // Scroll velocity measured from older sample than this, is regarded as stale.
+    private static final long PREFETCH_VELOCITY_STALE = 500; // ms
+    // Weight of latest sample at moving average of velocity and load time is 1 / this.
+    private static final int PREFETCH_EMA_WEIGHT = 4;
+
     // Variables to store information - not changed in dynamic
     protected final Context mContext;
     private final int mDataReqSz;
@@ -82,11 +93,9 @@ UnexpectedExceptionHandler.TrackedModule {
 
     // Variables those are changed dynamically
     // NOTE!
-    // Below variables are used(RW) by multiple threads.
-    // But, any synchronization is not used for them. Why?
-    // By using 'mDpDone' flag, below variables are free from race-condition.
-    // Please check & confirm this.
-    // (If not, I SHOULD USE LOCK for synchronization!)
+    // Below variables are changed only on UI thread.
+    // Data provider runs at other thread, but provided items are applied on UI thread.
+    // (See provideItems().)
 
     // position of top item
     // this is position of item located at item array[0].
@@ -106,12 +115,56 @@ UnexpectedExceptionHandler.TrackedModule {
     // So, this is not needed to be 'volatile'
     private int mNrseq = 0;
 
-    // For synchronization
-    // Read/Write operation to java primitive/reference is atomic!
-    // So, use with 'volatile'
-    private volatile boolean mDpDone = false;
+    // Data request in progress. 'null' if there is no pending request.
+    // Accessed only on UI Thread context.
+    private DpRequest mDpReq = null;
     private ThreadEx<Err> mDpTask = null;
 
+    // Data request is completed when provider provides items. (See provideItems().)
+    // There is at most one request in progress. New request cancels previous one, and items
+    //   provided for cancelled request are discarded.
+    private static class DpRequest {
+        final long seq;
+        final LDType ldtype;
+        final int from;
+        final int anchorPos;
+        final long startTime;
+        // Prefetch is not shown to user(DataProvideStateListener) until the edge is reached.
+        boolean prefetch;
+
+        DpRequest(long aSeq, LDType aLdtype, int aFrom, int aAnchorPos, boolean aPrefetch) {
+            seq = aSeq;
+            ldtype = aLdtype;
+            from = aFrom;
+            anchorPos = aAnchorPos;
+            startTime = SystemClock.uptimeMillis();
+            prefetch = aPrefetch;
+        }
+    }
+
+    // Scroll state used for prefetching. Accessed only on UI Thread context.
+    private int mScrollFirst = -1;        // first visible position at last sample.
+    private long mScrollTime = 0;         // time of last sample.
+    private float mScrollVelocity = 0;    // items / sec. '+' : to the end, '-' : to the top.
+    private long mLoadTime = PREFETCH_DEFAULT_LOAD_TIME; // ms. Moving average of loading time.
+
+    private final AbsListView.OnScrollListener mScrollListener = new AbsListView.OnScrollListener() {
+        @Override
+        public void
+        onScrollStateChanged(AbsListView view, int scrollState) {
+            if (SCROLL_STATE_IDLE == scrollState) {
+                mScrollVelocity = 0;
+                mScrollFirst = -1;
+            }
+        }
+
+        @Override
+        public void
+        onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+            onListScrolled(firstVisibleItem, visibleItemCount);
+        }
+    };
+
     /**
      * provide data to this adapter asynchronously
      */
@@ -122,6 +175,8 @@ UnexpectedExceptionHandler.TrackedModule {
          * And this function may be called at multiple thread.
          * So, function should be "MULTI-THREAD SAFE"
          * Or, thread may be interrupted in the middle of running.
+         * Provider SHOULD complete the request by calling
+         *   {@link AsyncAdapter#provideItems(Object, long, int, Object[], boolean)}.
          * @return return value is not used yet. it is just reserved.
          */
         int requestData(AsyncAdapter adapter, Object priv, long nrseq, int from, int sz);
@@ -189,6 +244,9 @@ UnexpectedExceptionHandler.TrackedModule {
          DataProvideStateListener dpsListener,
          Object dummyItem) { // dummy item for first load
         mLv = lv;
+        // NOTE
+        // Adapter tracks scroll of list view to prefetch items.
+        mLv.setOnScrollListener(mScrollListener);
         mDpsListener = dpsListener;
         mFirstLoadingView = firstLoadingView;
         mDummyItem = dummyItem;
@@ -324,21 +382,58 @@ UnexpectedExceptionHandler.TrackedModule {
         return newItems;
     }
 
+    /**
+     * Called on UI thread when request is done(items are applied) or given up.
+     */
     private void
-    waitDpDone(long reqSeq, int ms, int timeoutms) {
-        int summs = 0;
-        try {
-            while (!mDpDone && reqSeq == mNrseq && summs < timeoutms) {
-                Thread.sleep(ms);
-                summs += ms;
-            }
-        } catch (InterruptedException ignored) {}
-        P.bug(summs < timeoutms);
+    completeDataRequest(DpRequest req, boolean cancelled) {
+        P.bug(isUiThread());
+        P.bug(mDpReq == req);
+        mDpReq = null;
+        mDpTask = null;
+        if (!cancelled) {
+            long elapsed = SystemClock.uptimeMillis() - req.startTime;
+            mLoadTime += (elapsed - mLoadTime) / PREFETCH_EMA_WEIGHT;
+        }
+        if (null != mDpsListener && !req.prefetch) {
+            if (cancelled)
+                mDpsListener.onCancelledDataProvide(this, req.anchorPos, req.seq);
+            else
+                mDpsListener.onPostDataProvide(this, req.anchorPos, req.seq);
+        }
+        notifyDataSetChanged();
+        while (!mGarbageIteml.isEmpty())
+            destroyItem(mGarbageIteml.removeFirst());
+    }
+
+    /**
+     * Cancel request in progress. Items provided for it later, are discarded.
+     * NOTE
+     * This may be called in getView().
+     * So, dataset-changed is not notified here. New request will notify it.
+     */
+    private void
+    cancelDataRequest() {
+        P.bug(isUiThread());
+        if (null == mDpReq)
+            return;
+        if (null != mDpTask)
+            mDpTask.cancel(true);
+        if (null != mDpsListener && !mDpReq.prefetch)
+            mDpsListener.onCancelledDataProvide(this, mDpReq.anchorPos, mDpReq.seq);
+        mDpReq = null;
+        mDpTask = null;
     }
 
     private void
     requestDataAsync(final LDType ldtype,
                      final int from, int sz) {
+        requestDataAsync(ldtype, from, sz, false);
+    }
+
+    private void
+    requestDataAsync(final LDType ldtype,
+                     final int from, int sz, boolean prefetch) {
         //logI("Data request UI : from " + from + ", # " + sz);
 
         P.bug(isUiThread());
@@ -350,11 +445,22 @@ UnexpectedExceptionHandler.TrackedModule {
         if (sz <= 0)
             return; // nothing to do.
 
-        final long reqSeq = ++mNrseq;
-        mDpDone = false;
+        if (null != mDpReq
+            && mDpReq.prefetch
+            && mDpReq.ldtype == ldtype
+            && mDpReq.from == from) {
+            // Edge is reached while prefetching same window.
+            // Just show it to user instead of requesting again.
+            if (!prefetch) {
+                mDpReq.prefetch = false;
+                if (null != mDpsListener)
+                    mDpsListener.onPreDataProvide(this, mDpReq.anchorPos, mDpReq.seq);
+            }
+            return;
+        }
 
-        if (null != mDpTask)
-            mDpTask.cancel(true);
+        final long reqSeq = ++mNrseq;
+        cancelDataRequest();
 
         final int szToReq = sz;
         int anchorPos;
@@ -379,41 +485,31 @@ UnexpectedExceptionHandler.TrackedModule {
         // NOTE
         // 'onPreDataProvide' SHOULD be called BEFORE bindView().
         // See getView() for details.
-        if (null != mDpsListener)
+        if (null != mDpsListener && !prefetch)
             mDpsListener.onPreDataProvide(AsyncAdapter.this, anchorPos, reqSeq);
 
-        final int anchorItemPos = anchorPos;
+        final DpRequest req = new DpRequest(reqSeq, ldtype, from, anchorPos, prefetch);
+        mDpReq = req;
+        // Thread lives only while provider runs query.
+        // Request is completed by provideItems(), not by end of this thread.
         mDpTask = new ThreadEx<Err>(
                 "AsyncAdatprDp", AppEnv.getUiHandlerAdapter(), ThreadEx.TASK_PRIORITY_NORM) {
-            private void
-            onFinished() {
-                notifyDataSetChanged();
-                while (!mGarbageIteml.isEmpty())
-                    destroyItem(mGarbageIteml.removeFirst());
-            }
-
             @Override
             protected void
             onPostRun(Err result, Exception ex) {
-                if (null != mDpsListener)
-                    mDpsListener.onPostDataProvide(AsyncAdapter.this, anchorItemPos, reqSeq);
-                onFinished();
-            }
-
-            @Override
-            protected void
-            onCancelled(Exception ex) {
-                if (null != mDpsListener)
-                    mDpsListener.onCancelledDataProvide(AsyncAdapter.this, anchorItemPos, reqSeq);
-                onFinished();
+                // Items are provided by posting to UI thread before this is called.
+                // So, request is still in progress only if provider didn't provide items.
+                if (mDpReq == req) {
+                    if (DBG) P.w("Data provider doesn't provide items : " + reqSeq);
+                    completeDataRequest(req, true);
+                }
             }
 
             @Override
             protected Err
             doAsync() {
                 //logI(">>> async request RUN - START: from " + from + ", # " + sz);
-                mDp.requestData(AsyncAdapter.this, ldtype, reqSeq, from, szToReq);
-                waitDpDone(reqSeq, 50, (int)Util.MIN_IN_MS * 3); // timeout 3 minutes.
+                mDp.requestData(AsyncAdapter.this, req, reqSeq, from, szToReq);
                 //logI(">>> async request RUN - END: from " + from + ", # " + sz);
                 return Err.NO_ERR;
             }
@@ -423,6 +519,67 @@ UnexpectedExceptionHandler.TrackedModule {
         mDpTask.start();
     }
 
+    /**
+     * Update scroll velocity and prefetch next(or previous) window if needed.
+     */
+    private void
+    onListScrolled(int first, int nrVisible) {
+        if (!initalLoaded() || nrVisible <= 0)
+            return;
+
+        long now = SystemClock.uptimeMillis();
+        if (mScrollFirst < 0 || now - mScrollTime > PREFETCH_VELOCITY_STALE) {
+            // Start new sampling.
+            mScrollFirst = first;
+            mScrollTime = now;
+            mScrollVelocity = 0;
+            return;
+        }
+        if (first == mScrollFirst)
+            return;
+
+        // NOTE
+        // Position is relative to mItems. If window is moved(mPosTop is changed) between samples,
+        //   delta is not correct. But it's corrected soon by following samples.
+        float v = (first - mScrollFirst) * 1000f / Math.max(1, now - mScrollTime);
+        mScrollVelocity += (v - mScrollVelocity) / PREFETCH_EMA_WEIGHT;
+        mScrollFirst = first;
+        mScrollTime = now;
+
+        // Cancel prefetch that user scrolls away from.
+        if (null != mDpReq
+            && mDpReq.prefetch
+            && ((LDType.NEXT == mDpReq.ldtype && mScrollVelocity < 0)
+                || (LDType.PREV == mDpReq.ldtype && mScrollVelocity > 0))) {
+            if (DBG) P.v("Cancel prefetch : " + mDpReq.ldtype);
+            cancelDataRequest();
+        }
+        if (null != mDpReq)
+            return;
+
+        // Items expected to be passed while loading next window.
+        int margin = nrVisible + (int)(Math.abs(mScrollVelocity) * mLoadTime / 1000);
+        int last = first + nrVisible - 1;
+        if (mScrollVelocity > 0) {
+            if (mItems.length - 1 - last > margin
+                || (mDataCnt >= 0 && mPosTop + mItems.length >= mDataCnt))
+                return;
+            // Window is shrunk from the top to keep mMaxArrSz.
+            // Visible items SHOULD NOT be dropped.
+            if (mItems.length + mDataReqSz - mMaxArrSz > first)
+                return;
+            requestDataAsync(LDType.NEXT, mPosTop + mItems.length, mDataReqSz, true);
+        } else if (mScrollVelocity < 0) {
+            if (first > margin || mPosTop <= 0)
+                return;
+            int szReq = (mPosTop > mDataReqSz)? mDataReqSz: mPosTop;
+            // Window is shrunk from the bottom to keep mMaxArrSz.
+            if (mItems.length + szReq - mMaxArrSz > mItems.length - 1 - last)
+                return;
+            requestDataAsync(LDType.PREV, mPosTop - szReq, szReq, true);
+        }
+    }
+
     /**
      * This function would better to be called mainly when
      *   - number of data is changed (decreased / increased).
@@ -469,6 +626,7 @@ UnexpectedExceptionHandler.TrackedModule {
     }
 
     /**
+     * Completion callback of {@link DataProvider#requestData(AsyncAdapter, Object, long, int, int)}.
      * @param priv Internal value passed by {@link AsyncAdapter}
      *             This value should be passed as it is.
      * @param reqSeq sequence number. (Given by adapter)
@@ -484,7 +642,8 @@ UnexpectedExceptionHandler.TrackedModule {
         //logI("AsyncAdapter provideItems - START : from " + from + ", # " + aitems.length);
         P.bug(mMaxArrSz > items.length);
 
-        final LDType ldtype = (LDType)priv;
+        final DpRequest req = (DpRequest)priv;
+        final LDType ldtype = req.ldtype;
         // NOTE
         // Changing 'mItems' array SHOULD BE processed on UI Thread Context!!!
         // This is very important!
@@ -496,17 +655,19 @@ UnexpectedExceptionHandler.TrackedModule {
             public void run() {
                 //logI("AsyncAdapter Provide Item Post Run (" + reqSeq + ", " + mNrseq + ") - START");
 
-                // Check that there is already new request or not.
+                // Check that request is cancelled by newer one or not.
                 // This is run on UI thread. So, synchronization is not needed to be worried about.
                 // NOTE
-                // Below check is really required? I don't think so,
-                // especially, in case that there should be more than one data request to fill one screen,
-                //   below check issues unexpected bug!
-                // Let's comment out and monitor it...
-                /*
-                if (reqSeq != mNrseq)
+                // Newer request is built on item array that doesn't include items of this request.
+                // So, they SHOULD be discarded.
+                // Requests needed to fill one screen are issued one by one. (Next request is
+                //   issued at getView() after this request is completed.)
+                // So, they are not cancelled by each other.
+                if (mDpReq != req) {
+                    for (Object item : items)
+                        destroyItem(item);
                     return;
-                */
+                }
 
                 // 'posTop' is changed in 'buildNewItemsArray'.
                 // So backup it before building new mItems array.
@@ -556,9 +717,7 @@ UnexpectedExceptionHandler.TrackedModule {
                 if (0 == pos && 0 == mPosTop && topY < 0)
                     topY = 0; // we cannot before 'first item'
                 mLv.setSelectionFromTop(pos, topY);
-                // check again at UI thread
-                mDpDone = true;
-                mDpTask = null;
+                completeDataRequest(req, false);
             }
         });
         //logI("AsyncAdapter provideItems - END : from " + from + ", # " + aitems.length);
@@ -111,7 +111,8 @@ UnexpectedExceptionHandler.TrackedModule {
 
         void
         register() {
-            DBPolicy.get().registerUpdatedListener(this, DB.UpdateType.CATEGORY_TABLE.flag());
+            // Checked at onResume. See ItemListActivity.DBWatcher.
+            DBPolicy.get().registerUpdatedListener(this, DB.UpdateType.CATEGORY_TABLE.flag(), true);
         }
 
         void
@@ -38,17 +38,22 @@ package free.yhc.feeder;
 
 import java.text.DateFormat;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Locale;
 
 import android.content.Context;
 import android.database.Cursor;
 import android.database.StaleDataException;
 import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.view.View;
 import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.TextView;
 
+import free.yhc.abaselib.AppEnv;
 import free.yhc.baselib.Logger;
 import free.yhc.feeder.db.ColumnChannel;
 import free.yhc.feeder.db.DBPolicy;
@@ -64,7 +69,12 @@ AsyncCursorAdapter.ItemBuilder {
     private static final boolean DBG = Logger.DBG_DEFAULT;
     private static final Logger P = Logger.create(ChannelListAdapter.class, Logger.LOGLV_DEFAULT);
 
+    // Icons of rows within this distance from bound row, are decoded in advance.
+    private static final int ICON_PREFETCH_ROWS = 6;
+
     private static final Date sDummyDate = new Date();
+    // Channel icons are decoded at this background thread. See requestIcon().
+    private static Handler sIconLoader = null;
     private static final ColumnChannel[] sChannQueryColumns = new ColumnChannel[] {
         ColumnChannel.ID, // Mandatory.
         ColumnChannel.URL,
@@ -77,6 +87,10 @@ AsyncCursorAdapter.ItemBuilder {
     private final DBPolicy mDbp = DBPolicy.get();
     private final RTTask mRtt = RTTask.get();
 
+    // Channels whose icon is being decoded. Accessed only on UI thread.
+    // Key : channel id, Value : token of the latest request.
+    private final HashMap<Long, Object> mIconRequests = new HashMap<>();
+
     private final OnActionListener mActionListener;
     private final View.OnClickListener mChIconOnClick;
     private final View.OnClickListener mPosUpOnClick;
@@ -96,6 +110,10 @@ AsyncCursorAdapter.ItemBuilder {
         Date lastUpdate = sDummyDate;
         long maxItemId = 0;
         long oldLastItemId = 0;
+        // Scheduled update is suspended because channel keeps failing.
+        boolean updateSuspended = false;
+        // 'bm' is valid only if 'bmLoaded' is true. ('null' means 'fail to decode'.)
+        boolean bmLoaded = false;
         Bitmap bm = null;
     }
 
@@ -196,7 +214,12 @@ AsyncCursorAdapter.ItemBuilder {
     notifyChannelIconChanged(long cid) {
         P.bug(isUiThread());
         ItemInfo ii = (ItemInfo)getItem(findPosition(cid));
-        ii.bm = mDbp.getChannelImageBitmap(cid);
+        mDbp.releaseChannelImageBitmap(ii.bm);
+        ii.bm = null;
+        ii.bmLoaded = false;
+        // Request in progress may get old icon. So, new request makes it obsolete.
+        mIconRequests.remove(cid);
+        requestIcon(ii);
         notifyDataSetChanged();
     }
 
@@ -220,6 +243,80 @@ AsyncCursorAdapter.ItemBuilder {
         return ((ItemInfo)super.getItem(position)).cid;
     }
 
+    private static Handler
+    getIconLoader() {
+        P.bug(isUiThread());
+        if (null == sIconLoader) {
+            HandlerThread ht = new HandlerThread("ChannIconLoader", Process.THREAD_PRIORITY_BACKGROUND);
+            ht.start();
+            sIconLoader = new Handler(ht.getLooper());
+        }
+        return sIconLoader;
+    }
+
+    /**
+     * Decode icon of the row at background thread.
+     * Row is re-bound when icon is ready. See onIconLoaded().
+     */
+    private void
+    requestIcon(ItemInfo ii) {
+        P.bug(isUiThread());
+        if (ii.bmLoaded
+            || ii.cid < 0
+            || mIconRequests.containsKey(ii.cid))
+            return;
+        final long cid = ii.cid;
+        final Object token = new Object();
+        mIconRequests.put(cid, token);
+        getIconLoader().post(new Runnable() {
+            @Override
+            public void
+            run() {
+                final Bitmap bm = mDbp.acquireChannelImageBitmap(cid);
+                AppEnv.getUiHandler().post(new Runnable() {
+                    @Override
+                    public void
+                    run() {
+                        onIconLoaded(cid, token, bm);
+                    }
+                });
+            }
+        });
+    }
+
+    private void
+    onIconLoaded(long cid, Object token, Bitmap bm) {
+        P.bug(isUiThread());
+        int pos = -1;
+        if (token == mIconRequests.get(cid)) {
+            mIconRequests.remove(cid);
+            pos = findPosition(cid);
+        }
+        ItemInfo ii = (pos >= 0)? (ItemInfo)getItem(pos): null;
+        if (null == ii || ii.bmLoaded) {
+            // Row is gone, icon is already loaded, or request is obsolete.
+            mDbp.releaseChannelImageBitmap(bm);
+            return;
+        }
+        ii.bm = bm;
+        ii.bmLoaded = true;
+        notifyItemDataChanged(cid);
+    }
+
+    /**
+     * Request icons of rows around the position, those are not loaded yet.
+     */
+    private void
+    prefetchIcons(int position) {
+        int from = Math.max(0, position - ICON_PREFETCH_ROWS);
+        int to = Math.min(getCount() - 1, position + ICON_PREFETCH_ROWS);
+        for (int i = from; i <= to; i++) {
+            Object item = getItem(i);
+            if (item instanceof ItemInfo)
+                requestIcon((ItemInfo)item);
+        }
+    }
+
     /**
      * rebind view of given cid only.
      */
@@ -246,7 +343,14 @@ AsyncCursorAdapter.ItemBuilder {
             i.lastUpdate = new Date(getCursorLong(c, ColumnChannel.LASTUPDATE));
             i.maxItemId = mDbp.getItemInfoMaxId(i.cid);
             i.oldLastItemId = mDbp.getChannelInfoLong(i.cid, ColumnChannel.OLDLAST_ITEMID);
-            i.bm = mDbp.getChannelImageBitmap(i.cid);
+            i.updateSuspended = mDbp.isUpdateSuspended(i.cid);
+            // NOTE
+            // Only cached icon is used here.
+            // Decoding icons of all rows in the data window delays showing the window, and holds
+            //   bitmaps of rows far from visible ones. Others are decoded at background when
+            //   the row or it's neighbor is bound. See prefetchIcons().
+            i.bm = mDbp.acquireCachedChannelImageBitmap(i.cid);
+            i.bmLoaded = null != i.bm;
         } catch (StaleDataException e) {
             P.bug(false);
         }
@@ -259,8 +363,10 @@ AsyncCursorAdapter.ItemBuilder {
     destroyItem(AsyncCursorAdapter adapter, Object item) {
         ItemInfo ii = (ItemInfo)item;
         // DO NOT recycle bitmap here!
-        // bitmap is already cached!
+        // bitmap is already cached! Just release it to be reused.
+        mDbp.releaseChannelImageBitmap(ii.bm);
         ii.bm = null;
+        ii.bmLoaded = false;
     }
 
     @Override
@@ -293,7 +399,10 @@ AsyncCursorAdapter.ItemBuilder {
         ibtn.setTag(ii.cid);
         ibtn.setOnClickListener(mPosDnOnClick);
 
-        if (null == ii.bm)
+        if (!ii.bmLoaded)
+            // Being decoded.
+            chIcon.setImageDrawable(null);
+        else if (null == ii.bm)
             // fail to decode.
             chIcon.setImageResource(R.drawable.ic_warn_image);
         else
@@ -308,7 +417,7 @@ AsyncCursorAdapter.ItemBuilder {
         RTTask.RtState rtstate = mRtt.getRtState(t);
         if (DBG) P.v("Update View: " + rtstate.name());
         switch (rtstate) {
-        case IDLE: icon = 0; break;
+        case IDLE: icon = ii.updateSuspended? R.drawable.ic_alert: 0; break;
         case READY: icon = R.drawable.ic_pause; break;
         case RUN: icon = R.drawable.ic_refresh; break;
         case CANCEL: icon = R.drawable.ic_block; break;
@@ -362,5 +471,6 @@ AsyncCursorAdapter.ItemBuilder {
             return;
 
         doBindView(v, (ItemInfo)getItem(position));
+        prefetchIcons(position);
     }
 }
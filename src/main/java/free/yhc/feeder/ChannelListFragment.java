@@ -131,9 +131,11 @@ UnexpectedExceptionHandler.TrackedModule {
 
         void
         register() {
+            // Checked at onResume. See ItemListActivity.DBWatcher.
             DBPolicy.get().registerUpdatedListener(this,
                                                    DB.UpdateType.CHANNEL_TABLE.flag()
-                                                   | DB.UpdateType.CHANNEL_DATA.flag());
+                                                   | DB.UpdateType.CHANNEL_DATA.flag(),
+                                                   true);
         }
 
         void
@@ -421,7 +423,7 @@ UnexpectedExceptionHandler.TrackedModule {
         case READY:
             if (DBG) P.v("ChannelUpdate: RUN/READY => cancel");
             assert null != t;
-            mRtt.cancelTask(t);
+            mRtt.cancelUpdate(t);
             // to change icon into "canceling"
             itemDataChanged(cid);
             break;
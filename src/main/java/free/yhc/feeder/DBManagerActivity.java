@@ -42,10 +42,14 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.Locale;
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.res.Configuration;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
@@ -76,6 +80,7 @@ import free.yhc.feeder.core.Environ;
 import free.yhc.feeder.core.Err;
 import free.yhc.feeder.core.RTTask;
 import free.yhc.feeder.core.UnexpectedExceptionHandler;
+import free.yhc.feeder.core.UpdateTelemetry;
 
 public class DBManagerActivity extends Activity implements
 UnexpectedExceptionHandler.TrackedModule {
@@ -87,6 +92,8 @@ UnexpectedExceptionHandler.TrackedModule {
 
     private static final long ID_ALL_CHANNEL = -1;
     private static final int POS_ALL_CHANNEL = -1;
+    // Number of channels shown at 'slowest channels' of update statistics.
+    private static final int NR_SLOWEST_CHANNELS = 5;
 
     private final DBPolicy mDbp = DBPolicy.get();
     private final RTTask mRtt = RTTask.get();
@@ -461,6 +468,113 @@ UnexpectedExceptionHandler.TrackedModule {
             P.bug();
     }
 
+    private void
+    exportUpdateStatsAsync(final LinkedList<UpdateTelemetry.Run> runs) {
+        final File f = new File(Environ.get().getAppRootDirectoryPath() + "/"
+                                + getResources().getText(R.string.app_name) + "_update_stats.csv");
+        Task t = new Task<Void>() {
+            @Override
+            protected Void
+            doAsync() {
+                Err err = Err.NO_ERR;
+                try {
+                    UpdateTelemetry.exportCsv(runs, f);
+                } catch (IOException e) {
+                    err = Err.IO_FILE;
+                }
+                final Err r = err;
+                AppEnv.getUiHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (Err.NO_ERR == r)
+                            UxUtil.showTextToast(getResources().getText(R.string.exported_to)
+                                                 + " : " + f.getAbsolutePath());
+                        else
+                            UxUtil.showTextToast(r.getMsgId());
+                    }
+                });
+                return null;
+            }
+        };
+
+        DialogTask.Builder<DialogTask.Builder> bldr
+                = new DialogTask.Builder<>(this, t);
+        bldr.setMessage(R.string.exporting);
+        if (!bldr.create().start())
+            P.bug();
+    }
+
+    private void
+    showUpdateStats(final LinkedList<UpdateTelemetry.Run> runs, CharSequence text) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.update_stats);
+        builder.setMessage(text);
+        if (!runs.isEmpty()) {
+            builder.setPositiveButton(R.string.export_csv, new DialogInterface.OnClickListener() {
+                @Override
+                public void
+                onClick(DialogInterface dialog, int which) {
+                    exportUpdateStatsAsync(runs);
+                }
+            });
+        }
+        builder.setNegativeButton(R.string.ok, null);
+        builder.create().show();
+    }
+
+    /**
+     * Show p50/p95 of each update stage and slowest channels.
+     */
+    private void
+    loadUpdateStatsAsync() {
+        Task t = new Task<Void>() {
+            @Override
+            protected Void
+            doAsync() {
+                final LinkedList<UpdateTelemetry.Run> runs = mDbp.getUpdTelems();
+                final StringBuilder sbldr = new StringBuilder();
+                if (runs.isEmpty())
+                    sbldr.append(getResources().getText(R.string.no_update_stats));
+                else {
+                    sbldr.append(getResources().getText(R.string.nr_update_runs))
+                         .append(" : ").append(runs.size()).append("\n\n")
+                         .append("[ p50 / p95 ]\n");
+                    for (UpdateTelemetry.StageStat ss : UpdateTelemetry.getStageStats(runs)) {
+                        sbldr.append(ss.stage.name().toLowerCase(Locale.US))
+                             .append(" : ").append(ss.p50)
+                             .append(" / ").append(ss.p95).append(" ms\n");
+                    }
+                    long[] cancel = UpdateTelemetry.getCancelLatencyStat(runs);
+                    if (cancel[2] > 0)
+                        sbldr.append("cancel : ").append(cancel[0])
+                             .append(" / ").append(cancel[1]).append(" ms\n");
+                    sbldr.append("\n[ ").append(getResources().getText(R.string.slowest_channels))
+                         .append(" ]\n");
+                    for (UpdateTelemetry.ChannelStat cs
+                            : UpdateTelemetry.getSlowestChannels(runs, NR_SLOWEST_CHANNELS)) {
+                        String title = mDbp.getChannelInfoString(cs.cid, ColumnChannel.TITLE);
+                        sbldr.append(null == title? "" + cs.cid: title)
+                             .append(" : ").append(cs.avgTotal)
+                             .append(" ms (max ").append(cs.maxTotal)
+                             .append(" ms, ").append(cs.nrRuns).append(")\n");
+                    }
+                }
+                AppEnv.getUiHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        showUpdateStats(runs, sbldr);
+                    }
+                });
+                return null;
+            }
+        };
+        DialogTask.Builder<DialogTask.Builder> bldr
+                = new DialogTask.Builder<>(this, t);
+        bldr.setMessage(R.string.analyzing_db);
+        if (!bldr.create().start())
+            P.bug();
+    }
+
     /**
      *
      * @param cid ID_ALL_CHANNEL for all channels - entire item table.
@@ -545,6 +659,13 @@ UnexpectedExceptionHandler.TrackedModule {
             }
         });
 
+        (findViewById(R.id.update_stats)).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                loadUpdateStatsAsync();
+            }
+        });
+
         onDBChanged(ID_ALL_CHANNEL, 0);
     }
 
@@ -56,6 +56,7 @@ import free.yhc.feeder.db.DB;
 import free.yhc.feeder.db.DBPolicy;
 import free.yhc.feeder.core.ContentsManager;
 import free.yhc.feeder.core.Environ;
+import free.yhc.feeder.core.HostGate;
 import free.yhc.feeder.core.RTTask;
 import free.yhc.feeder.core.UnexpectedExceptionHandler;
 import free.yhc.feeder.core.UsageReport;
@@ -152,6 +153,9 @@ public class FeederApp extends Application {
         // And most modules uses application context in it's early stage - ex. constructor.
         Util.init();
 
+        // Before any network connection is opened.
+        HostGate.configureKeepAlive();
+
         // register default customized uncaught exception handler for error collecting.
         Thread.setDefaultUncaughtExceptionHandler(UnexpectedExceptionHandler.get());
         DB.get().open();
@@ -174,6 +178,14 @@ public class FeederApp extends Application {
         // Application is about to be killed.
         // Remove all non-sticky notification.
         NotiManager.get().removeAllNonStickyNotification();
+        DBPolicy.get().trimChannelImageCache(TRIM_MEMORY_COMPLETE);
         super.onLowMemory();
     }
+
+    @Override
+    public void
+    onTrimMemory(int level) {
+        DBPolicy.get().trimChannelImageCache(level);
+        super.onTrimMemory(level);
+    }
 }
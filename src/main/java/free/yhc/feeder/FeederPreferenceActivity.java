@@ -38,9 +38,11 @@ package free.yhc.feeder;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Calendar;
 
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceManager;
 
@@ -48,6 +50,8 @@ import free.yhc.baselib.Logger;
 import free.yhc.abaselib.util.UxUtil;
 import free.yhc.feeder.core.Environ;
 import free.yhc.feeder.core.UnexpectedExceptionHandler;
+import free.yhc.feeder.core.Util;
+import free.yhc.feeder.task.DownloadManager;
 
 public class FeederPreferenceActivity extends PreferenceActivity implements
 SharedPreferences.OnSharedPreferenceChangeListener,
@@ -86,9 +90,48 @@ UnexpectedExceptionHandler.TrackedModule {
                 }
                 mAppRootOld = appRoot;
             }
+        } else if (key.equals(Util.getResString(R.string.csadaptive_update))
+                   || key.equals(Util.getResString(R.string.csadaptive_min_interval))
+                   || key.equals(Util.getResString(R.string.csadaptive_max_interval))
+                   || key.equals(Util.getResString(R.string.csbatch_update_alarm))) {
+            // Scheduling policy is changed.
+            ScheduledUpdateService.scheduleNextUpdate(Calendar.getInstance());
+            updateBatchUpdateAlarmSummary();
+        } else if (key.equals(Util.getResString(R.string.csmaxnr_download))) {
+            updateMaxNrDownloadSummary();
         }
     }
 
+    /**
+     * Downloads are run by background task workers, and number of them depends on device.
+     * Show it if preference exceeds it. Otherwise, user doesn't know why it isn't effective.
+     */
+    private void
+    updateMaxNrDownloadSummary() {
+        Preference pref = findPreference(Util.getResString(R.string.csmaxnr_download));
+        if (null == pref)
+            return;
+        int max = DownloadManager.getMaxNrSlots();
+        String summary = getString(R.string.pref_maxnr_download_desc);
+        if (Util.getPrefMaxNrDownload() > max)
+            summary += "\n" + getString(R.string.download_slots_capped, max);
+        pref.setSummary(summary);
+    }
+
+    /**
+     * Show how many wakeups are saved by batching, at current schedule.
+     */
+    private void
+    updateBatchUpdateAlarmSummary() {
+        Preference pref = findPreference(Util.getResString(R.string.csbatch_update_alarm));
+        if (null == pref)
+            return;
+        int[] nrs = ScheduledUpdateService.estimateWakeupsPerDay();
+        pref.setSummary(getString(R.string.pref_batch_update_alarm_desc)
+                        + "\n"
+                        + getString(R.string.wakeups_per_day, nrs[0], nrs[1]));
+    }
+
     @Override
     protected void
     onCreate(Bundle savedInstanceState) {
@@ -99,6 +142,8 @@ UnexpectedExceptionHandler.TrackedModule {
         mAppRootOld = prefs.getString(Environ.PREF_KEY_APP_ROOT, null);
         prefs.registerOnSharedPreferenceChangeListener(this);
         P.bug(null != mAppRootOld);
+        updateBatchUpdateAlarmSummary();
+        updateMaxNrDownloadSummary();
     }
 
     @Override
@@ -150,9 +150,12 @@ UnexpectedExceptionHandler.TrackedModule {
 
         void
         register() {
+            // Checked at onResume. So, changes notified before resuming should be delivered
+            //   before onResume.
             DBPolicy.get().registerUpdatedListener(this,
                                                   DB.UpdateType.CHANNEL_DATA.flag()
-                                                  | DB.UpdateType.ITEM_TABLE.flag());
+                                                  | DB.UpdateType.ITEM_TABLE.flag(),
+                                                  true);
         }
 
         void
@@ -793,7 +796,7 @@ UnexpectedExceptionHandler.TrackedModule {
                 P.bug(mOpMode instanceof OpModeChannel);
                 UpdateTask t = mRtt.getUpdateTask(mOpMode.getCids()[0]);
                 if (null != t)
-                    mRtt.cancelTask(t, null);
+                    mRtt.cancelUpdate(t);
                 requestSetUpdateButton();
             }
         });
@@ -62,6 +62,7 @@ import free.yhc.feeder.core.ContentsManager;
 import free.yhc.feeder.feed.Feed;
 import free.yhc.feeder.core.RTTask;
 import free.yhc.feeder.core.UnexpectedExceptionHandler;
+import free.yhc.feeder.task.DownloadManager;
 import free.yhc.feeder.task.DownloadTask;
 
 public class ItemListAdapter extends AsyncCursorListAdapter implements
@@ -419,9 +420,15 @@ AsyncCursorAdapter.ItemBuilder {
                 imgv.setImageResource(R.drawable.download_anim0);
                 break;
 
-            case READY:
+            case READY: {
                 imgv.setImageResource(R.drawable.ic_pause);
-                break;
+                // Download waits for it's turn at DownloadManager.
+                int qpos = DownloadManager.get().getQueuePosition(ii.id);
+                if (qpos > 0) {
+                    progressv.setText("#" + qpos);
+                    progressv.setVisibility(View.VISIBLE);
+                }
+            } break;
 
             case RUN:
                 //noinspection ResourceType
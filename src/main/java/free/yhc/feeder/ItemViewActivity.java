@@ -210,8 +210,11 @@ UnexpectedExceptionHandler.TrackedModule {
     private void
     cancelDownload() {
         DownloadTask t = mRtt.getDownloadTask(mId);
-        if (null != t)
-            mRtt.cancelTask(t, null);
+        if (null == t)
+            return;
+        mRtt.cancelDownload(t);
+        // Download waiting for slot is dropped without any event.
+        postSetupLayout();
     }
 
     private void
@@ -36,8 +36,11 @@
 
 package free.yhc.feeder;
 
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -57,6 +60,7 @@ import free.yhc.baselib.async.TaskBase;
 import free.yhc.abaselib.util.UxUtil;
 import free.yhc.feeder.core.Environ;
 import free.yhc.feeder.core.Util;
+import free.yhc.feeder.task.UpdatePlanner;
 import free.yhc.feeder.task.UpdateTask;
 import free.yhc.feeder.db.ColumnChannel;
 import free.yhc.feeder.db.DBPolicy;
@@ -82,12 +86,26 @@ UnexpectedExceptionHandler.TrackedModule {
     private static final String CMD_ALARM = "alarm";
     private static final String CMD_RESCHED = "resched";
     private static final String CMD_UPDATE = "update";
+    private static final String CMD_DEFERRED = "deferred";
 
     private static final String KEY_CMD = "cmd";
     private static final String KEY_TIME = "time";
     private static final String KEY_CHANS = "chans";
 
     private static final int RETRY_DELAY = 1000; // ms
+    // At adaptive scheduled update, alarm is set at least this amount of time after.
+    private static final long ADAPTIVE_MIN_DELAY = 60 * 1000; // ms
+    // Channels that doesn't fit in time budget of scheduled update, are updated this amount of
+    //   time after.
+    private static final long DEFER_DELAY = 15 * 60 * 1000; // ms
+    // At batched scheduled update, one wakeup serves all channels planned within this window.
+    private static final long BATCH_WINDOW = 10 * 60 * 1000; // ms
+    // At batched scheduled update, alarm is shifted by per-install value less than this.
+    // So, installs having same schedule don't access popular feed hosts at the same moment.
+    private static final long BATCH_MAX_JITTER = 5 * 60 * 1000; // ms
+    // Request codes of alarm's pending intent.
+    private static final int ALARM_REQ_SCHED = 0;
+    private static final int ALARM_REQ_DEFERRED = 1;
 
     // Number of running service command
     // This is used to check whether there is running scheduled update service instance or not.
@@ -100,6 +118,13 @@ UnexpectedExceptionHandler.TrackedModule {
     //   scheduled update is re-enabled again.
     private static boolean mEnabled = true;
 
+    // Channels waiting for deferred update alarm at fixed-time scheduled update.
+    // NOTE
+    // This variable only be accessed by main UI thread!
+    // This is not persistent. If process is killed, deferred channels are updated at their next
+    //   scheduled time.
+    private static final LinkedHashSet<Long> sDeferred = new LinkedHashSet<>();
+
     private final DBPolicy mDbp = DBPolicy.get();
     private final RTTask mRtt = RTTask.get();
     private final UpdateTaskListener mUpdateTaskListener = new UpdateTaskListener();
@@ -153,7 +178,12 @@ UnexpectedExceptionHandler.TrackedModule {
                 return;
             }
             Intent svc = new Intent(context, ScheduledUpdateService.class);
-            svc.putExtra(KEY_CMD, CMD_ALARM);
+            long[] cids = intent.getLongArrayExtra(KEY_CHANS);
+            if (null != cids) {
+                svc.putExtra(KEY_CMD, CMD_DEFERRED);
+                svc.putExtra(KEY_CHANS, cids);
+            } else
+                svc.putExtra(KEY_CMD, CMD_ALARM);
             svc.putExtra(KEY_TIME, time);
             // onStartCommand will be sent!
             context.startService(svc);
@@ -167,8 +197,12 @@ UnexpectedExceptionHandler.TrackedModule {
         private void
         handleTaskDone(@NonNull UpdateTask task) {
             P.bug(mTaskCnt.get() > 0);
-            if (0 >= mTaskCnt.decrementAndGet())
+            if (0 >= mTaskCnt.decrementAndGet()) {
+                // Schedules are re-estimated by updates.
+                if (Util.isPrefAdaptiveUpdate())
+                    scheduleNextUpdate(Calendar.getInstance());
                 stopSelf();
+            }
         }
 
         @Override
@@ -310,7 +344,81 @@ UnexpectedExceptionHandler.TrackedModule {
         } else if (dayms0 < dayms1) {
             out[0] = dayms1 - dayms0;
             out[1] = Util.DAY_IN_MS - out[0];
+        } else
+            out[0] = out[1] = 0;
+    }
+
+    /**
+     * Channels planned within this amount of time after wakeup, are updated together.
+     */
+    private static long
+    getBatchWindow() {
+        return Util.isPrefBatchUpdateAlarm()? BATCH_WINDOW: 0;
+    }
+
+    /**
+     * Alarm is set this amount of time after planned time.
+     */
+    private static long
+    getAlarmJitter() {
+        return Util.isPrefBatchUpdateAlarm()? Util.getInstallRandom() % BATCH_MAX_JITTER: 0;
+    }
+
+    /**
+     * Count wakeups needed for given planned times.
+     * @param times sorted.
+     * @param window planned times within this window from a wakeup, are served by the wakeup.
+     */
+    private static int
+    countWakeups(long[] times, long window) {
+        int nr = 0;
+        long end = Long.MIN_VALUE;
+        for (long t : times) {
+            if (t > end) {
+                nr++;
+                end = t + window;
+            }
         }
+        return nr;
+    }
+
+    /**
+     * Estimate number of wakeups for scheduled update in one day from now, at current schedule.
+     * @return [0] : without batching. [1] : with batching.
+     */
+    static int[]
+    estimateWakeupsPerDay() {
+        long now = System.currentTimeMillis();
+        long end = now + Util.DAY_IN_MS;
+        long[] cids = getScheduledChannels();
+        LinkedList<Long> l = new LinkedList<>();
+        if (Util.isPrefAdaptiveUpdate()) {
+            long[] times = DBPolicy.get().getSchedNextUpdateTimes(cids);
+            long[] intervals = DBPolicy.get().getSchedIntervals(cids);
+            for (int i = 0; i < cids.length; i++) {
+                for (long t = Math.max(times[i], now); t < end; t += intervals[i])
+                    l.add(t);
+            }
+        } else {
+            Calendar calNow = Calendar.getInstance();
+            long daybase = Util.dayBaseMs(calNow);
+            Cursor c = DBPolicy.get().queryChannel(ColumnChannel.SCHEDUPDATETIME);
+            if (c.moveToFirst()) {
+                do {
+                    String sStr = c.getString(0);
+                    if (!Util.isValidValue(sStr))
+                        continue;
+                    for (long s : Util.nStringToNrs(sStr)) {
+                        long t = daybase + Util.secToMs(s);
+                        l.add(t < now? t + Util.DAY_IN_MS: t);
+                    }
+                } while (c.moveToNext());
+            }
+            c.close();
+        }
+        long[] times = convertArrayLongTolong(l.toArray(new Long[l.size()]));
+        Arrays.sort(times);
+        return new int[] { countWakeups(times, 0), countWakeups(times, BATCH_WINDOW) };
     }
 
     /**
@@ -329,12 +437,110 @@ UnexpectedExceptionHandler.TrackedModule {
         // LifeSupportService.getWakeLock();
     }
 
+    /**
+     * Get channels those are scheduled to be updated.
+     * Channel that doesn't have any scheduled update time, is not updated by this service.
+     */
+    private static long[]
+    getScheduledChannels() {
+        Cursor c = DBPolicy.get().queryChannel(new ColumnChannel[] {
+                ColumnChannel.ID,
+                ColumnChannel.SCHEDUPDATETIME });
+        LinkedList<Long> chl = new LinkedList<>();
+        if (c.moveToFirst()) {
+            do {
+                if (Util.isValidValue(c.getString(1)))
+                    chl.add(c.getLong(0));
+            } while (c.moveToNext());
+        }
+        c.close();
+        return convertArrayLongTolong(chl.toArray(new Long[chl.size()]));
+    }
+
+    /**
+     * At adaptive scheduled update, fixed update times of channel are ignored.
+     * Each channel is updated at the time decided by DBPolicy from it's publish history.
+     * @return time to go until nearest next update. '< 0' if there is no update to schedule.
+     */
+    private static long
+    nearestAdaptiveUpdate(Calendar calNow) {
+        long[] cids = getScheduledChannels();
+        if (0 == cids.length)
+            return -1;
+        long nearest = Long.MAX_VALUE;
+        for (long t : DBPolicy.get().getSchedNextUpdateTimes(cids)) {
+            if (t < nearest)
+                nearest = t;
+        }
+        nearest -= calNow.getTimeInMillis();
+        return nearest < ADAPTIVE_MIN_DELAY? ADAPTIVE_MIN_DELAY: nearest;
+    }
+
+    /**
+     * @param cids channels to update at deferred alarm. 'null' for scheduled update alarm.
+     */
+    private static void
+    setAlarm(int reqCode, long time, long[] cids) {
+        Context cxt = AppEnv.getAppContext();
+        Intent intent = new Intent(cxt, AlarmReceiver.class);
+        intent.setAction(SCHEDUPDATE_INTENT_ACTION);
+        intent.putExtra("time", time);
+        if (null != cids)
+            intent.putExtra(KEY_CHANS, cids);
+        intent.addFlags(Intent.FLAG_INCLUDE_STOPPED_PACKAGES);
+        PendingIntent pIntent = PendingIntent.getBroadcast(
+                cxt,
+                reqCode,
+                intent,
+                PendingIntent.FLAG_CANCEL_CURRENT);
+        // Get the AlarmManager service
+        AlarmManager am = (AlarmManager)cxt.getSystemService(ALARM_SERVICE);
+        am.set(AlarmManager.RTC_WAKEUP, time, pIntent);
+    }
+
+    private static void
+    setUpdateAlarm(long time) {
+        setAlarm(ALARM_REQ_SCHED, time, null);
+        if (DBG) P.v("New nearest scheduled update is set! " + (time / 1000) + " sec.");
+    }
+
+    /**
+     * Should be called on main UI thread.
+     */
+    private static void
+    setDeferredUpdateAlarm(long time, long[] cids) {
+        P.bug(isUiThread());
+        // Previous deferred alarm is replaced. So, channels of it are merged.
+        for (long cid : cids)
+            sDeferred.add(cid);
+        setAlarm(ALARM_REQ_DEFERRED,
+                 time,
+                 convertArrayLongTolong(sDeferred.toArray(new Long[sDeferred.size()])));
+        if (DBG) P.v("Deferred update is set! " + (time / 1000) + " sec. : " + sDeferred.size());
+    }
+
     /**
      * NOTE
      * Next updates which are at least 1-min after, will be scheduled.
      */
     static void
     scheduleNextUpdate(Calendar calNow) {
+        scheduleNextUpdate(calNow, 0);
+    }
+
+    /**
+     * @param served planned times within this amount of time from 'calNow' are already served.
+     *               Only used at fixed-time scheduled update.
+     */
+    private static void
+    scheduleNextUpdate(Calendar calNow, long served) {
+        if (Util.isPrefAdaptiveUpdate()) {
+            long next = nearestAdaptiveUpdate(calNow);
+            if (next >= 0)
+                setUpdateAlarm(calNow.getTimeInMillis() + next + getAlarmJitter());
+            return;
+        }
+
         long daybase = Util.dayBaseMs(calNow);
         long dayms = calNow.getTimeInMillis() - daybase;
         if (dayms < 0)
@@ -365,35 +571,26 @@ UnexpectedExceptionHandler.TrackedModule {
                     dayBasedDistanceMs(out, dayms, sms);
 
                     // out[0] is time to go from 'dayms' to 'hms'
-                    if (out[0] < nearestNext)
+                    if (out[0] < nearestNext
+                        && (0 == served || out[0] > served))
                         nearestNext = out[0];
                 }
             }
         } while (c.moveToNext());
         c.close();
 
-        if (nearestNext != invalidNearestNext) {
-            Context cxt = AppEnv.getAppContext();
+        if (nearestNext != invalidNearestNext)
             // convert into real time.
-            nearestNext += calNow.getTimeInMillis();
-            Intent intent = new Intent(cxt, AlarmReceiver.class);
-            intent.setAction(SCHEDUPDATE_INTENT_ACTION);
-            intent.putExtra("time", nearestNext);
-            intent.addFlags(Intent.FLAG_INCLUDE_STOPPED_PACKAGES);
-            PendingIntent pIntent = PendingIntent.getBroadcast(
-                    cxt,
-                    0,
-                    intent,
-                    PendingIntent.FLAG_CANCEL_CURRENT);
-            // Get the AlarmManager service
-            AlarmManager am = (AlarmManager)cxt.getSystemService(ALARM_SERVICE);
-            am.set(AlarmManager.RTC_WAKEUP, nearestNext, pIntent);
-            if (DBG) P.v("New nearest scheduled update is set! " + (nearestNext / 1000) + " sec.");
-        }
+            setUpdateAlarm(nearestNext + calNow.getTimeInMillis() + getAlarmJitter());
     }
 
-    private void
+    /**
+     * @return tasks started by this call. Channel whose update is already in action is skipped.
+     */
+    @NonNull
+    private LinkedList<UpdateTask>
     startUpdates(int startId, long[] cids) {
+        LinkedList<UpdateTask> started = new LinkedList<>();
         for (long cid : cids) {
             // NOTE
             // onStartCommand() is run on UIThread.
@@ -415,9 +612,69 @@ UnexpectedExceptionHandler.TrackedModule {
                 if (mRtt.addTask(t, cid, RTTask.Action.UPDATE)) {
                     t.addEventListener(AppEnv.getUiHandlerAdapter(), mUpdateTaskListener);
                     mTaskCnt.incrementAndGet();
+                    started.add(t);
                 } else if (DBG) P.w("doCmdAlarm : starts duplicated update! : " + cid);
             }
         }
+        return started;
+    }
+
+    /**
+     * Channels are updated later as a whole.
+     */
+    private void
+    deferUpdates(long[] cids, long now) {
+        if (0 == cids.length)
+            return;
+        if (Util.isPrefAdaptiveUpdate()) {
+            // Picked up by alarm of adaptive update.
+            for (long cid : cids)
+                mDbp.deferSched(cid, now + DEFER_DELAY);
+        } else
+            setDeferredUpdateAlarm(now + DEFER_DELAY, cids);
+    }
+
+    /**
+     * Start updates of channels in order of priority, within time budget.
+     * See UpdatePlanner.
+     */
+    private void
+    startBudgetedUpdates(int startId, long[] cids, long now) {
+        UpdatePlanner.Plan plan = UpdatePlanner.plan(cids, now);
+        if (Util.isPrefAdaptiveUpdate()) {
+            // Postpone before starting. So, failed update is not retried at next alarm immediately.
+            for (long cid : plan.run)
+                mDbp.postponeSched(cid, now);
+        }
+        final LinkedList<UpdateTask> started = startUpdates(startId, plan.run);
+        deferUpdates(plan.deferred, now);
+        if (plan.budget <= 0
+            || started.isEmpty())
+            return;
+
+        // Estimation may be wrong.
+        // Updates that are not started yet when budget is over, are cancelled and deferred.
+        // Running one is not stopped. It is kept to be done - not partially run.
+        // Only tasks started here are cancelled. Update of same channel may be running already,
+        //   or started by user after this. They are not touched.
+        AppEnv.getUiHandler().postDelayed(new Runnable() {
+            @Override
+            public void
+            run() {
+                LinkedList<Long> l = new LinkedList<>();
+                for (UpdateTask t : started) {
+                    if (RTTask.RtState.READY == mRtt.getRtState(t)) {
+                        // Task waiting for slot of it's host is dropped without any event.
+                        if (mRtt.cancelUpdate(t))
+                            mUpdateTaskListener.handleTaskDone(t);
+                        l.add(t.getChannelId());
+                    }
+                }
+                if (DBG) P.v("Time budget is over. Deferred : " + l.size());
+                deferUpdates(convertArrayLongTolong(l.toArray(new Long[l.size()])),
+                             System.currentTimeMillis());
+            }
+        }, plan.budget);
     }
 
     private void
@@ -443,6 +700,12 @@ UnexpectedExceptionHandler.TrackedModule {
             return;
         }
 
+        if (Util.isPrefAdaptiveUpdate()) {
+            doAdaptiveUpdates(startId, calNow);
+            scheduleNextUpdate(calNow);
+            return;
+        }
+
         // If we get killed, after returning from here, restart
         Cursor c = mDbp.queryChannel(new ColumnChannel[] {
                 ColumnChannel.ID,
@@ -461,6 +724,10 @@ UnexpectedExceptionHandler.TrackedModule {
         // So, service should run scheduled-update whose planed-sched-time is
         //   between 'schedTime' and 'current'.
         long schedError = calNow.getTimeInMillis() - schedTime;
+        // Alarm is set 'jitter' after planned time.
+        // And channels planned within 'window' from now are also served by this wakeup.
+        long jitter = getAlarmJitter();
+        long window = getBatchWindow();
         LinkedList<Long> chl = new LinkedList<>();
         do {
             String sStr = c.getString(iTime);
@@ -475,14 +742,25 @@ UnexpectedExceptionHandler.TrackedModule {
 
                 // out[1] is time to go from 'hms' to 'dayms'
                 // This means 'time passed since 'hms' because 'dayms' is current time.
-                if (out[1] <= schedError)
+                // out[0] is time to go from 'dayms' to 'hms'
+                if (out[1] <= schedError + jitter
+                    || (window > 0 && out[0] <= window))
                     chl.add(cid);
             }
         } while (c.moveToNext());
         c.close();
 
+        // Channels keep failing are skipped until their backoff is over.
+        Iterator<Long> iter = chl.iterator();
+        while (iter.hasNext()) {
+            long cid = iter.next();
+            if (mDbp.isUpdateBackedOff(cid, calNow.getTimeInMillis())) {
+                if (DBG) P.v("Update is backed off : " + cid);
+                iter.remove();
+            }
+        }
         long[] cids = convertArrayLongTolong(chl.toArray(new Long[chl.size()]));
-        startUpdates(startId, cids);
+        startBudgetedUpdates(startId, cids, calNow.getTimeInMillis());
 
         // register next scheduled-update.
         // NOTE
@@ -492,10 +770,40 @@ UnexpectedExceptionHandler.TrackedModule {
         //   But, some channels may be scheduled between these two time - 'calNow' and Real-Now.
         //   If Real-Now is chosen as current calendar, tasks mentioned at above line, is missed from scheduled-update!
         //   So, 'calNow' should be used as current calendar!
-        scheduleNextUpdate(calNow);
+        scheduleNextUpdate(calNow, window);
     }
 
 
+    private void
+    doAdaptiveUpdates(int startId, Calendar calNow) {
+        long now = calNow.getTimeInMillis();
+        long[] cids = getScheduledChannels();
+        long[] times = mDbp.getSchedNextUpdateTimes(cids);
+        LinkedList<Long> chl = new LinkedList<>();
+        // Channels planned within batch window are also served by this wakeup.
+        long window = getBatchWindow();
+        for (int i = 0; i < cids.length; i++) {
+            if (times[i] <= now + window)
+                chl.add(cids[i]);
+        }
+        startBudgetedUpdates(startId, convertArrayLongTolong(chl.toArray(new Long[chl.size()])), now);
+    }
+
+    private void
+    doCmdDeferred(int startId, long[] cids) {
+        if (DBG) P.v("DO deferred update!! : " + startId);
+        // Channels in this alarm are handled now.
+        for (long cid : cids)
+            sDeferred.remove(cid);
+        long now = System.currentTimeMillis();
+        LinkedList<Long> chl = new LinkedList<>();
+        for (long cid : cids) {
+            if (!mDbp.isUpdateBackedOff(cid, now))
+                chl.add(cid);
+        }
+        startBudgetedUpdates(startId, convertArrayLongTolong(chl.toArray(new Long[chl.size()])), now);
+    }
+
     @SuppressWarnings("StringConcatenationInsideStringBufferAppend")
     private void
     doCmdUpdate(int startId, long[] cids) {
@@ -528,6 +836,9 @@ UnexpectedExceptionHandler.TrackedModule {
         } else if (CMD_UPDATE.equals(cmd)) {
             long[] cids = intent.getLongArrayExtra(KEY_CHANS);
             doCmdUpdate(startId, cids);
+        } else if (CMD_DEFERRED.equals(cmd)) {
+            long[] cids = intent.getLongArrayExtra(KEY_CHANS);
+            doCmdDeferred(startId, cids);
         } else
             P.bug(false);
 
@@ -0,0 +1,229 @@
+/******************************************************************************
+ * Copyright (C) 2012, 2013, 2014, 2015, 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of FeedHive
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.feeder.core;
+
+import android.os.Build;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import free.yhc.baselib.Logger;
+import free.yhc.feeder.db.DBPolicy;
+
+//
+// Content-addressed index of downloaded item data.
+// Each downloaded URL is recorded with it's validators and SHA-1 hash of data.
+// So, same data referred by several items(ex. cross-posted podcast episode, re-published
+//   item having new id) is NOT downloaded again and stored only once.
+//
+// Data file of item is always at ContentsManager.getItemInfoDataFile().
+// Item shares existing data by hard-link to it. So, deleting data of one item doesn't affect
+//   others sharing it.
+// Data of URL may be changed at server. So, recorded data is reused only if server says it is
+//   not modified since then.(Conditional request with recorded validators.)
+//
+// NOTE
+// Hard-link is available from API 21, and some file systems(ex. FAT of external SD card)
+//   don't support it. In this case data is copied. Bandwidth is saved but storage is not.
+//
+public class ContentIndex {
+    private static final boolean DBG = Logger.DBG_DEFAULT;
+    private static final Logger P = Logger.create(ContentIndex.class, Logger.LOGLV_DEFAULT);
+
+    private static final String HASH_ALGORITHM = "SHA-1";
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+    public interface Revalidator {
+        /**
+         * Ask server whether data of 'rec.url' is changed since it is recorded.
+         * @return true only if server says it is not modified.(ex. 304 Not Modified)
+         */
+        boolean
+        isNotModified(DBPolicy.ContentRec rec) throws IOException;
+    }
+
+    /**
+     * @return null if fails to read file.
+     */
+    public static String
+    hashFile(File f) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            P.bug(false); // SHA-1 SHOULD be always supported.
+            return null;
+        }
+        byte[] buf = new byte[HASH_BUFFER_SIZE];
+        try (FileInputStream fis = new FileInputStream(f)) {
+            int n;
+            while (0 < (n = fis.read(buf)))
+                md.update(buf, 0, n);
+        } catch (IOException e) {
+            return null;
+        }
+        return IconStore.toHex(md.digest());
+    }
+
+    private static boolean
+    link(File src, File dst) {
+        // NOTE
+        // Classes of API 21 SHOULD NOT be referred by this class. See HardLink.
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+               && HardLink.link(src, dst);
+    }
+
+    private static boolean
+    copy(File src, File dst) {
+        try (FileChannel in = new FileInputStream(src).getChannel();
+             FileChannel out = new FileOutputStream(dst).getChannel()) {
+            long sz = in.size();
+            long pos = 0;
+            while (pos < sz)
+                pos += in.transferTo(pos, sz - pos, out);
+            return true;
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            dst.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Replace 'dst' with data of 'src'.
+     * Temp file is used to make sure that 'dst' is always complete one.
+     */
+    private static boolean
+    share(File src, File dst, boolean allowCopy) {
+        File tmpf = new File(dst.getAbsolutePath() + ".share");
+        //noinspection ResultOfMethodCallIgnored
+        tmpf.delete();
+        if (!link(src, tmpf)
+            && (!allowCopy || !copy(src, tmpf)))
+            return false;
+        if (!tmpf.renameTo(dst)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmpf.delete();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Find data file having given content.
+     * @param exclude this file is not regarded as candidate.
+     * @return null if there is no valid one.
+     */
+    private static File
+    findBlob(DBPolicy.ContentRec rec, File exclude) {
+        ContentsManager cm = ContentsManager.get();
+        for (DBPolicy.ContentRec r : DBPolicy.get().getContentRecsByHash(rec.hash)) {
+            if (r.length != rec.length)
+                continue;
+            // Item may be deleted, or it's data may be removed or modified by user.
+            File f = cm.getItemInfoDataFile(r.id);
+            if (null == f
+                || f.equals(exclude)
+                || !f.isFile()
+                || f.length() != r.length
+                || !rec.hash.equals(hashFile(f)))
+                continue;
+            return f;
+        }
+        return null;
+    }
+
+    /**
+     * Make data file of item 'id' from already downloaded data of 'url', if possible.
+     * This SHOULD be called at background thread. Hash of candidate file is verified.
+     * @param rv data is reused only if it is not modified at server.
+     *           Request is sent only if there is valid local data.
+     * @return true if 'outFile' is ready. Otherwise data should be downloaded. Then
+     *         {@link ContentIndex#record(String, String, String, long, File)} updates record.
+     */
+    public static boolean
+    reuse(String url, long id, File outFile, Revalidator rv) throws IOException {
+        DBPolicy dbp = DBPolicy.get();
+        DBPolicy.ContentRec rec = dbp.getContentRecByUrl(url);
+        if (null == rec)
+            return false;
+        File src = findBlob(rec, outFile);
+        if (null == src)
+            return false;
+        if (!rv.isNotModified(rec)) {
+            if (DBG) P.v("Recorded data of " + url + " is modified or can't be validated");
+            return false;
+        }
+        if (!share(src, outFile, true))
+            return false;
+        if (DBG) P.v("Reuse data of " + url + " : " + src.getName() + " -> " + outFile.getName());
+        // Newly shared file has same content. And it is from same url.
+        // Record is kept, but it points to the latest item.
+        // This makes record alive even if old item is deleted.
+        dbp.putContentRec(new DBPolicy.ContentRec(url, rec.hash, rec.etag, rec.lastModified,
+                                                  rec.length, id));
+        return true;
+    }
+
+    /**
+     * Record data that is newly downloaded from 'url' to data file of item 'id'.
+     * If same content is already stored by other item, 'f' is replaced with hard-link to it.
+     * This SHOULD be called at background thread.
+     * @param etag 'ETag' of response. Empty string if unknown.
+     * @param lastModified 'Last-Modified' of response. Empty string if unknown.
+     */
+    public static void
+    record(String url, String etag, String lastModified, long id, File f) {
+        String hash = hashFile(f);
+        if (null == hash)
+            return;
+        DBPolicy.ContentRec rec = new DBPolicy.ContentRec(url, hash, etag, lastModified,
+                                                          f.length(), id);
+        File src = findBlob(rec, f);
+        // Copying doesn't save anything here.
+        if (null != src
+            && share(src, f, false)) {
+            if (DBG) P.v("Dedupe data " + f.getName() + " -> " + src.getName());
+        }
+        DBPolicy.get().putContentRec(rec);
+    }
+}
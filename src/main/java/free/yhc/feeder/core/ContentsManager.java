@@ -463,6 +463,41 @@ UnexpectedExceptionHandler.TrackedModule {
         }
     }
 
+    // ------------------------------------------------------------------------
+    // Partially downloaded item data.
+    // ------------------------------------------------------------------------
+    /**
+     * Directory of partially downloaded item data.
+     * This is NOT at channel directory. So, partial files are never regarded as item contents.
+     */
+    public File
+    getPartialDir() {
+        return new File(Environ.get().getAppRootDirectoryPath() + "/.partial");
+    }
+
+    /**
+     * Partially downloaded data of item is kept at this file until download is completed.
+     * File name is fixed by item id. So, it is found again even after process is restarted.
+     */
+    public File
+    getItemPartialFile(long id) {
+        return new File(getPartialDir(), id + ".part");
+    }
+
+    /**
+     * @return -1 if 'fname' is not name of partial file.
+     */
+    public long
+    getIdFromPartialFileName(String fname) {
+        if (!fname.endsWith(".part"))
+            return -1;
+        try {
+            return Long.parseLong(fname.substring(0, fname.length() - ".part".length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     public boolean
     addItemContent(File f, long id) {
         File itemContentFile = ContentsManager.get().getItemInfoDataFile(id);
@@ -0,0 +1,246 @@
+/******************************************************************************
+ * Copyright (C) 2012, 2013, 2014, 2015, 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of FeedHive
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.feeder.core;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.support.annotation.NonNull;
+
+import free.yhc.baselib.Logger;
+
+//
+// Limits number of concurrent network requests to same host.
+// Many channels are hosted at same host(ex. feedburner).
+// Opening many connections to one host at once may be throttled by the host, and makes
+//   lots of TCP/TLS handshakes.
+// Requests to same host are admitted in FIFO order and requests exceeding the limit wait
+//   for preceding ones.
+// Requests to different hosts don't affect each other.
+//
+// There are two ways to wait.
+//   submit  : Request is deferred, and callback is called when it is admitted.
+//             No thread is blocked. Used by update tasks. (See RTTask)
+//             So, worker threads aren't held by requests waiting busy host.
+//   acquire : Caller thread is blocked until it is admitted.
+//             Used by thread owned by caller. (ex. IconFetcher)
+//
+// NOTE
+// Connection itself is reused by HttpURLConnection's keep-alive pool.
+// (Connection is returned to the pool when response body is fully read and stream is closed.)
+// Serializing requests to same host makes next request pick up connection just returned
+//   by previous one, instead of opening new one.
+//
+public class HostGate {
+    private static final boolean DBG = Logger.DBG_DEFAULT;
+    private static final Logger P = Logger.create(HostGate.class, Logger.LOGLV_DEFAULT);
+
+    // Maximum concurrent requests to one host.
+    private static final int MAX_CONN_PER_HOST = 2;
+    // Maximum idle connections kept at keep-alive pool.
+    private static final int MAX_IDLE_CONN = 16;
+
+    private static HostGate sInstance = null;
+
+    // Key : host name(lower case)
+    // NOTE
+    // Entry is never removed. Number of hosts is bounded by number of channels.
+    // This is also used as lock of Host.
+    private final HashMap<String, Host> mHostMap = new HashMap<>();
+
+    public interface OnAdmitted {
+        /**
+         * Called without any lock of HostGate.
+         * @return false if slot is not used.(ex. Request is cancelled while waiting.)
+         *         Then slot is passed to next request at once, and 'tk' SHOULD NOT be used.
+         */
+        boolean onAdmitted(@NonNull Ticket tk);
+    }
+
+    private static class Host {
+        final String name;
+        // Number of requests admitted and not released yet.
+        int nrAdmitted = 0;
+        // Deferred requests. See submit().
+        final LinkedList<OnAdmitted> waitQ = new LinkedList<>();
+
+        Host(@NonNull String aName) {
+            name = aName;
+        }
+    }
+
+    /**
+     * Slot of admitted request. {@link Ticket#release()} SHOULD be called when request is done.
+     */
+    public static class Ticket {
+        private final Host mHost;
+        private final AtomicBoolean mReleased = new AtomicBoolean(false);
+
+        private Ticket(@NonNull Host host) {
+            mHost = host;
+        }
+
+        /**
+         * Calling more than once is allowed. Only the first one is effective.
+         */
+        public void
+        release() {
+            if (mReleased.compareAndSet(false, true))
+                HostGate.get().releaseSlot(mHost);
+        }
+    }
+
+    private HostGate() {
+    }
+
+    @NonNull
+    private static String
+    hostKey(@NonNull URL url) {
+        String host = url.getHost();
+        return null == host? "": host.toLowerCase();
+    }
+
+    @NonNull
+    private Host
+    getHostLocked(@NonNull URL url) {
+        String key = hostKey(url);
+        Host h = mHostMap.get(key);
+        if (null == h) {
+            h = new Host(key);
+            mHostMap.put(key, h);
+        }
+        return h;
+    }
+
+    /**
+     * Slot is passed to the first deferred request. If there is none, slot is freed.
+     * @return request that gets the slot. 'null' if slot is freed.
+     */
+    private OnAdmitted
+    passSlot(@NonNull Host h) {
+        synchronized (mHostMap) {
+            OnAdmitted next = h.waitQ.pollFirst();
+            if (null == next) {
+                h.nrAdmitted--;
+                P.bug(h.nrAdmitted >= 0);
+                // Wake up threads blocked at acquire().
+                mHostMap.notifyAll();
+            }
+            return next;
+        }
+    }
+
+    /**
+     * Give slot already counted at 'h' to 'cb'.
+     * Slot that is not used by request, is passed to next one. (Loop instead of recursion.)
+     */
+    private void
+    admit(@NonNull Host h, OnAdmitted cb) {
+        while (null != cb) {
+            if (cb.onAdmitted(new Ticket(h)))
+                return;
+            cb = passSlot(h);
+        }
+    }
+
+    private void
+    releaseSlot(@NonNull Host h) {
+        admit(h, passSlot(h));
+    }
+
+    public static HostGate
+    get() {
+        if (null == sInstance) {
+            synchronized (HostGate.class) {
+                if (null == sInstance)
+                    sInstance = new HostGate();
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Configure HttpURLConnection's connection pool.
+     * This SHOULD be called before any network connection is opened.
+     */
+    public static void
+    configureKeepAlive() {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONN));
+    }
+
+    /**
+     * Request to host of 'url' without blocking.
+     * 'cb' is called at once at caller's thread if host is under the limit.
+     * Otherwise, it is called later at the thread releasing slot of the host.
+     */
+    public void
+    submit(@NonNull URL url, @NonNull OnAdmitted cb) {
+        Host h;
+        synchronized (mHostMap) {
+            h = getHostLocked(url);
+            if (h.nrAdmitted >= MAX_CONN_PER_HOST) {
+                if (DBG) P.v("Deferred for host : " + h.name);
+                h.waitQ.addLast(cb);
+                return;
+            }
+            h.nrAdmitted++;
+        }
+        admit(h, cb);
+    }
+
+    /**
+     * Wait until request to host of 'url' is allowed.
+     * NOTE
+     * Requests deferred by {@link HostGate#submit(URL, OnAdmitted)} go first.
+     */
+    @NonNull
+    public Ticket
+    acquire(@NonNull URL url) throws InterruptedException {
+        synchronized (mHostMap) {
+            Host h = getHostLocked(url);
+            if (DBG && h.nrAdmitted >= MAX_CONN_PER_HOST)
+                P.v("Wait for host : " + h.name);
+            while (h.nrAdmitted >= MAX_CONN_PER_HOST)
+                mHostMap.wait();
+            h.nrAdmitted++;
+            return new Ticket(h);
+        }
+    }
+}
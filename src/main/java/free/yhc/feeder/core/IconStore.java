@@ -0,0 +1,221 @@
+/******************************************************************************
+ * Copyright (C) 2012, 2013, 2014, 2015, 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of FeedHive
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.feeder.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import free.yhc.abaselib.AppEnv;
+import free.yhc.baselib.Logger;
+
+//
+// Content-addressed store for channel icons.
+// Icon data is stored at file whose name is SHA-1 hex string of it's data.
+// So, channels having same icon share one file.
+// Channel table keeps only this hash string as reference to the icon.
+//
+// NOTE
+// Icons are stored at application's internal storage - not at application root directory.
+// Icon is small and it is used at almost every screen. So, it should be always available
+//   even if external storage is not.
+//
+public class IconStore implements
+UnexpectedExceptionHandler.TrackedModule {
+    private static final boolean DBG = Logger.DBG_DEFAULT;
+    private static final Logger P = Logger.create(IconStore.class, Logger.LOGLV_DEFAULT);
+
+    private static final String ICON_DIR = "icons";
+    private static final String HASH_ALGORITHM = "SHA-1";
+    // Length of hex string of SHA-1 hash.
+    private static final int REF_LENGTH = 40;
+
+    private static IconStore sInstance = null;
+
+    private final File mDir;
+
+    private IconStore() {
+        UnexpectedExceptionHandler.get().registerModule(this);
+        mDir = new File(AppEnv.getAppContext().getFilesDir(), ICON_DIR);
+        //noinspection ResultOfMethodCallIgnored
+        mDir.mkdirs();
+    }
+
+    public static IconStore
+    get() {
+        if (null == sInstance)
+            sInstance = new IconStore();
+        return sInstance;
+    }
+
+    @Override
+    public String
+    dump(UnexpectedExceptionHandler.DumpLevel lv) {
+        return "[ IconStore ]"
+               + "Icon dir : " + mDir.getAbsolutePath() + "\n";
+    }
+
+    static String
+    toHex(byte[] data) {
+        StringBuilder sbldr = new StringBuilder(data.length * 2);
+        for (byte b : data)
+            sbldr.append(String.format("%02x", b & 0xff));
+        return sbldr.toString();
+    }
+
+    /**
+     * @return SHA-1 hex string of data. This is also reference of the data in this store.
+     */
+    public static String
+    hash(byte[] data) {
+        try {
+            return toHex(MessageDigest.getInstance(HASH_ALGORITHM).digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            P.bug(false); // SHA-1 SHOULD be always supported.
+            return null;
+        }
+    }
+
+    private File
+    getFile(String ref) {
+        return new File(mDir, ref);
+    }
+
+    /**
+     * Is icon of given reference stored?
+     * Reference may be dangling. (ex. database imported from other device.)
+     */
+    public boolean
+    contains(String ref) {
+        return getFile(ref).exists();
+    }
+
+    /**
+     * Is given data is reference to the icon in this store?
+     * Data that is not a reference, is raw image data - stored by old version.
+     */
+    public static boolean
+    isRef(byte[] data) {
+        if (null == data
+            || REF_LENGTH != data.length)
+            return false;
+        for (byte b : data) {
+            if (!((b >= '0' && b <= '9')
+                  || (b >= 'a' && b <= 'f')))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Store icon data.
+     * Nothing is written if same icon is already stored.
+     * @return reference of stored icon. 'null' if fails.
+     */
+    public String
+    put(byte[] data) {
+        String ref = hash(data);
+        if (null == ref)
+            return null;
+
+        File f = getFile(ref);
+        if (f.exists())
+            return ref;
+
+        // Write to temp file and rename it to make sure that icon file is always complete one.
+        File tmpf = new File(mDir, ref + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmpf)) {
+            fos.write(data);
+        } catch (IOException e) {
+            if (DBG) P.w("Fail to write icon : " + e.getMessage());
+            //noinspection ResultOfMethodCallIgnored
+            tmpf.delete();
+            return null;
+        }
+        if (!tmpf.renameTo(f)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmpf.delete();
+            return null;
+        }
+        return ref;
+    }
+
+    /**
+     * Decode icon directly from the file - icon data is not loaded to java heap.
+     * @return 'null' if there is no icon or fails to decode.
+     */
+    public Bitmap
+    decode(String ref) {
+        return decode(ref, null);
+    }
+
+    /**
+     * @param opts options passed to BitmapFactory.
+     * @see IconStore#decode(String)
+     */
+    public Bitmap
+    decode(String ref, BitmapFactory.Options opts) {
+        File f = getFile(ref);
+        if (!f.exists())
+            return null;
+        return BitmapFactory.decodeFile(f.getAbsolutePath(), opts);
+    }
+
+    /**
+     * Remove all icons except for given ones.
+     * @param refs references of icons that are still in use.
+     */
+    public void
+    retainOnly(Set<String> refs) {
+        File[] fs = mDir.listFiles();
+        if (null == fs)
+            return;
+        for (File f : fs) {
+            if (!refs.contains(f.getName())) {
+                if (DBG) P.v("Remove unused icon : " + f.getName());
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+            }
+        }
+    }
+}
@@ -214,7 +214,7 @@ public class ItemActionHandler {
             case RUN:
             case READY:
                 assert t != null;
-                mRtt.cancelTask(t, null);
+                mRtt.cancelDownload(t);
                 mABridge.itemDataChanged(id);
                 break;
 
@@ -36,22 +36,57 @@
 
 package free.yhc.feeder.core;
 
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.NoSuchElementException;
 
 import free.yhc.baselib.Logger;
 
 import static free.yhc.baselib.util.Util.newArray;
 
+//
+// Insertion-ordered list whose elements are indexed by key and by item.
+// Key and item are compared by identity('=='). Several elements may have same key.
+//
+// Elements are kept at doubly linked list. And elements having same key(or item) are chained
+//   from hash index. So,
+//   add              : O(1)
+//   remove(key)      : O(number of elements having the key)
+//   remove(key, item): O(number of elements having the item) - usually 1.
+//
+// NOTE
+// This is NOT thread-safe. Caller SHOULD guard it.
+// Each iterator() call returns new iterator. So, nested iterations are allowed.
+// Element removed while iterating(by any iterator or by remove()) is skipped by other iterators.
+//
 public class KeyBasedLinkedList<T> {
     private static final boolean DBG = Logger.DBG_DEFAULT;
     private static final Logger P = Logger.create(KeyBasedLinkedList.class, Logger.LOGLV_DEFAULT);
 
-    private LinkedList<Elem> mL = new LinkedList<>();
+    // Sentinel of circular list. mHead.next is the first element.
+    private final Elem mHead = new Elem(null, null);
+    // Key -> first element of chain of elements having the key.
+    private final IdentityHashMap<Object, Elem> mKeyIdx = new IdentityHashMap<>();
+    // Item -> first element of chain of elements having the item.
+    private final IdentityHashMap<Object, Elem> mItemIdx = new IdentityHashMap<>();
+    private int mSize = 0;
 
     private static class Elem {
         final Object key;
         final Object item;
+        // Links of list.
+        Elem prev;
+        Elem next;
+        // Links of chain of same key.
+        Elem keyPrev;
+        Elem keyNext;
+        // Links of chain of same item.
+        Elem itemPrev;
+        Elem itemNext;
+        // Set when removed from list. Iterator pointing this element skips it.
+        boolean removed = false;
+
         Elem(Object aKey, Object aItem) {
             key = aKey;
             item = aItem;
@@ -59,71 +94,165 @@ public class KeyBasedLinkedList<T> {
     }
 
     private class Iter implements Iterator<T> {
-        Iterator<Elem> itr = mL.iterator();
+        private Elem _mLast = null; // element returned by last next().
+        private Elem _mNext = mHead.next;
+
+        private void
+        skipRemoved() {
+            // 'next' of removed element is kept. So, following it reaches live element(or head).
+            while (_mNext.removed)
+                _mNext = _mNext.next;
+        }
 
         @Override
         public boolean
         hasNext() {
-            return itr.hasNext();
+            skipRemoved();
+            return mHead != _mNext;
         }
 
         @Override
         public T
         next() {
+            skipRemoved();
+            if (mHead == _mNext)
+                throw new NoSuchElementException();
+            _mLast = _mNext;
+            _mNext = _mNext.next;
             //noinspection unchecked
-            return (T)itr.next().item;
+            return (T)_mLast.item;
         }
 
         @Override
         public void
         remove() {
-            itr.remove();
+            if (null == _mLast)
+                throw new IllegalStateException();
+            // Already removed by others.
+            if (!_mLast.removed)
+                unlink(_mLast);
+            _mLast = null;
         }
     }
 
     public KeyBasedLinkedList() {
+        mHead.prev = mHead;
+        mHead.next = mHead;
+    }
+
+    private void
+    link(Elem e, Elem before) {
+        e.next = before;
+        e.prev = before.prev;
+        before.prev.next = e;
+        before.prev = e;
+
+        Elem kh = mKeyIdx.get(e.key);
+        if (null != kh) {
+            e.keyNext = kh;
+            kh.keyPrev = e;
+        }
+        mKeyIdx.put(e.key, e);
+
+        Elem ih = mItemIdx.get(e.item);
+        if (null != ih) {
+            e.itemNext = ih;
+            ih.itemPrev = e;
+        }
+        mItemIdx.put(e.item, e);
+        mSize++;
+    }
+
+    private void
+    unlink(Elem e) {
+        e.prev.next = e.next;
+        e.next.prev = e.prev;
+
+        if (null != e.keyNext)
+            e.keyNext.keyPrev = e.keyPrev;
+        if (null != e.keyPrev)
+            e.keyPrev.keyNext = e.keyNext;
+        else if (null != e.keyNext)
+            mKeyIdx.put(e.key, e.keyNext);
+        else
+            mKeyIdx.remove(e.key);
+
+        if (null != e.itemNext)
+            e.itemNext.itemPrev = e.itemPrev;
+        if (null != e.itemPrev)
+            e.itemPrev.itemNext = e.itemNext;
+        else if (null != e.itemNext)
+            mItemIdx.put(e.item, e.itemNext);
+        else
+            mItemIdx.remove(e.item);
+
+        // NOTE
+        // 'next' is kept. So, iterator whose next element is removed, can go on.
+        e.keyPrev = e.keyNext = null;
+        e.itemPrev = e.itemNext = null;
+        e.removed = true;
+        mSize--;
     }
 
     public boolean
     add(Object key, T item) {
-        return mL.add(new Elem(key, item));
+        link(new Elem(key, item), mHead);
+        return true;
     }
 
     @SuppressWarnings("unused")
     public void
     addFirst(Object key, T item) {
-        mL.addFirst(new Elem(key, item));
+        link(new Elem(key, item), mHead.next);
     }
 
     @SuppressWarnings("unused")
     public void
     addLast(Object key, T item) {
-        mL.addLast(new Elem(key, item));
+        link(new Elem(key, item), mHead);
     }
 
     public void
     remove(Object key) {
-        Iterator<Elem> itr = mL.iterator();
-        while (itr.hasNext()) {
-            Elem e = itr.next();
-            if (e.key == key)
-                itr.remove();
+        Elem e = mKeyIdx.get(key);
+        while (null != e) {
+            Elem next = e.keyNext;
+            unlink(e);
+            e = next;
         }
     }
 
     public boolean
     remove(Object key, T item) {
-        Iterator<Elem> itr = mL.iterator();
-        while (itr.hasNext()) {
-            Elem e = itr.next();
-            if (e.key == key && e.item == item) {
-                itr.remove();
+        for (Elem e = mItemIdx.get(item); null != e; e = e.itemNext) {
+            if (e.key == key) {
+                unlink(e);
                 return true;
             }
         }
         return false;
     }
 
+    /**
+     * @return items having the key. Most recently added one comes first.
+     */
+    public LinkedList<T>
+    getByKey(Object key) {
+        LinkedList<T> l = new LinkedList<>();
+        for (Elem e = mKeyIdx.get(key); null != e; e = e.keyNext)
+            //noinspection unchecked
+            l.add((T)e.item);
+        return l;
+    }
+
+    public int
+    size() {
+        return mSize;
+    }
+
+    /**
+     * New iterator is returned. See comments of this class.
+     */
     public Iterator<T>
     iterator() {
         return new Iter();
@@ -131,14 +260,13 @@ public class KeyBasedLinkedList<T> {
 
     public T[]
     toArray(T[] a) {
-        // NOT TESTED enough yet!
-        Elem[] es = mL.toArray(new Elem[mL.size()]);
-        if (a.length < es.length)
+        if (a.length < mSize)
             //noinspection unchecked
-            a = (T[])newArray(a.getClass().getComponentType(), es.length);
-        for (int i = 0; i < es.length; i++)
+            a = (T[])newArray(a.getClass().getComponentType(), mSize);
+        int i = 0;
+        for (Elem e = mHead.next; mHead != e; e = e.next)
             //noinspection unchecked
-            a[i] = (T)es[i].item;
+            a[i++] = (T)e.item;
         return a;
     }
 }
@@ -36,18 +36,73 @@
 
 package free.yhc.feeder.core;
 
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+
+import android.view.Choreographer;
 
 import free.yhc.abaselib.AppEnv;
 import free.yhc.baselib.Logger;
 
+import static free.yhc.abaselib.util.AUtil.isUiThread;
+
+//
+// Indirect notifications are delivered at UI thread once per frame, in batch.
+// Same notifications(same type and arguments) pending in the batch are coalesced into one.
+// Listeners are called with copy-on-write snapshot of listener array.
+// So, dispatching doesn't hold lock(except for building new snapshot after listeners are
+//   changed), and (un)registering listener while dispatching is safe.
+//
+// Ordering of indirect notification
+//   Batched(default) listener
+//   - Notifications are delivered in the order they are requested. Coalesced one is at the
+//     place of it's first request.
+//   - Delivered at least one frame later than requested. So, it is NOT ordered with other
+//     runnables posted to UI handler. (ex. runnable posted after notification may run first.)
+//   Ordered listener(registered with 'ordered')
+//   - Each notification is posted to UI handler when it is requested. So, it is ordered with
+//     other runnables posted to UI handler, like before batching is introduced.
+//     Listener depending on it(ex. one checked at Activity#onResume) should be registered
+//     as ordered one.
+//   Direct notification is delivered to all listeners synchronously at caller's thread.
+//
 public class ListenerManager implements
 UnexpectedExceptionHandler.TrackedModule {
     private static final boolean DBG = Logger.DBG_DEFAULT;
     private static final Logger P = Logger.create(ListenerManager.class, Logger.LOGLV_DEFAULT);
 
+    private static final ListenerNode[] EMPTY_LISTENERS = new ListenerNode[0];
+
+    // Guarded by itself. Listeners are (un)registered here.
     private final KeyBasedLinkedList<ListenerNode> mList = new KeyBasedLinkedList<>();
+    // Listener -> node at mList. Guarded by mList.
+    private final IdentityHashMap<Listener, ListenerNode> mNodes = new IdentityHashMap<>();
+    // Snapshot of mList. Never modified once it is built.
+    // It's invalidated(null) when mList is changed, and built again at next dispatch.
+    // So, bulk (un)registration doesn't copy array for each listener.
+    private volatile ListenerNode[] mListeners = EMPTY_LISTENERS;
+
+    // Guarded by mPendingLock.
+    private final Object mPendingLock = new Object();
+    private LinkedHashSet<Event> mPending = new LinkedHashSet<>();
+    private boolean mFlushScheduled = false;
+
+    private final Choreographer.FrameCallback mFlushCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void
+        doFrame(long frameTimeNanos) {
+            flushPending();
+        }
+    };
+
+    private final Runnable mScheduleFlushRunnable = new Runnable() {
+        @Override
+        public void
+        run() {
+            // Choreographer SHOULD be used at UI thread.
+            Choreographer.getInstance().postFrameCallback(mFlushCallback);
+        }
+    };
 
     public interface Listener {
         void onNotify(Object user, Type type, Object a0, Object a1);
@@ -57,15 +112,60 @@ UnexpectedExceptionHandler.TrackedModule {
         long flag();
     }
 
+    private static boolean
+    equalsArg(Object a, Object b) {
+        return a == b || (null != a && a.equals(b));
+    }
+
+    private static class Event {
+        final Type type;
+        final Object arg0;
+        final Object arg1;
+
+        Event(Type aType, Object aArg0, Object aArg1) {
+            type = aType;
+            arg0 = aArg0;
+            arg1 = aArg1;
+        }
+
+        @Override
+        public boolean
+        equals(Object o) {
+            if (!(o instanceof Event))
+                return false;
+            Event e = (Event)o;
+            return type == e.type
+                   && equalsArg(arg0, e.arg0)
+                   && equalsArg(arg1, e.arg1);
+        }
+
+        @Override
+        public int
+        hashCode() {
+            int h = type.hashCode();
+            h = 31 * h + (null == arg0? 0: arg0.hashCode());
+            h = 31 * h + (null == arg1? 0: arg1.hashCode());
+            return h;
+        }
+    }
+
     private class ListenerNode {
-        long flag;
+        // Updated when listener is registered again.
+        volatile long flag;
+        final Object key;
+        // See comments at the top.
+        final boolean ordered;
         Listener l;
         Object user;
-        ListenerNode(Listener al,
+        ListenerNode(Object akey,
+                     Listener al,
                      @SuppressWarnings("unused") Object user,
-                     long aflag) {
+                     long aflag,
+                     boolean aOrdered) {
+            key = akey;
             l = al;
             flag = aflag;
+            ordered = aOrdered;
         }
     }
 
@@ -78,43 +178,98 @@ UnexpectedExceptionHandler.TrackedModule {
         return "[ ListenerManager ]";
     }
 
-    public void
-    notifyDirect(final Type type, final Object arg0, final Object arg1) {
-        LinkedList<ListenerNode> n = new LinkedList<>();
+    /**
+     * Should be called with mList locked.
+     */
+    private void
+    invalidateSnapshotLocked() {
+        mListeners = null;
+    }
+
+    private ListenerNode[]
+    getSnapshot() {
+        ListenerNode[] ls = mListeners;
+        if (null != ls)
+            return ls;
         synchronized (mList) {
-            // copy
-            Iterator<ListenerNode> iter = mList.iterator();
-            while (iter.hasNext()) {
-                ListenerNode ln = iter.next();
-                if (0 != (ln.flag & type.flag()))
-                    n.add(ln);
+            ls = mListeners;
+            if (null == ls) {
+                ls = mList.toArray(EMPTY_LISTENERS);
+                mListeners = ls;
             }
+            return ls;
         }
+    }
 
-        // call notify out of critical section
-        for (ListenerNode ln : n)
-            ln.l.onNotify(ln.user, type, arg0, arg1);
+    /**
+     * @param ordered listeners whose 'ordered' is same with this, are notified.
+     *                'null' to notify all listeners.
+     */
+    private void
+    dispatch(ListenerNode[] listeners, Boolean ordered, Type type, Object arg0, Object arg1) {
+        for (ListenerNode ln : listeners) {
+            if (0 != (ln.flag & type.flag())
+                && (null == ordered || ordered == ln.ordered))
+                ln.l.onNotify(ln.user, type, arg0, arg1);
+        }
+    }
+
+    private static boolean
+    hasOrdered(ListenerNode[] listeners, Type type) {
+        for (ListenerNode ln : listeners) {
+            if (ln.ordered && 0 != (ln.flag & type.flag()))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Deliver pending notifications in batch. Run at UI thread.
+     */
+    private void
+    flushPending() {
+        LinkedHashSet<Event> events;
+        synchronized (mPendingLock) {
+            events = mPending;
+            mPending = new LinkedHashSet<>();
+            mFlushScheduled = false;
+        }
+        // Notifications requested by listeners are delivered at next frame.
+        for (Event e : events)
+            dispatch(getSnapshot(), false, e.type, e.arg0, e.arg1);
+    }
+
+    public void
+    notifyDirect(final Type type, final Object arg0, final Object arg1) {
+        dispatch(getSnapshot(), null, type, arg0, arg1);
     }
 
     /**
-     * Post to ui handler
+     * Delivered at UI thread at next frame.
+     * Same notification already pending is not added again.
+     * Ordered listeners get it through UI handler without batching.
      */
     public void
     notifyIndirect(final Type type, final Object arg0, final Object arg1) {
-        synchronized (mList) {
+        if (hasOrdered(getSnapshot(), type)) {
             AppEnv.getUiHandler().post(new Runnable() {
                 @Override
                 public void
                 run() {
-                    Iterator<ListenerNode> iter = mList.iterator();
-                    while (iter.hasNext()) {
-                        ListenerNode ln = iter.next();
-                        if (0 != (ln.flag & type.flag()))
-                            ln.l.onNotify(ln.user, type, arg0, arg1);
-                    }
+                    dispatch(getSnapshot(), true, type, arg0, arg1);
                 }
             });
         }
+        synchronized (mPendingLock) {
+            mPending.add(new Event(type, arg0, arg1));
+            if (mFlushScheduled)
+                return;
+            mFlushScheduled = true;
+        }
+        if (isUiThread())
+            mScheduleFlushRunnable.run();
+        else
+            AppEnv.getUiHandler().post(mScheduleFlushRunnable);
     }
 
     public void
@@ -140,25 +295,30 @@ UnexpectedExceptionHandler.TrackedModule {
 
     /**
      * Should run on UI Thread.
+     * @param ordered see comments at the top. It is not changed by registering again.
      */
     public void
-    registerListener(Object key, Listener listener, Object user, long flag) {
+    registerListener(Object key, Listener listener, Object user, long flag, boolean ordered) {
         synchronized (mList) {
-            Iterator<ListenerNode> iter = mList.iterator();
-            while (iter.hasNext()) {
-                ListenerNode ln = iter.next();
-                if (listener == ln.l) {
-                    // already registered.
-                    // just updating flag is enough.
-                    ln.flag = flag;
-                    return;
-                }
+            ListenerNode ln = mNodes.get(listener);
+            if (null != ln) {
+                // already registered.
+                // just updating flag is enough.
+                ln.flag = flag;
+                return;
             }
-            ListenerNode n = new ListenerNode(listener, user, flag);
-            mList.add(key, n);
+            ln = new ListenerNode(key, listener, user, flag, ordered);
+            mList.add(key, ln);
+            mNodes.put(listener, ln);
+            invalidateSnapshotLocked();
         }
     }
 
+    public void
+    registerListener(Object key, Listener listener, Object user, long flag) {
+        registerListener(key, listener, user, flag, false);
+    }
+
     public void
     registerListener(Listener listener, Object user, long flag) {
         registerListener(null, listener, user, flag);
@@ -167,7 +327,10 @@ UnexpectedExceptionHandler.TrackedModule {
     public void
     unregisterListenerByKey(Object key) {
         synchronized (mList) {
+            for (ListenerNode ln : mList.getByKey(key))
+                mNodes.remove(ln.l);
             mList.remove(key);
+            invalidateSnapshotLocked();
         }
     }
 
@@ -177,13 +340,10 @@ UnexpectedExceptionHandler.TrackedModule {
     public void
     unregisterListener(Listener listener) {
         synchronized (mList) {
-            Iterator<ListenerNode> iter = mList.iterator();
-            while (iter.hasNext()) {
-                ListenerNode ln = iter.next();
-                if (listener == ln.l) {
-                    iter.remove();
-                    return;
-                }
+            ListenerNode ln = mNodes.remove(listener);
+            if (null != ln) {
+                mList.remove(ln.key, ln);
+                invalidateSnapshotLocked();
             }
         }
     }
@@ -38,22 +38,24 @@ package free.yhc.feeder.core;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.LongSparseArray;
 
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
 
 import free.yhc.baselib.Logger;
 import free.yhc.baselib.async.HelperHandler;
 import free.yhc.baselib.async.TmTask;
 import free.yhc.baselib.async.TaskManager;
-import free.yhc.feeder.db.ColumnItem;
+import free.yhc.feeder.db.ColumnChannel;
 import free.yhc.feeder.db.DBPolicy;
+import free.yhc.feeder.task.DownloadManager;
 import free.yhc.feeder.task.DownloadTask;
 import free.yhc.feeder.task.UpdateTask;
 
-import static free.yhc.baselib.util.Util.convertArrayLongTolong;
-
 // Singleton
 // Runtime Data
 //   : Data that SHOULD NOT be stored at DataBase.
@@ -66,6 +68,8 @@ UnexpectedExceptionHandler.TrackedModule {
 
     private static final int AVAILABLE_PROCESSOR = Runtime.getRuntime().availableProcessors();
     private static final int MAX_FAILED_TASK_HISTORY = 500;
+    // Number of tasks run concurrently.
+    public static final int MAX_CONCURRENT_TASKS = 2 < AVAILABLE_PROCESSOR? AVAILABLE_PROCESSOR: 2;
 
     private static RTTask sInstance = null;
 
@@ -75,10 +79,27 @@ UnexpectedExceptionHandler.TrackedModule {
     // - DB / DBThread
     // - UIPolicy
     // - DBPolicy
-    private final DBPolicy mDbp = DBPolicy.get();
 
     private final Object mTiLock = new Object();
     private final HashMap<String, TaskInfo> mFailedTasks = new HashMap<>();
+    // Index of tasks added to this manager : action -> (id -> task)
+    // Index may have tasks that are already done. They are removed lazily at query.
+    // So, query doesn't need to scan all tasks in the manager.
+    // Guarded by mTiLock.
+    private final EnumMap<Action, LongSparseArray<TmTask>> mActIdx = new EnumMap<>(Action.class);
+    // Index of download tasks : channel id -> (item id -> task)
+    // Channel id is recorded when DownloadTask is created. So, DB is not accessed at query.
+    // Guarded by mTiLock.
+    private final LongSparseArray<LongSparseArray<TmTask>> mDnChanIdx = new LongSparseArray<>();
+    // Download tasks waiting for download slot at DownloadManager : item id -> task
+    // They are not added to TaskManager until slot is available. So, they don't hold workers.
+    // Guarded by mTiLock.
+    private final LongSparseArray<TmTask> mDnPending = new LongSparseArray<>();
+    // Update tasks waiting for slot of channel's host at HostGate : channel id -> task
+    // Like download tasks waiting for slot, they don't hold workers.
+    // So, channels of busy host don't block updates of other hosts.
+    // Guarded by mTiLock.
+    private final LongSparseArray<TmTask> mUpPending = new LongSparseArray<>();
 
     public enum RtState {
         IDLE,
@@ -104,7 +125,10 @@ UnexpectedExceptionHandler.TrackedModule {
 
     private static boolean
     isFailedTask(@NonNull TmTask task) {
-        return !task.isCancel() && null != task.getException();
+        // Preempted download is not failed. It is continued by new task. See DownloadTask.
+        return !task.isCancel()
+               && null != task.getException()
+               && !(task.getException() instanceof DownloadManager.PreemptedException);
     }
 
     // Get singleton instance,.
@@ -118,7 +142,7 @@ UnexpectedExceptionHandler.TrackedModule {
 
     private RTTask() {
         super(HelperHandler.get(),
-              2 < AVAILABLE_PROCESSOR? AVAILABLE_PROCESSOR: 2,
+              MAX_CONCURRENT_TASKS,
               MAX_FAILED_TASK_HISTORY,
               new TaskWatchFilter() {
                   @Override
@@ -130,6 +154,8 @@ UnexpectedExceptionHandler.TrackedModule {
                       return isFailedTask(task);
                   }
               });
+        for (Action act : Action.values())
+            mActIdx.put(act, new LongSparseArray<TmTask>());
         UnexpectedExceptionHandler.get().registerModule(this);
     }
 
@@ -160,6 +186,82 @@ UnexpectedExceptionHandler.TrackedModule {
         return Long.parseLong(id.substring(i + 1));
     }
 
+    private boolean
+    isPendingDownloadLocked(@NonNull TmTask task) {
+        return task instanceof DownloadTask
+               && task == mDnPending.get(((DownloadTask)task).getItemId());
+    }
+
+    private boolean
+    isPendingUpdateLocked(@NonNull TmTask task) {
+        return task instanceof UpdateTask
+               && task == mUpPending.get(((UpdateTask)task).getChannelId());
+    }
+
+    /**
+     * Called by HostGate when slot of host is assigned to the task.
+     * @return false if task is cancelled while waiting.
+     */
+    private boolean
+    startPendingUpdate(@NonNull UpdateTask task, @NonNull HostGate.Ticket tk) {
+        long id = task.getChannelId();
+        synchronized (mTiLock) {
+            if (!isPendingUpdateLocked(task))
+                return false;
+            mUpPending.remove(id);
+            task.setHostTicket(tk);
+            String tid = tid(Action.UPDATE, id);
+            if (super.addTask(task, tid, Action.UPDATE, id))
+                return true;
+            // Previous task of the channel may be done, but not removed from task queue yet.
+            TmTask prev = getTask(tid);
+            if (null != prev
+                && prev.isDone()) {
+                removeWatchedTask(prev);
+                if (super.addTask(task, tid, Action.UPDATE, id))
+                    return true;
+            }
+            // Task in action is checked at addUpdateTask(). So, this is unexpected.
+            P.bug(false);
+            task.setHostTicket(null);
+            unindexTaskLocked(task, id, Action.UPDATE);
+            return false;
+        }
+    }
+
+    private boolean
+    addUpdateTask(@NonNull final UpdateTask task, long id) {
+        URL url = null;
+        try {
+            String urlstr = DBPolicy.get().getChannelInfoString(id, ColumnChannel.URL);
+            if (null != urlstr)
+                url = new URL(urlstr);
+        } catch (MalformedURLException ignored) { }
+        synchronized (mTiLock) {
+            if (null == url) {
+                // Task fails at once with proper error. Host slot is not required.
+                if (!super.addTask(task, tid(Action.UPDATE, id), Action.UPDATE, id))
+                    return false;
+                indexTaskLocked(task, id, Action.UPDATE);
+                return true;
+            }
+            TmTask cur = getTask(id, Action.UPDATE);
+            if (null != cur
+                && isTaskInAction(cur))
+                return false;
+            mUpPending.put(id, task);
+            indexTaskLocked(task, id, Action.UPDATE);
+        }
+        HostGate.get().submit(url, new HostGate.OnAdmitted() {
+            @Override
+            public boolean
+            onAdmitted(@NonNull HostGate.Ticket tk) {
+                return startPendingUpdate(task, tk);
+            }
+        });
+        return true;
+    }
+
     /**
      * Check that task is running or waiting to be run.
      */
@@ -173,20 +275,72 @@ UnexpectedExceptionHandler.TrackedModule {
         return false;
     }
 
+    private void
+    indexTaskLocked(@NonNull TmTask task, long id, @NonNull Action act) {
+        mActIdx.get(act).put(id, task);
+        if (Action.DOWNLOAD != act)
+            return;
+        long cid = ((DownloadTask)task).getChannelId();
+        LongSparseArray<TmTask> ids = mDnChanIdx.get(cid);
+        if (null == ids) {
+            ids = new LongSparseArray<>();
+            mDnChanIdx.put(cid, ids);
+        }
+        ids.put(id, task);
+    }
+
+    /**
+     * Remove task that is done, from indexes.
+     * Task that is already replaced with new one, is not touched.
+     */
+    private void
+    unindexTaskLocked(@NonNull TmTask task, long id, @NonNull Action act) {
+        LongSparseArray<TmTask> idx = mActIdx.get(act);
+        if (task == idx.get(id))
+            idx.remove(id);
+        if (Action.DOWNLOAD != act)
+            return;
+        long cid = ((DownloadTask)task).getChannelId();
+        LongSparseArray<TmTask> ids = mDnChanIdx.get(cid);
+        if (null == ids
+            || task != ids.get(id))
+            return;
+        ids.remove(id);
+        if (0 == ids.size())
+            mDnChanIdx.remove(cid);
+    }
+
+    /**
+     * Append ids of tasks in action, to 'out' from 'n'. Done tasks are removed from indexes.
+     * @param out SHOULD have enough room for all tasks in 'idx'.
+     * @return number of ids in 'out'.
+     */
+    private int
+    collectIdsInActionLocked(@NonNull LongSparseArray<TmTask> idx, @NonNull Action act,
+                             long[] out, int n) {
+        // Backward iteration. Removing entry doesn't affect entries that are not visited yet.
+        for (int i = idx.size() - 1; i >= 0; i--) {
+            TmTask t = idx.valueAt(i);
+            long id = idx.keyAt(i);
+            if (isTaskInAction(t))
+                out[n++] = id;
+            else if (t.isDone())
+                unindexTaskLocked(t, id, act);
+        }
+        return n;
+    }
+
     /**
      * Get DB ids that are under given action.
      */
     @NonNull
     private long[]
     getIdsInAction(@NonNull Action action) {
-        TmTask[] tsks = getTasks(action);
-        LinkedList<Long> idl = new LinkedList<>();
-        for (TmTask t : tsks) {
-            TaskInfo ti = getTaskInfo(t);
-            if (isTaskInAction(t))
-                idl.add((Long)ti.ttag);
+        synchronized (mTiLock) {
+            LongSparseArray<TmTask> idx = mActIdx.get(action);
+            long[] ids = new long[idx.size()];
+            return Arrays.copyOf(ids, collectIdsInActionLocked(idx, action, ids, 0));
         }
-        return convertArrayLongTolong(idl.toArray(new Long[idl.size()]));
     }
 
     ///////////////////////////////////////////////////////////////////////////
@@ -213,17 +367,109 @@ UnexpectedExceptionHandler.TrackedModule {
         return isFailedTask(task);
     }
 
+    /**
+     * Download task waits for it's download slot at DownloadManager, and update task waits for
+     *   slot of channel's host at HostGate, before it is added to task queue.
+     * Waiting task is regarded as 'READY'.
+     */
     public boolean
     addTask(@NonNull TmTask task, long id, @NonNull Action act) {
         if (DBG)
             P.bug((Action.DOWNLOAD == act && task instanceof DownloadTask)
                    || (Action.UPDATE == act && task instanceof UpdateTask));
-        return super.addTask(task, tid(act, id), act, id);
+        if (Action.DOWNLOAD == act) {
+            synchronized (mTiLock) {
+                TmTask cur = getTask(id, act);
+                // Preempted task is being replaced with the new one.
+                if (null != cur
+                    && isTaskInAction(cur)
+                    && !((DownloadTask)cur).isPreempted())
+                    return false;
+                mDnPending.put(id, task);
+                indexTaskLocked(task, id, act);
+            }
+            DownloadManager.get().submit((DownloadTask)task);
+            return true;
+        }
+        return addUpdateTask((UpdateTask)task, id);
+    }
+
+    /**
+     * Called by DownloadManager when download slot is assigned to the task.
+     * @return false if task is not added. Task may be cancelled while waiting, or previous task
+     *   of the item may not be removed yet. (See {@link #isPendingDownload(DownloadTask)})
+     */
+    public boolean
+    startPendingDownload(@NonNull DownloadTask task) {
+        long id = task.getItemId();
+        synchronized (mTiLock) {
+            if (!isPendingDownloadLocked(task)
+                || !super.addTask(task, tid(Action.DOWNLOAD, id), Action.DOWNLOAD, id))
+                return false;
+            mDnPending.remove(id);
+            return true;
+        }
+    }
+
+    public boolean
+    isPendingDownload(@NonNull DownloadTask task) {
+        synchronized (mTiLock) {
+            return isPendingDownloadLocked(task);
+        }
+    }
+
+    /**
+     * Download task waiting for slot, is not in task queue yet. So, it is just dropped.
+     * NOTE
+     * Dropped task doesn't have any event. Caller should refresh it's UI by itself.
+     */
+    public void
+    cancelDownload(@NonNull DownloadTask task) {
+        long id = task.getItemId();
+        boolean pending;
+        synchronized (mTiLock) {
+            pending = isPendingDownloadLocked(task);
+            if (pending) {
+                mDnPending.remove(id);
+                unindexTaskLocked(task, id, Action.DOWNLOAD);
+            }
+        }
+        if (pending)
+            DownloadManager.get().withdraw(task);
+        else
+            cancelTask(task, null);
+    }
+
+    /**
+     * Update task waiting for slot of host, is not in task queue yet. So, it is just dropped.
+     * NOTE
+     * Dropped task doesn't have any event. Caller should refresh it's UI by itself.
+     * @return true if task is dropped.
+     */
+    public boolean
+    cancelUpdate(@NonNull UpdateTask task) {
+        long id = task.getChannelId();
+        synchronized (mTiLock) {
+            if (isPendingUpdateLocked(task)) {
+                // Slot assigned later is passed to next one. See startPendingUpdate().
+                mUpPending.remove(id);
+                unindexTaskLocked(task, id, Action.UPDATE);
+                return true;
+            }
+        }
+        cancelTask(task, null);
+        return false;
     }
 
     @Nullable
     public TmTask
     getTask(long id, Action act) {
+        synchronized (mTiLock) {
+            // Waiting one is newer than one in task queue.(ex. preempted download)
+            TmTask t = Action.DOWNLOAD == act? mDnPending.get(id): mUpPending.get(id);
+            if (null != t)
+                return t;
+        }
         return getTask(tid(act, id));
     }
 
@@ -241,6 +487,11 @@ UnexpectedExceptionHandler.TrackedModule {
     getRtState(TmTask t) {
         if (null == t)
             return RtState.IDLE;
+        synchronized (mTiLock) {
+            if (isPendingDownloadLocked(t)
+                || isPendingUpdateLocked(t))
+                return RtState.READY;
+        }
         switch (t.getState()) {
         case READY:
             return RtState.READY;
@@ -288,21 +539,22 @@ UnexpectedExceptionHandler.TrackedModule {
      */
     public long[]
     getItemsDownloading(long[] cids) {
-        long[] dnids = getItemsDownloading();
-        HashSet<Long> set = new HashSet<>();
-        for (long cid : cids)
-            set.add(cid);
-
-        LinkedList<Long> l = new LinkedList<>();
-        try {
-            mDbp.getDelayedChannelUpdate();
-            for (long dnid : dnids)
-                if (set.contains(mDbp.getItemInfoLong(dnid, ColumnItem.CHANNELID)))
-                    l.add(dnid);
-        } finally {
-            mDbp.putDelayedChannelUpdate();
+        synchronized (mTiLock) {
+            int sz = 0;
+            for (long cid : cids) {
+                LongSparseArray<TmTask> ids = mDnChanIdx.get(cid);
+                if (null != ids)
+                    sz += ids.size();
+            }
+            long[] out = new long[sz];
+            int n = 0;
+            for (long cid : cids) {
+                LongSparseArray<TmTask> ids = mDnChanIdx.get(cid);
+                if (null != ids)
+                    n = collectIdsInActionLocked(ids, Action.DOWNLOAD, out, n);
+            }
+            return (n == sz)? out: Arrays.copyOf(out, n);
         }
-        return convertArrayLongTolong(l.toArray(new Long[l.size()]));
     }
 
     public long[]
@@ -0,0 +1,255 @@
+/******************************************************************************
+ * Copyright (C) 2012, 2013, 2014, 2015, 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of FeedHive
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.feeder.core;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Locale;
+
+import free.yhc.feeder.db.DBPolicy;
+
+//
+// Per-stage timings of channel updates.
+// Each update run fills one Run, and it is written to bounded ring-buffer table.
+// (See ColumnUpdTelem.) So, slow update can be analyzed later by stages.
+//
+public class UpdateTelemetry {
+    public enum Stage {
+        CONNECT,
+        TRANSFER,
+        PARSE,
+        HTML,
+        DEDUPE,
+        INSERT
+    }
+
+    public static class Run {
+        public long seq = -1; // assigned when it is stored.
+        public long cid;
+        public long startTime;
+        public String result = Err.UNKNOWN.name();
+        // ms. Indexed by Stage.ordinal().
+        public final long[] stages = new long[Stage.values().length];
+        public long bytes;
+        public int nrItems;
+        public int nrNew;
+        public long cancelLatency; // ms. From cancel request to the end of update.
+
+        public Run(long aCid) {
+            cid = aCid;
+            startTime = System.currentTimeMillis();
+        }
+
+        public void
+        add(@NonNull Stage stage, long ms) {
+            stages[stage.ordinal()] += ms;
+        }
+
+        public long
+        total() {
+            // HTML is part of PARSE.
+            long sum = 0;
+            for (Stage s : Stage.values()) {
+                if (Stage.HTML != s)
+                    sum += stages[s.ordinal()];
+            }
+            return sum;
+        }
+    }
+
+    public static class StageStat {
+        public final Stage stage;
+        public final long p50;
+        public final long p95;
+
+        StageStat(Stage aStage, long aP50, long aP95) {
+            stage = aStage;
+            p50 = aP50;
+            p95 = aP95;
+        }
+    }
+
+    public static class ChannelStat {
+        public final long cid;
+        public final int nrRuns;
+        public final long avgTotal; // ms
+        public final long maxTotal; // ms
+
+        ChannelStat(long aCid, int aNrRuns, long aAvgTotal, long aMaxTotal) {
+            cid = aCid;
+            nrRuns = aNrRuns;
+            avgTotal = aAvgTotal;
+            maxTotal = aMaxTotal;
+        }
+    }
+
+    /**
+     * @param sorted ascending order.
+     */
+    private static long
+    percentile(long[] sorted, int percent) {
+        if (0 == sorted.length)
+            return 0;
+        // Nearest-rank method.
+        int rank = (int)Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[rank < 1? 0: rank - 1];
+    }
+
+    public static void
+    record(@NonNull Run run) {
+        DBPolicy.get().putUpdTelem(run);
+    }
+
+    /**
+     * Get p50 and p95 of each stage, over successful runs in the table.
+     */
+    @NonNull
+    public static StageStat[]
+    getStageStats(@NonNull LinkedList<Run> runs) {
+        LinkedList<Run> ok = new LinkedList<>();
+        for (Run r : runs) {
+            if (Err.NO_ERR.name().equals(r.result))
+                ok.add(r);
+        }
+        Stage[] stages = Stage.values();
+        StageStat[] stats = new StageStat[stages.length];
+        for (Stage s : stages) {
+            long[] vs = new long[ok.size()];
+            int i = 0;
+            for (Run r : ok)
+                vs[i++] = r.stages[s.ordinal()];
+            Arrays.sort(vs);
+            stats[s.ordinal()] = new StageStat(s, percentile(vs, 50), percentile(vs, 95));
+        }
+        return stats;
+    }
+
+    /**
+     * @return { p50, p95, number of runs } of cancellation latency of cancelled runs.
+     */
+    @NonNull
+    public static long[]
+    getCancelLatencyStat(@NonNull LinkedList<Run> runs) {
+        LinkedList<Long> ls = new LinkedList<>();
+        for (Run r : runs) {
+            if (Err.INTERRUPTED.name().equals(r.result)
+                && r.cancelLatency > 0)
+                ls.add(r.cancelLatency);
+        }
+        long[] vs = new long[ls.size()];
+        int i = 0;
+        for (Long v : ls)
+            vs[i++] = v;
+        Arrays.sort(vs);
+        return new long[] { percentile(vs, 50), percentile(vs, 95), vs.length };
+    }
+
+    /**
+     * @return at most 'max' channels ordered by descending order of average total time.
+     */
+    @NonNull
+    public static ChannelStat[]
+    getSlowestChannels(@NonNull LinkedList<Run> runs, int max) {
+        HashMap<Long, long[]> map = new HashMap<>(); // [0] : nr runs, [1] : sum, [2] : max
+        for (Run r : runs) {
+            if (!Err.NO_ERR.name().equals(r.result))
+                continue;
+            long[] v = map.get(r.cid);
+            if (null == v) {
+                v = new long[3];
+                map.put(r.cid, v);
+            }
+            long total = r.total();
+            v[0]++;
+            v[1] += total;
+            if (total > v[2])
+                v[2] = total;
+        }
+        ChannelStat[] stats = new ChannelStat[map.size()];
+        int i = 0;
+        for (Long cid : map.keySet()) {
+            long[] v = map.get(cid);
+            stats[i++] = new ChannelStat(cid, (int)v[0], v[1] / v[0], v[2]);
+        }
+        Arrays.sort(stats, new Comparator<ChannelStat>() {
+            @Override
+            public int
+            compare(ChannelStat s0, ChannelStat s1) {
+                return Long.compare(s1.avgTotal, s0.avgTotal);
+            }
+        });
+        return (stats.length > max)? Arrays.copyOf(stats, max): stats;
+    }
+
+    /**
+     * Write all runs as CSV. First line is header.
+     */
+    public static void
+    exportCsv(@NonNull LinkedList<Run> runs, @NonNull File f) throws IOException {
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8")) {
+            StringBuilder sbldr = new StringBuilder("seq,channel,start,result");
+            for (Stage s : Stage.values())
+                sbldr.append(',').append(s.name().toLowerCase(Locale.US));
+            sbldr.append(",bytes,items,new,cancel\n");
+            w.write(sbldr.toString());
+            for (Run r : runs) {
+                sbldr.setLength(0);
+                sbldr.append(r.seq).append(',')
+                     .append(r.cid).append(',')
+                     .append(r.startTime).append(',')
+                     .append(r.result);
+                for (long v : r.stages)
+                    sbldr.append(',').append(v);
+                sbldr.append(',').append(r.bytes)
+                     .append(',').append(r.nrItems)
+                     .append(',').append(r.nrNew)
+                     .append(',').append(r.cancelLatency)
+                     .append('\n');
+                w.write(sbldr.toString());
+            }
+        }
+    }
+}
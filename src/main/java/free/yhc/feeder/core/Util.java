@@ -49,6 +49,7 @@ import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.LinkedList;
+import java.util.Random;
 
 import org.apache.http.impl.cookie.DateParseException;
 import org.apache.http.impl.cookie.DateUtils;
@@ -507,6 +508,71 @@ public class Util extends free.yhc.baselib.util.Util {
         return sPrefs.getBoolean(getResString(R.string.csnewmsg_noti), true);
     }
 
+    public static boolean
+    isPrefAdaptiveUpdate() {
+        return sPrefs.getBoolean(getResString(R.string.csadaptive_update), false);
+    }
+
+    public static boolean
+    isPrefBatchUpdateAlarm() {
+        return sPrefs.getBoolean(getResString(R.string.csbatch_update_alarm), true);
+    }
+
+    /**
+     * Random value that is generated at first call and kept for this install.
+     * This is used to spread work of installs over time.(ex. scheduled update)
+     * @return non-negative value.
+     */
+    public static long
+    getInstallRandom() {
+        String key = getResString(R.string.csinstall_random);
+        long v = sPrefs.getLong(key, -1);
+        if (v < 0) {
+            v = new Random().nextLong() & Long.MAX_VALUE;
+            SharedPreferences.Editor prefEd = sPrefs.edit();
+            prefEd.putLong(key, v);
+            prefEd.apply();
+        }
+        return v;
+    }
+
+    private static long
+    getPrefMinutesAsMs(int keyId, String defValue) {
+        String v = sPrefs.getString(getResString(keyId), defValue);
+        long value = Long.parseLong(defValue);
+        try {
+            value = Long.parseLong(v);
+        } catch (NumberFormatException e) {
+            P.bug(false);
+        }
+        return value * 60 * 1000;
+    }
+
+    /**
+     * @return ms
+     */
+    public static long
+    getPrefAdaptiveMinInterval() {
+        return getPrefMinutesAsMs(R.string.csadaptive_min_interval, "60");
+    }
+
+    /**
+     * @return ms
+     */
+    public static long
+    getPrefAdaptiveMaxInterval() {
+        return getPrefMinutesAsMs(R.string.csadaptive_max_interval, "1440");
+    }
+
+    /**
+     * Time budget of one scheduled update run.
+     * @return ms. '0' means 'unlimited'.
+     */
+    public static long
+    getPrefUpdateTimeBudget() {
+        return getPrefMinutesAsMs(R.string.csupdate_time_budget, "5");
+    }
+
     public static int
     getPrefMaxNrBgTask() {
         String v = sPrefs.getString(getResString(R.string.csmaxnr_bgtask), "2");
@@ -519,6 +585,65 @@ public class Util extends free.yhc.baselib.util.Util {
         return value;
     }
 
+    public static int
+    getPrefMaxNrDownload() {
+        String v = sPrefs.getString(getResString(R.string.csmaxnr_download), "2");
+        int value = 2;
+        try {
+            value = Integer.parseInt(v);
+        } catch (NumberFormatException e) {
+            P.bug(false);
+        }
+        return value < 1? 1: value;
+    }
+
+    /**
+     * @return bytes per second. '<= 0' means 'unlimited'.
+     */
+    public static long
+    getPrefDnRateLimit() {
+        String v = sPrefs.getString(getResString(R.string.csdn_rate_limit), "0");
+        long value = 0;
+        try {
+            value = Long.parseLong(v);
+        } catch (NumberFormatException e) {
+            P.bug(false);
+        }
+        return value * 1024;
+    }
+
+    /**
+     * Get number of connections used to download one large file.
+     * @return '1' means segmented download is not used.
+     */
+    public static int
+    getPrefDnSegments() {
+        String v = sPrefs.getString(getResString(R.string.csdn_segments), "1");
+        int value = 1;
+        try {
+            value = Integer.parseInt(v);
+        } catch (NumberFormatException e) {
+            P.bug(false);
+        }
+        return value < 1? 1: value;
+    }
+
+    /**
+     * Get age of item to be archived.
+     * @return days. '<= 0' means 'items are never archived by age'.
+     */
+    public static int
+    getPrefArchiveAge() {
+        String v = sPrefs.getString(getResString(R.string.csarchive_age), "0");
+        int value = 0;
+        try {
+            value = Integer.parseInt(v);
+        } catch (NumberFormatException e) {
+            P.bug(false);
+        }
+        return value;
+    }
+
     /**
      * Get BG task thread priority from shared preference.
      * @return Value of Java Thread priority (between Thread.MIN_PRIORITY and Thread.MAX_PRIORITY)
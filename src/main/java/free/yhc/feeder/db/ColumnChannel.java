@@ -44,7 +44,10 @@ public enum ColumnChannel implements DB.Column {
     DESCRIPTION     ("description",     "text",     "not null"),
 
     // Columns for internal use.
-    IMAGEBLOB       ("imageblob",       "blob",     "not null"), // image from channel tag.
+    // Reference(hash string) of channel icon stored at IconStore.
+    // Raw image data is stored directly at old version - it is migrated to IconStore.
+    // (See DBPolicy.migrateChannelIcons)
+    IMAGEBLOB       ("imageblob",       "blob",     "not null"),
     LASTUPDATE      ("lastupdate",      "integer",  "not null"), // time when channel is updated, lastly
     // For fast/simple comparison, flag of 'long' type is used instead of text.
     ACTION          ("action",          "integer",  "not null"),
@@ -73,8 +76,7 @@ public enum ColumnChannel implements DB.Column {
     // number of items to keep in item table.
     // This is not hard-limit but soft-limit!
     // (There is no reason to support hard-limit. Soft-limit is enough!)
-    //
-    // NOT USED YET! For future use.
+    // Items out of this limit are moved to archive. (See DBPolicy.archiveItems)
     NRITEMS_SOFTMAX ("nritemssoftmax",  "integer",  "not null"),
     URL             ("url",             "text",     "not null"), // channel url of this rss.
     CATEGORYID      ("categoryid",      "integer",  ""),
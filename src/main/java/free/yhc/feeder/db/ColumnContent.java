@@ -0,0 +1,72 @@
+/******************************************************************************
+ * Copyright (C) 2012, 2013, 2014
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of FeedHive
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.feeder.db;
+
+// Columns of table indexing downloaded item data by it's content.
+// Same data referred by several items(ex. cross-posted podcast episode) is found by URL
+//   or by hash, and it is not downloaded again.
+// NOTE
+// Item id is NOT foreign key. Row is just a hint. File of the item should be verified before use.
+public enum ColumnContent implements DB.Column {
+    // SHA-1 hex string of data.
+    HASH            ("hash",            "text",     "not null"),
+    // 'ETag' header of response. Empty if server doesn't give it.
+    ETAG            ("etag",            "text",     "not null"),
+    // 'Last-Modified' header of response. Empty if server doesn't give it.
+    LASTMODIFIED    ("lastmodified",    "text",     "not null"),
+    LENGTH          ("length",          "integer",  "not null"),
+    // Item whose data file has this content.
+    ITEMID          ("itemid",          "integer",  "not null"),
+    // URL that data is downloaded from.
+    URL             ("url",             "text",     "primary key");
+
+    private final String _mName;
+    private final String _mType;
+    private final String _mConstraint;
+
+    ColumnContent(String name, String type, String constraint) {
+        _mName = name;
+        _mType = type;
+        _mConstraint = constraint;
+    }
+    @Override
+    public String getName() { return _mName; }
+    @Override
+    public String getType() { return _mType; }
+    @Override
+    public String getConstraint() { return _mConstraint; }
+}
@@ -0,0 +1,87 @@
+/******************************************************************************
+ * Copyright (C) 2012, 2013, 2014
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of FeedHive
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.feeder.db;
+
+// Columns of table keeping timings of recent channel updates, per stage.
+// This is ring buffer. Row at slot 'SEQ % size' is overwritten by new one.
+// NOTE
+// Channel id is NOT foreign key. Rows are removed with channel, but they are just statistics.
+public enum ColumnUpdTelem implements DB.Column {
+    // Sequence number of update run. Larger is newer.
+    SEQ             ("seq",             "integer",  "not null"),
+    CHANNELID       ("channelid",       "integer",  "not null"),
+    // Time when update is started.(milliseconds since 1970.1.1....)
+    STARTTIME       ("starttime",       "integer",  "not null"),
+    // Name of Err of the update.
+    RESULT          ("result",          "text",     "not null"),
+    // Stage timings (ms).
+    // connect  : until first byte of feed document arrives.
+    // transfer : rest of reading document.
+    // parse    : parsing document, including 'html'.
+    // html     : beautifying html text of items.
+    // dedupe   : finding new items.
+    // insert   : writing channel and new items.
+    CONNECT         ("connect",         "integer",  "not null"),
+    TRANSFER        ("transfer",        "integer",  "not null"),
+    PARSE           ("parse",           "integer",  "not null"),
+    HTML            ("html",            "integer",  "not null"),
+    DEDUPE          ("dedupe",          "integer",  "not null"),
+    INSERT          ("insert",          "integer",  "not null"),
+    // Size of feed document.
+    BYTES           ("bytes",           "integer",  "not null"),
+    NRITEMS         ("nritems",         "integer",  "not null"),
+    NRNEW           ("nrnew",           "integer",  "not null"),
+    // Time(ms) from cancel request to the end of update. '0' if update is not cancelled.
+    CANCEL          ("cancel",          "integer",  "not null"),
+    SLOT            ("slot",            "integer",  "primary key");
+
+    private final String _mName;
+    private final String _mType;
+    private final String _mConstraint;
+
+    ColumnUpdTelem(String name, String type, String constraint) {
+        _mName = name;
+        _mType = type;
+        _mConstraint = constraint;
+    }
+    @Override
+    public String getName() { return _mName; }
+    @Override
+    public String getType() { return _mType; }
+    @Override
+    public String getConstraint() { return _mConstraint; }
+}
@@ -36,14 +36,18 @@
 
 package free.yhc.feeder.db;
 
+import java.io.File;
 import java.lang.reflect.Method;
 import java.util.HashMap;
+import java.util.Map;
 
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.support.annotation.NonNull;
 
 import free.yhc.abaselib.AppEnv;
 import free.yhc.baselib.Logger;
@@ -72,6 +76,22 @@ UnexpectedExceptionHandler.TrackedModule {
     static final String TABLE_CATEGORY = "category";
     static final String TABLE_CHANNEL = "channel";
     static final String TABLE_ITEM = "item";
+    // Tables below are not verified at 'verifyDB', and created when DB is opened if they don't exist.
+    // So, DB that doesn't have them (ex. DB exported by old version) can still be used.
+    static final String TABLE_SCHED = "sched";
+    static final String TABLE_UPDFAIL = "updfail";
+    static final String TABLE_DNJOURNAL = "dnjournal";
+    static final String TABLE_CONTENT = "content";
+    static final String TABLE_ICONSRC = "iconsrc";
+    static final String TABLE_UPDSTAT = "updstat";
+    static final String TABLE_UPDTELEM = "updtelem";
+    // Archived(cold) items are moved out from item table to this table.
+    // Archived item keeps it's id. So, id is still unique over both tables.
+    // NOTE
+    // Archive is kept at main database file on purpose.
+    // Attached database disables write-ahead-logging of whole database, can't be attached
+    //   inside transaction, and is not part of exported database.
+    static final String TABLE_ITEM_ARCHIVE = "item_archive";
 
     // NOTE
     // Oops... mistake on spelling - 'feeder.db' is right.
@@ -81,11 +101,29 @@ UnexpectedExceptionHandler.TrackedModule {
     private static final String NAME = "feader.db";
     private static final int VERSION = 3;
 
+    // Separate archive database file used by development versions.
+    // Items in it are moved to TABLE_ITEM_ARCHIVE when database is opened.
+    private static final String LEGACY_ARCHIVE_NAME = "feader_archive.db";
+
     private static final long FLAG_CATEGORY_TABLE = 0x1;
     private static final long FLAG_CHANNEL_TABLE  = 0x10;
     private static final long FLAG_CHANNEL_DATA   = 0x20;
     private static final long FLAG_ITEM_TABLE     = 0x100;
 
+    // Indexes of item table.
+    // Almost all item queries are 'items of channel(s)' ordered by pubtime,
+    //   or 'all items' ordered by pubtime.
+    // NOTE
+    // Indexes are not part of table SQL. So, they don't affect 'verifyDB'.
+    // That is, DB exported before indexes were introduced, can still be imported.
+    private static final String[][] ITEM_INDEXES = new String[][] {
+            // { <index name suffix>, <columns> }
+            new String[] { "channelid_pubtime",
+                           ColumnItem.CHANNELID.getName() + ", " + ColumnItem.PUBTIME.getName() },
+            new String[] { "pubtime",
+                           ColumnItem.PUBTIME.getName() },
+    };
+
     private static final String ITEM_QUERY_DEFAULT_ORDER = ColumnItem.PUBTIME.getName() + " DESC";
     private static final String CHANNEL_QUERY_DEFAULT_ORDER = ColumnChannel.POSITION.getName() + " ASC";
 
@@ -297,6 +335,110 @@ UnexpectedExceptionHandler.TrackedModule {
         return strs;
     }
 
+    /**
+     * Expression of item state that overrides ones at DB with given states.
+     * Used to merge item states that are not written to DB yet (See DBPolicy#updateItemAsync_state)
+     * @param states Key : item id, Value : state. 'null' or empty if there is nothing to override.
+     */
+    private static String
+    buildItemStateExpr(Map<Long, Long> states) {
+        if (null == states || states.isEmpty())
+            return ColumnItem.STATE.getName();
+        StringBuilder sbldr = new StringBuilder("(CASE ").append(ColumnItem.ID.getName());
+        for (Map.Entry<Long, Long> e : states.entrySet())
+            sbldr.append(" WHEN ").append(e.getKey())
+                 .append(" THEN ").append(e.getValue());
+        return sbldr.append(" ELSE ").append(ColumnItem.STATE.getName()).append(" END)").toString();
+    }
+
+    /**
+     * See {@link DB#getColumnNames(Column[])}.
+     * State column is replaced with expression merging 'states'. See buildItemStateExpr().
+     */
+    private static String[]
+    getItemColumnNames(ColumnItem[] cols, Map<Long, Long> states) {
+        String[] strs = getColumnNames(cols);
+        if (null == states || states.isEmpty())
+            return strs;
+        for (int i = 0; i < cols.length; i++) {
+            if (ColumnItem.STATE == cols[i])
+                strs[i] = buildItemStateExpr(states) + " AS " + ColumnItem.STATE.getName();
+        }
+        return strs;
+    }
+
+    private static File
+    getLegacyArchiveFile() {
+        return AppEnv.getAppContext().getDatabasePath(LEGACY_ARCHIVE_NAME);
+    }
+
+    /**
+     * Build item query SQL.
+     * @param columns result columns. 'null' for all columns.
+     * @param where 'null' or empty string for all items.
+     * @param withArchive true to include archived items too.
+     */
+    private static String
+    buildItemQuerySQL(String[] columns, String where, String orderBy, String limit,
+                      boolean withArchive) {
+        if (null != where && where.isEmpty())
+            where = null;
+        String table = TABLE_ITEM;
+        if (withArchive) {
+            // Where clause is put into each table of UNION.
+            // Then each table is looked up with it's own indexes, regardless of
+            //   whether SQLite can push outer where clause down into compound sub-query or not.
+            String wh = (null == where)? "": " WHERE " + where;
+            table = "(SELECT * FROM " + TABLE_ITEM + wh
+                    + " UNION ALL SELECT * FROM " + TABLE_ITEM_ARCHIVE + wh + ")";
+            where = null;
+        }
+        return SQLiteQueryBuilder.buildQueryString(false,
+                                                   table,
+                                                   columns,
+                                                   where,
+                                                   null, null,
+                                                   orderBy,
+                                                   limit);
+    }
+
+    /**
+     * Create item table(TABLE_ITEM or TABLE_ITEM_ARCHIVE) and it's indexes if they don't exist yet.
+     */
+    static void
+    createItemTable(SQLiteDatabase db, String table) {
+        createTableIfNotExists(db, null, table, ColumnItem.values());
+        createItemIndexes(db, table);
+    }
+
+    /**
+     * Create indexes of item table(TABLE_ITEM or TABLE_ITEM_ARCHIVE) if they don't exist yet.
+     * Index name is '<table>_<suffix>'.
+     */
+    private static void
+    createItemIndexes(SQLiteDatabase db, String table) {
+        for (String[] idx : ITEM_INDEXES)
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + table + "_" + idx[0]
+                       + " ON " + table + " (" + idx[1] + ");");
+    }
+
+    /**
+     * Create table if it doesn't exist yet.
+     * @param schema 'null' for main database.
+     */
+    private static void
+    createTableIfNotExists(SQLiteDatabase db, String schema, String table, Column[] cols) {
+        String prefix = (null == schema)? "": schema + ".";
+        Cursor c = db.query(prefix + "sqlite_master",
+                            new String[] {"name"},
+                            "type = 'table' AND name = " + DatabaseUtils.sqlEscapeString(table),
+                            null, null, null, null);
+        boolean exists = c.moveToFirst();
+        c.close();
+        if (!exists)
+            db.execSQL(buildTableSQL(prefix + table, cols));
+    }
+
     @SuppressWarnings("unused")
     private boolean
     doesTableExists(String tablename) {
@@ -364,6 +506,8 @@ UnexpectedExceptionHandler.TrackedModule {
         db.execSQL(buildTableSQL(TABLE_CATEGORY, ColumnCategory.values()));
         db.execSQL(buildTableSQL(TABLE_CHANNEL,  ColumnChannel.values()));
         db.execSQL(buildTableSQL(TABLE_ITEM,     ColumnItem.values()));
+        // Table is empty. So, this is cheap.
+        createItemIndexes(db, TABLE_ITEM);
         // default category is empty-named-category
         db.execSQL("INSERT INTO " + TABLE_CATEGORY + " ("
                     + ColumnCategory.NAME.getName() + ", " + ColumnCategory.ID.getName() + ") "
@@ -395,7 +539,18 @@ UnexpectedExceptionHandler.TrackedModule {
     public void
     onOpen(SQLiteDatabase db) {
         super.onOpen(db);
-        // Something to do???
+        createTableIfNotExists(db, null, TABLE_SCHED, ColumnSched.values());
+        createTableIfNotExists(db, null, TABLE_UPDFAIL, ColumnUpdFail.values());
+        createTableIfNotExists(db, null, TABLE_DNJOURNAL, ColumnDnJournal.values());
+        createTableIfNotExists(db, null, TABLE_CONTENT, ColumnContent.values());
+        createTableIfNotExists(db, null, TABLE_ICONSRC, ColumnIconSrc.values());
+        createTableIfNotExists(db, null, TABLE_UPDSTAT, ColumnUpdStat.values());
+        createTableIfNotExists(db, null, TABLE_UPDTELEM, ColumnUpdTelem.values());
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_CONTENT + "_hash"
+                   + " ON " + TABLE_CONTENT + "(" + ColumnContent.HASH.getName() + ");");
+        // Indexes of item table are created later at background. See createItemIndexes().
+        // Archive table is empty when it's newly created. So, creating it's indexes is cheap.
+        createItemTable(db, TABLE_ITEM_ARCHIVE);
     }
 
     /**************************************
@@ -415,9 +570,60 @@ UnexpectedExceptionHandler.TrackedModule {
 
     public void
     open() {
-        mDb = getWritableDatabase();
+        SQLiteDatabase db = getWritableDatabase();
+        migrateLegacyArchive(db);
         // In general WAL shows better performance.
-        mDb.enableWriteAheadLogging();
+        db.enableWriteAheadLogging();
+        mDb = db;
+    }
+
+    /**
+     * Move items of legacy archive database file into TABLE_ITEM_ARCHIVE, and delete the file.
+     * NOTE
+     * ATTACH is done with separate connection.
+     * SQLiteDatabase never enables write-ahead-logging again once database is attached to it.
+     */
+    private static void
+    migrateLegacyArchive(SQLiteDatabase db) {
+        File f = getLegacyArchiveFile();
+        if (!f.exists())
+            return;
+        SQLiteDatabase conn = SQLiteDatabase.openDatabase(db.getPath(), null,
+                                                          SQLiteDatabase.OPEN_READWRITE);
+        try {
+            conn.execSQL("ATTACH DATABASE "
+                         + DatabaseUtils.sqlEscapeString(f.getAbsolutePath()) + " AS legacy;");
+            Cursor c = conn.query("legacy.sqlite_master",
+                                  new String[] {"name"},
+                                  "type = 'table' AND name = "
+                                  + DatabaseUtils.sqlEscapeString(TABLE_ITEM),
+                                  null, null, null, null);
+            boolean exists = c.moveToFirst();
+            c.close();
+            if (exists)
+                conn.execSQL("INSERT OR IGNORE INTO " + TABLE_ITEM_ARCHIVE
+                             + " SELECT * FROM legacy." + TABLE_ITEM + ";");
+        } finally {
+            conn.close();
+        }
+        SQLiteDatabase.deleteDatabase(f);
+    }
+
+    /**
+     * Create indexes of item tables if they don't exist yet.
+     * DB created by older version(or imported one) may not have them.
+     * NOTE
+     * Creating index on big item table may take long time. So, this is NOT done at onOpen(),
+     *   that runs at application start on UI thread. Caller SHOULD run this at background.
+     * Until indexes are created, queries still work(just slower). And, in WAL mode, readers are
+     *   not blocked while index is being created. Only other writers wait.
+     */
+    void
+    createItemIndexes() {
+        long startTime = System.currentTimeMillis();
+        createItemIndexes(mDb, TABLE_ITEM);
+        createItemIndexes(mDb, TABLE_ITEM_ARCHIVE);
+        if (DBG) P.v("Item indexes are ready : " + (System.currentTimeMillis() - startTime) + " ms");
     }
 
     @Override
@@ -429,8 +635,8 @@ UnexpectedExceptionHandler.TrackedModule {
      * DB monitoring
      **************************************/
     void
-    registerUpdatedListener(ListenerManager.Listener listener, long flag) {
-        mLm.registerListener(listener, null, flag);
+    registerUpdatedListener(ListenerManager.Listener listener, long flag, boolean ordered) {
+        mLm.registerListener(null, listener, null, flag, ordered);
     }
 
     void
@@ -488,6 +694,71 @@ UnexpectedExceptionHandler.TrackedModule {
         mDb.endTransaction();
     }
 
+    boolean
+    inTransaction() {
+        return mDb.inTransaction();
+    }
+
+    /**
+     * Run 'r' in one IMMEDIATE transaction.
+     * With WAL, readers are not blocked while 'r' is running.
+     * Transaction is rolled back if 'r' throws exception.
+     */
+    void
+    runInTransaction(@NonNull Runnable r) {
+        mDb.beginTransactionNonExclusive();
+        try {
+            r.run();
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    // NOTE
+    // Nested beginTransaction() of SQLiteDatabase doesn't use SAVEPOINT. Nested transaction
+    //   ended without success makes whole outer transaction rolled back silently.
+    // And SQLiteDatabase handles statement starting with "ROLLBACK" as 'end of transaction'.
+    //   (See DatabaseUtils.getSqlStatementType())
+    // So, SAVEPOINT statements are issued directly here.
+    /**
+     * Begin SAVEPOINT in current transaction.
+     * SHOULD be ended with releaseSavepoint() or rollbackToSavepoint().
+     */
+    void
+    beginSavepoint(@NonNull String name) {
+        P.bug(mDb.inTransaction());
+        mDb.execSQL("SAVEPOINT " + name + ";");
+    }
+
+    void
+    releaseSavepoint(@NonNull String name) {
+        mDb.execSQL("RELEASE " + name + ";");
+    }
+
+    /**
+     * Roll back changes since SAVEPOINT 'name', and release it.
+     * Outer transaction is still valid.
+     */
+    void
+    rollbackToSavepoint(@NonNull String name) {
+        // Leading comment keeps SQLiteDatabase from ending whole transaction.
+        mDb.execSQL("/* savepoint */ ROLLBACK TO " + name + ";");
+        mDb.execSQL("RELEASE " + name + ";");
+    }
+
+    /**
+     * Notify that items and data of given channels are changed.
+     * Used after batched transaction to let listeners, who already queried in the middle of
+     *   transaction, query again with committed data.
+     */
+    void
+    notifyChannelsUpdated(@NonNull long[] cids) {
+        mLm.notifyIndirect(UpdateType.ITEM_TABLE);
+        for (long cid : cids)
+            mLm.notifyIndirect(UpdateType.CHANNEL_DATA, cid);
+    }
+
     // ====================
     //
     // Category
@@ -765,10 +1036,20 @@ UnexpectedExceptionHandler.TrackedModule {
         } while (c.moveToNext());
 
         String wh = buildSQLWhere(cols, cids, "=", "OR");
+        // Schedule has channel id as it's foreign key too.
+        // Column name is same with item's one.
+        mDb.delete(TABLE_SCHED, wh.isEmpty()? null: wh, null);
+        mDb.delete(TABLE_UPDFAIL, wh.isEmpty()? null: wh, null);
+        mDb.delete(TABLE_ICONSRC, wh.isEmpty()? null: wh, null);
+        mDb.delete(TABLE_UPDSTAT, wh.isEmpty()? null: wh, null);
+        mDb.delete(TABLE_UPDTELEM, wh.isEmpty()? null: wh, null);
         // delete items first
         long nrItems = mDb.delete(TABLE_ITEM,
                                   wh.isEmpty()? null: wh,
                                   null);
+        nrItems += mDb.delete(TABLE_ITEM_ARCHIVE,
+                              wh.isEmpty()? null: wh,
+                              null);
         // then delete channel.
         int nr = mDb.delete(TABLE_CHANNEL, chWhereStr, null);
 
@@ -784,6 +1065,229 @@ UnexpectedExceptionHandler.TrackedModule {
         return nrItems;
     }
 
+    // ====================
+    //
+    // Schedule
+    //
+    // ====================
+    /**
+     * Insert or replace schedule of channel.
+     */
+    long
+    updateSched(long cid, long interval, long nextupdate) {
+        ContentValues values = new ContentValues();
+        values.put(ColumnSched.CHANNELID.getName(), cid);
+        values.put(ColumnSched.INTERVAL.getName(), interval);
+        values.put(ColumnSched.NEXTUPDATE.getName(), nextupdate);
+        return mDb.insertWithOnConflict(TABLE_SCHED, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * @param cid '< 0' for all channels.
+     */
+    Cursor
+    querySched(ColumnSched[] columns, long cid) {
+        return mDb.query(TABLE_SCHED,
+                         getColumnNames(columns),
+                         (cid < 0)? null: ColumnSched.CHANNELID.getName() + " = " + cid,
+                         null, null, null, null);
+    }
+
+    // ====================
+    //
+    // Update statistics
+    //
+    // ====================
+    long
+    updateUpdStat(long cid, long latency) {
+        ContentValues values = new ContentValues();
+        values.put(ColumnUpdStat.CHANNELID.getName(), cid);
+        values.put(ColumnUpdStat.LATENCY.getName(), latency);
+        return mDb.insertWithOnConflict(TABLE_UPDSTAT, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * @param cid '< 0' for all channels.
+     */
+    Cursor
+    queryUpdStat(ColumnUpdStat[] columns, long cid) {
+        return mDb.query(TABLE_UPDSTAT,
+                         getColumnNames(columns),
+                         (cid < 0)? null: ColumnUpdStat.CHANNELID.getName() + " = " + cid,
+                         null, null, null, null);
+    }
+
+    // ====================
+    //
+    // Update telemetry
+    //
+    // ====================
+    /**
+     * Write to slot of ring buffer. Row at the slot is replaced.
+     */
+    long
+    updateUpdTelem(ContentValues values) {
+        return mDb.insertWithOnConflict(TABLE_UPDTELEM, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Ordered by ascending order of sequence number - from oldest.
+     */
+    Cursor
+    queryUpdTelem(ColumnUpdTelem[] columns) {
+        return mDb.query(TABLE_UPDTELEM,
+                         getColumnNames(columns),
+                         null, null, null, null,
+                         ColumnUpdTelem.SEQ.getName() + " ASC");
+    }
+
+    Cursor
+    queryUpdTelemMaxSeq() {
+        return mDb.rawQuery("SELECT MAX(" + ColumnUpdTelem.SEQ.getName() + ") FROM " + TABLE_UPDTELEM, null);
+    }
+
+    // ====================
+    //
+    // Update failure
+    //
+    // ====================
+    /**
+     * Insert or replace failure state of channel.
+     */
+    long
+    updateUpdFail(long cid, long nrfail, @NonNull String lasterr, long retrytime) {
+        ContentValues values = new ContentValues();
+        values.put(ColumnUpdFail.CHANNELID.getName(), cid);
+        values.put(ColumnUpdFail.NRFAIL.getName(), nrfail);
+        values.put(ColumnUpdFail.LASTERR.getName(), lasterr);
+        values.put(ColumnUpdFail.RETRYTIME.getName(), retrytime);
+        long r = mDb.insertWithOnConflict(TABLE_UPDFAIL, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        mLm.notifyIndirect(UpdateType.CHANNEL_DATA, cid);
+        return r;
+    }
+
+    int
+    deleteUpdFail(long cid) {
+        int nr = mDb.delete(TABLE_UPDFAIL, ColumnUpdFail.CHANNELID.getName() + " = " + cid, null);
+        if (nr > 0)
+            mLm.notifyIndirect(UpdateType.CHANNEL_DATA, cid);
+        return nr;
+    }
+
+    /**
+     * @param cid '< 0' for all channels.
+     */
+    Cursor
+    queryUpdFail(ColumnUpdFail[] columns, long cid) {
+        return mDb.query(TABLE_UPDFAIL,
+                         getColumnNames(columns),
+                         (cid < 0)? null: ColumnUpdFail.CHANNELID.getName() + " = " + cid,
+                         null, null, null, null);
+    }
+
+    // ====================
+    //
+    // Icon source
+    //
+    // ====================
+    /**
+     * Insert or replace icon source of channel.
+     */
+    long
+    updateIconSrc(long cid, @NonNull String url, @NonNull String refs, @NonNull String etag,
+                  @NonNull String lastModified, @NonNull String hash, long checktime) {
+        ContentValues values = new ContentValues();
+        values.put(ColumnIconSrc.CHANNELID.getName(), cid);
+        values.put(ColumnIconSrc.URL.getName(), url);
+        values.put(ColumnIconSrc.REFS.getName(), refs);
+        values.put(ColumnIconSrc.ETAG.getName(), etag);
+        values.put(ColumnIconSrc.LASTMODIFIED.getName(), lastModified);
+        values.put(ColumnIconSrc.HASH.getName(), hash);
+        values.put(ColumnIconSrc.CHECKTIME.getName(), checktime);
+        return mDb.insertWithOnConflict(TABLE_ICONSRC, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Delete icon sources of all channels.
+     */
+    long
+    deleteIconSrc() {
+        return mDb.delete(TABLE_ICONSRC, null, null);
+    }
+
+    Cursor
+    queryIconSrc(ColumnIconSrc[] columns, long cid) {
+        return mDb.query(TABLE_ICONSRC,
+                         getColumnNames(columns),
+                         ColumnIconSrc.CHANNELID.getName() + " = " + cid,
+                         null, null, null, null);
+    }
+
+    // ====================
+    //
+    // Download journal
+    //
+    // ====================
+    /**
+     * Insert or replace journal of item.
+     */
+    long
+    updateDnJournal(long id, @NonNull String url, @NonNull String etag,
+                    @NonNull String lastModified, long length) {
+        ContentValues values = new ContentValues();
+        values.put(ColumnDnJournal.ITEMID.getName(), id);
+        values.put(ColumnDnJournal.URL.getName(), url);
+        values.put(ColumnDnJournal.ETAG.getName(), etag);
+        values.put(ColumnDnJournal.LASTMODIFIED.getName(), lastModified);
+        values.put(ColumnDnJournal.LENGTH.getName(), length);
+        return mDb.insertWithOnConflict(TABLE_DNJOURNAL, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    int
+    deleteDnJournal(long id) {
+        return mDb.delete(TABLE_DNJOURNAL, ColumnDnJournal.ITEMID.getName() + " = " + id, null);
+    }
+
+    /**
+     * @param id '< 0' for all items.
+     */
+    Cursor
+    queryDnJournal(ColumnDnJournal[] columns, long id) {
+        return mDb.query(TABLE_DNJOURNAL,
+                         getColumnNames(columns),
+                         (id < 0)? null: ColumnDnJournal.ITEMID.getName() + " = " + id,
+                         null, null, null, null);
+    }
+
+    // ====================
+    //
+    // Content index
+    //
+    // ====================
+    /**
+     * Insert or replace content record of url.
+     */
+    long
+    updateContent(@NonNull String url, @NonNull String hash, @NonNull String etag,
+                  @NonNull String lastModified, long length, long id) {
+        ContentValues values = new ContentValues();
+        values.put(ColumnContent.URL.getName(), url);
+        values.put(ColumnContent.HASH.getName(), hash);
+        values.put(ColumnContent.ETAG.getName(), etag);
+        values.put(ColumnContent.LASTMODIFIED.getName(), lastModified);
+        values.put(ColumnContent.LENGTH.getName(), length);
+        values.put(ColumnContent.ITEMID.getName(), id);
+        return mDb.insertWithOnConflict(TABLE_CONTENT, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    Cursor
+    queryContent(ColumnContent[] columns, @NonNull ColumnContent where, @NonNull String value) {
+        return mDb.query(TABLE_CONTENT,
+                         getColumnNames(columns),
+                         where.getName() + " = " + DatabaseUtils.sqlEscapeString(value),
+                         null, null, null, null);
+    }
+
     // ====================
     //
     // Item
@@ -809,10 +1313,12 @@ UnexpectedExceptionHandler.TrackedModule {
      */
     long
     updateItem(long id, ContentValues values) {
-        return mDb.update(TABLE_ITEM,
-                          values,
-                          ColumnItem.ID.getName() + " = " + id,
-                          null);
+        String wh = ColumnItem.ID.getName() + " = " + id;
+        int nr = mDb.update(TABLE_ITEM, values, wh, null);
+        // Item may be archived one.
+        if (0 == nr)
+            nr = mDb.update(TABLE_ITEM_ARCHIVE, values, wh, null);
+        return nr;
     }
 
     /**
@@ -833,6 +1339,55 @@ UnexpectedExceptionHandler.TrackedModule {
         return updateItem(id, cvs);
     }
 
+    /**
+     * Update set of item rows with one SQL statement.
+     * See {@link DB#updateChannelSet(ColumnChannel, Object[], ColumnChannel, Object[])}
+     *   for SQL statement generated.
+     * @param target Column to be changed.
+     * @param targetValues Target value array
+     * @param where Column to compare
+     * @param whereValues Values to compare with value of 'where' field.
+     */
+    void
+    updateItemSet(ColumnItem target, Object[] targetValues,
+                  ColumnItem where,  Object[] whereValues) {
+        P.bug(targetValues.length == whereValues.length);
+        if (targetValues.length <= 0)
+            return;
+
+        execItemSetSQL(TABLE_ITEM, target, targetValues, where, whereValues);
+        // Some of them may be archived items.
+        execItemSetSQL(TABLE_ITEM_ARCHIVE, target, targetValues, where, whereValues);
+        // NOTE
+        // Like 'updateItem', this is not notified.
+        // Item state is read from DB whenever item view is bound(see ItemListActivity),
+        //   and list is refreshed at 'onResume'. So, no one listens to item state change.
+    }
+
+    private void
+    execItemSetSQL(String table,
+                   ColumnItem target, Object[] targetValues,
+                   ColumnItem where,  Object[] whereValues) {
+        StringBuilder sbldr = new StringBuilder();
+        sbldr.append("UPDATE " + table + " ")
+             .append(" SET ")
+             .append(target.getName())
+             .append(" = CASE ")
+             .append(where.getName());
+        for (int i = 0; i < targetValues.length; i++) {
+            sbldr.append(" WHEN ").append(DatabaseUtils.sqlEscapeString(whereValues[i].toString()))
+                 .append(" THEN ").append(DatabaseUtils.sqlEscapeString(targetValues[i].toString()));
+        }
+        sbldr.append(" END WHERE ").append(where.getName()).append(" IN (");
+        for (int i = 0; i < whereValues.length;) {
+            sbldr.append(DatabaseUtils.sqlEscapeString(whereValues[i].toString()));
+            if (++i < whereValues.length)
+                sbldr.append(", ");
+        }
+        sbldr.append(");");
+        mDb.execSQL(sbldr.toString());
+    }
+
     /**
      */
     Cursor
@@ -840,7 +1395,7 @@ UnexpectedExceptionHandler.TrackedModule {
         return queryItemAND(columns,
                             null != where? new ColumnItem[] { where }: null,
                             null != value? new Object[] { value }: null,
-                            limit);
+                            limit, false);
     }
 
     /**
@@ -849,17 +1404,28 @@ UnexpectedExceptionHandler.TrackedModule {
      * @param wheres if (null == values) than this is ignored.
      * @param values if (null == wheres) than this is ignored.
      * @param limit ( <= 0) means "All"
+     * @param withArchive true to include archived items.
      */
     Cursor
-    queryItemAND(ColumnItem[] columns, ColumnItem[] wheres, Object[] values, long limit) {
+    queryItemAND(ColumnItem[] columns, ColumnItem[] wheres, Object[] values, long limit,
+                 boolean withArchive) {
+        return mDb.rawQuery(buildQueryItemANDSQL(columns, wheres, values, limit,
+                                                 withArchive),
+                            null);
+    }
+
+    /**
+     * See {@link DB#queryItemAND(ColumnItem[], ColumnItem[], Object[], long, boolean)}
+     */
+    static String
+    buildQueryItemANDSQL(ColumnItem[] columns, ColumnItem[] wheres, Object[] values, long limit,
+                         boolean withArchive) {
         // recently inserted item is located at top of rows.
-        String wh = buildSQLWhere(wheres, values, "=", "AND");
-        return mDb.query(TABLE_ITEM,
-                         getColumnNames(columns),
-                         wh.isEmpty()? null: wh,
-                         null, null, null,
-                         ITEM_QUERY_DEFAULT_ORDER,
-                         (limit > 0)? "" + limit: null);
+        return buildItemQuerySQL(getColumnNames(columns),
+                                 buildSQLWhere(wheres, values, "=", "AND"),
+                                 ITEM_QUERY_DEFAULT_ORDER,
+                                 (limit > 0)? "" + limit: null,
+                                 withArchive);
     }
 
     /**
@@ -868,27 +1434,50 @@ UnexpectedExceptionHandler.TrackedModule {
      * @param mask mask value used to masking 'where' value.
      * @param value value should be same after masking operation.
      * @param ordered true for ordered by pubtime
+     * @param withArchive true to include archived items.
+     * @param states item states overriding ones at DB. See buildItemStateExpr().
      */
     Cursor
     queryItemMask(ColumnItem[] columns,
                   ColumnItem where, long mask, long value,
                   ColumnItem[] searchFields, String[] searchs,
                   long fromPubtime, long toPubtime,
-                  boolean ordered) {
+                  boolean ordered, boolean withArchive,
+                  Map<Long, Long> states) {
+        return mDb.rawQuery(buildQueryItemMaskSQL(columns, where, mask, value,
+                                                  searchFields, searchs,
+                                                  fromPubtime, toPubtime,
+                                                  ordered, withArchive,
+                                                  states),
+                            null);
+    }
+
+    /**
+     * See {@link DB#queryItemMask(ColumnItem[], ColumnItem, long, long, ColumnItem[], String[],
+     *                             long, long, boolean, boolean, Map)}
+     */
+    static String
+    buildQueryItemMaskSQL(ColumnItem[] columns,
+                          ColumnItem where, long mask, long value,
+                          ColumnItem[] searchFields, String[] searchs,
+                          long fromPubtime, long toPubtime,
+                          boolean ordered, boolean withArchive,
+                          Map<Long, Long> states) {
         // NOTE
         // To improve DB query performance, query for search would better to
         //   be located at later as possible.
         // (query for search is most expensive operation)
-        String wh = where.getName() + " & " + mask + " = " + value;
+        String wh = (ColumnItem.STATE == where? buildItemStateExpr(states): where.getName())
+                    + " & " + mask + " = " + value;
         String search = buildSQLWhere(getColumnNames(searchFields), searchs,
                                       fromPubtime, toPubtime);
         if (!search.isEmpty())
             wh = "(" + wh + ") AND " + search;
-        return mDb.query(TABLE_ITEM,
-                         getColumnNames(columns),
-                         wh,
-                         null, null, null,
-                         ordered? ITEM_QUERY_DEFAULT_ORDER: null);
+        return buildItemQuerySQL(getItemColumnNames(columns, states),
+                                 wh,
+                                 ordered? ITEM_QUERY_DEFAULT_ORDER: null,
+                                 null,
+                                 withArchive);
     }
 
     /**
@@ -900,13 +1489,35 @@ UnexpectedExceptionHandler.TrackedModule {
      * @param values if (null == wheres) than this is ignored.
      * @param limit ( <= 0) means "All"
      * @param ordered true for ordered by pubtime
+     * @param withArchive true to include archived items.
+     * @param states item states overriding ones at DB. See buildItemStateExpr().
      */
     Cursor
     queryItemOR(ColumnItem[] columns,
                 ColumnItem[] wheres, Object[] values,
                 ColumnItem[] searchFields, String[] searchs,
                 long fromPubtime, long toPubtime,
-                long limit, boolean ordered) {
+                long limit, boolean ordered, boolean withArchive,
+                Map<Long, Long> states) {
+        return mDb.rawQuery(buildQueryItemORSQL(columns, wheres, values,
+                                                searchFields, searchs,
+                                                fromPubtime, toPubtime,
+                                                limit, ordered, withArchive,
+                                                states),
+                            null);
+    }
+
+    /**
+     * See {@link DB#queryItemOR(ColumnItem[], ColumnItem[], Object[], ColumnItem[], String[],
+     *                           long, long, long, boolean, boolean, Map)}
+     */
+    static String
+    buildQueryItemORSQL(ColumnItem[] columns,
+                        ColumnItem[] wheres, Object[] values,
+                        ColumnItem[] searchFields, String[] searchs,
+                        long fromPubtime, long toPubtime,
+                        long limit, boolean ordered, boolean withArchive,
+                        Map<Long, Long> states) {
         // NOTE
         // To improve DB query performance, query for search would better to
         //   be located at later as possible.
@@ -919,12 +1530,11 @@ UnexpectedExceptionHandler.TrackedModule {
         else if (!search.isEmpty())
             wh += " AND " + search;
         // recently inserted item is located at top of rows.
-        return mDb.query(TABLE_ITEM,
-                         getColumnNames(columns),
-                         wh.isEmpty()? null: wh,
-                         null, null, null,
-                         ordered? ITEM_QUERY_DEFAULT_ORDER: null,
-                         (limit > 0)? "" + limit: null);
+        return buildItemQuerySQL(getItemColumnNames(columns, states),
+                                 wh,
+                                 ordered? ITEM_QUERY_DEFAULT_ORDER: null,
+                                 (limit > 0)? "" + limit: null,
+                                 withArchive);
     }
 
     /**
@@ -933,10 +1543,16 @@ UnexpectedExceptionHandler.TrackedModule {
      */
     Cursor
     queryItemCount(ColumnItem column, ColumnItem where, long value) {
-        return mDb.query(TABLE_ITEM,
-                         new String[] { "COUNT(" + column.getName() + ")" },
-                         where.getName() + " = " + value,
-                         null, null, null, null);
+        return mDb.rawQuery(buildQueryItemCountSQL(column, where, value), null);
+    }
+
+    static String
+    buildQueryItemCountSQL(ColumnItem column, ColumnItem where, long value) {
+        return SQLiteQueryBuilder.buildQueryString(false,
+                                                   TABLE_ITEM,
+                                                   new String[] { "COUNT(" + column.getName() + ")" },
+                                                   where.getName() + " = " + value,
+                                                   null, null, null, null);
     }
 
     /**
@@ -959,6 +1575,9 @@ UnexpectedExceptionHandler.TrackedModule {
         int nr = mDb.delete(TABLE_ITEM,
                             wh.isEmpty()? null: wh,
                             null);
+        nr += mDb.delete(TABLE_ITEM_ARCHIVE,
+                         wh.isEmpty()? null: wh,
+                         null);
         if (nr > 0)
             mLm.notifyIndirect(UpdateType.ITEM_TABLE);
         return nr;
@@ -988,11 +1607,18 @@ UnexpectedExceptionHandler.TrackedModule {
      */
     Cursor
     queryItemIds(long cid, long limit) {
-        return mDb.query(TABLE_ITEM, new String[] {ColumnItem.ID.getName()},
-                         ColumnItem.CHANNELID.getName() + " = " + cid,
-                         null, null, null,
-                         ColumnItem.ID.getName() + " DESC",
-                         (limit > 0)? "" + limit: null);
+        return mDb.rawQuery(buildQueryItemIdsSQL(cid, limit), null);
+    }
+
+    static String
+    buildQueryItemIdsSQL(long cid, long limit) {
+        return SQLiteQueryBuilder.buildQueryString(false,
+                                                   TABLE_ITEM,
+                                                   new String[] {ColumnItem.ID.getName()},
+                                                   ColumnItem.CHANNELID.getName() + " = " + cid,
+                                                   null, null,
+                                                   ColumnItem.ID.getName() + " DESC",
+                                                   (limit > 0)? "" + limit: null);
     }
 
     /**
@@ -1001,6 +1627,11 @@ UnexpectedExceptionHandler.TrackedModule {
      */
     Cursor
     queryItemMinMax(long[] cids, ColumnItem column, boolean bMax) {
+        return mDb.rawQuery(buildQueryItemMinMaxSQL(cids, column, bMax), null);
+    }
+
+    static String
+    buildQueryItemMinMaxSQL(long[] cids, ColumnItem column, boolean bMax) {
         String where = "";
         int i = 0;
         if (null != cids) {
@@ -1013,25 +1644,114 @@ UnexpectedExceptionHandler.TrackedModule {
         if (!where.isEmpty())
             where = " WHERE " + where;
 
-        return mDb.rawQuery("SELECT " + (bMax? "MAX": "MIN") + "(" + column.getName()
-                            + ") FROM " + TABLE_ITEM
-                            + where, null);
+        return "SELECT " + (bMax? "MAX": "MIN") + "(" + column.getName()
+               + ") FROM " + TABLE_ITEM
+               + where;
+    }
+
+    /**
+     * Columns of result : channel id, number of items, number of opened items.
+     * Channel that doesn't have any item, is not in the result.
+     */
+    Cursor
+    queryItemOpenedCounts(long[] cids) {
+        StringBuilder sbldr = new StringBuilder();
+        for (int i = 0; i < cids.length; i++) {
+            if (i > 0)
+                sbldr.append(", ");
+            sbldr.append(cids[i]);
+        }
+        String chanCol = ColumnItem.CHANNELID.getName();
+        return mDb.rawQuery("SELECT " + chanCol + ", COUNT(*), SUM(("
+                            + ColumnItem.STATE.getName() + " & " + Feed.Item.MSTAT_OPEN + ") = "
+                            + Feed.Item.FSTAT_OPEN_OPENED + ")"
+                            + " FROM " + TABLE_ITEM
+                            + " WHERE " + chanCol + " IN (" + sbldr.toString() + ")"
+                            + " GROUP BY " + chanCol, null);
     }
 
     /**
      *
+     * @param withArchive true to include archived items.
+     * @param states item states overriding ones at DB. See buildItemStateExpr().
      */
     Cursor
-    queryItemMinMax(ColumnItem where, long mask, long value, ColumnItem column, boolean bMax) {
-        String wh = where.getName() + " & " + mask + " = " + value;
-        return mDb.rawQuery("SELECT " + (bMax? "MAX": "MIN") + "(" + column.getName()
-                            + ") FROM " + TABLE_ITEM
-                            + " WHERE " + wh, null);
+    queryItemMinMax(ColumnItem where, long mask, long value, ColumnItem column, boolean bMax,
+                    boolean withArchive, Map<Long, Long> states) {
+        return mDb.rawQuery(buildQueryItemMinMaxSQL(where, mask, value, column, bMax,
+                                                    withArchive, states),
+                            null);
+    }
+
+    static String
+    buildQueryItemMinMaxSQL(ColumnItem where, long mask, long value, ColumnItem column,
+                            boolean bMax, boolean withArchive, Map<Long, Long> states) {
+        return buildItemQuerySQL(new String[] { (bMax? "MAX": "MIN") + "(" + column.getName() + ")" },
+                                 (ColumnItem.STATE == where? buildItemStateExpr(states): where.getName())
+                                 + " & " + mask + " = " + value,
+                                 null, null,
+                                 withArchive);
+    }
+
+    // -----------------------------------------------------------------------
+    // To support archiving items
+    // -----------------------------------------------------------------------
+    /**
+     * Move items of given channel from item table to archive.
+     * This SHOULD be run inside caller's transaction, that makes it atomic.
+     * (Nested transaction is not used on purpose. See comment at beginSavepoint().)
+     * Items satisfying one of below conditions are moved.
+     *   - published before 'pubtimeBefore'.
+     *   - not in recent 'nrKeep' items (ordered by pubtime).
+     * @param pubtimeBefore '< 0' means 'ignore this condition'
+     * @param nrKeep '< 0' means 'ignore this condition'
+     * @return number of items moved.
+     */
+    int
+    archiveItems(long cid, long pubtimeBefore, long nrKeep) {
+        String wh = "";
+        if (pubtimeBefore >= 0)
+            wh = ColumnItem.PUBTIME.getName() + " < " + pubtimeBefore;
+        if (nrKeep >= 0) {
+            if (!wh.isEmpty())
+                wh += " OR ";
+            wh += ColumnItem.ID.getName() + " NOT IN ("
+                  + "SELECT " + ColumnItem.ID.getName() + " FROM " + TABLE_ITEM
+                  + " WHERE " + ColumnItem.CHANNELID.getName() + " = " + cid
+                  + " ORDER BY " + ITEM_QUERY_DEFAULT_ORDER
+                  + " LIMIT " + nrKeep + ")";
+        }
+        if (wh.isEmpty())
+            return 0;
+        wh = ColumnItem.CHANNELID.getName() + " = " + cid + " AND (" + wh + ")";
+
+        P.bug(mDb.inTransaction());
+        mDb.execSQL("INSERT INTO " + TABLE_ITEM_ARCHIVE
+                    + " SELECT * FROM " + TABLE_ITEM + " WHERE " + wh + ";");
+        int nr = mDb.delete(TABLE_ITEM, wh, null);
+
+        // Same with 'deleteOldItems', channel is NOT changed.
+        if (nr > 0)
+            mLm.notifyIndirect(UpdateType.ITEM_TABLE);
+        return nr;
     }
 
     // -----------------------------------------------------------------------
     // To support shrinking DB size
     // -----------------------------------------------------------------------
+    /**
+     * Where clause used by 'deleteOldItems'.
+     * @param cid '-1' means 'for all channel'.
+     */
+    static String
+    buildDeleteOldItemsWhere(long cid, long pubtimeBefore) {
+        String wh = "";
+        if (cid >= 0)
+            wh = ColumnItem.CHANNELID.getName() + " = " + cid + " AND ";
+        wh += ColumnItem.PUBTIME.getName() + " < " + pubtimeBefore;
+        return wh;
+    }
+
     /**
      *
      * @param cid channel id to delete old items.
@@ -1069,12 +1789,12 @@ UnexpectedExceptionHandler.TrackedModule {
                 P.bug(false);
             long putTimeFrom = c.getLong(0);
             c.close();
-
-            if (cid >= 0)
-                wh = ColumnItem.CHANNELID.getName() + " = " + cid + " AND ";
-            wh += ColumnItem.PUBTIME.getName() + " < " + putTimeFrom;
+            wh = buildDeleteOldItemsWhere(cid, putTimeFrom);
         }
         int nr = mDb.delete(TABLE_ITEM, wh, null);
+        // Archived items are older than items in item table.
+        // So, same condition can be applied to them.
+        nr += mDb.delete(TABLE_ITEM_ARCHIVE, wh, null);
 
         // NOTE
         // Important fact that should be considered here is,
@@ -39,26 +39,37 @@ package free.yhc.feeder.db;
 import java.io.File;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import android.content.ComponentCallbacks2;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
+import android.support.annotation.NonNull;
 import android.util.LruCache;
 
 import free.yhc.baselib.Logger;
 import free.yhc.feeder.core.ContentsManager;
 import free.yhc.feeder.core.Err;
+import free.yhc.feeder.core.IconStore;
 import free.yhc.feeder.core.Util;
 import free.yhc.feeder.feed.Feed;
 import free.yhc.feeder.feed.FeedPolicy;
 import free.yhc.feeder.core.FeederException;
 import free.yhc.feeder.core.ListenerManager;
 import free.yhc.feeder.core.UnexpectedExceptionHandler;
+import free.yhc.feeder.core.UpdateTelemetry;
 
 import static free.yhc.baselib.util.Util.convertArraylongToLong;
 
@@ -101,6 +112,38 @@ UnexpectedExceptionHandler.TrackedModule {
     // Warning log will be shown.
     private static final int DUP_SCOPE_WARNING = 3000;
 
+    // Item state changes requested by UI (ex. open item, toggle favorite) are not written
+    //   to DB one by one.
+    // They are coalesced per item and written together at DBAsyncThread.
+    // Pending changes are flushed after <ITEM_STATE_FLUSH_DELAY> ms since the first pending
+    //   change, or immediately when <ITEM_STATE_FLUSH_THRESHOLD> items are pending.
+    private static final int ITEM_STATE_FLUSH_DELAY = 300; // ms
+    private static final int ITEM_STATE_FLUSH_THRESHOLD = 64;
+
+    // SAVEPOINT name of each channel update in batched transaction.
+    private static final String SAVEPOINT_CHANNEL_UPDATE = "chupd";
+
+    // Maximum number of bitmaps kept at channel bitmap pool.
+    private static final int CHANN_BITMAP_POOL_MAX = 16;
+
+    // Number of recent items used to estimate publish interval of channel.
+    private static final int SCHED_ESTIMATE_NR_ITEMS = 10;
+    // Weight of latest value at moving average of update latency is 1 / this.
+    private static final long UPDSTAT_LATENCY_WEIGHT = 4;
+    // Number of recent update runs kept at telemetry table.
+    private static final int UPDTELEM_SIZE = 500;
+
+    // Backoff of scheduled update after failure : BASE * 2^(nrfail - 1), up to MAX.
+    private static final long UPDFAIL_BACKOFF_BASE = 15 * 60 * 1000; // ms
+    private static final long UPDFAIL_BACKOFF_MAX = 12 * 60 * 60 * 1000; // ms
+    // Backoff is randomly adjusted within +/- this ratio.
+    // So, channels failed at same time(ex. network is down) are not retried at once.
+    private static final float UPDFAIL_JITTER_RATIO = 0.2f;
+    // Circuit is opened after this number of consecutive 'persistent' failures.
+    private static final int UPDFAIL_CIRCUIT_THRESHOLD = 5;
+    // While circuit is open, scheduled update is tried only once per this interval.
+    private static final long UPDFAIL_CIRCUIT_RETRY = Util.DAY_IN_MS;
+
     private static DBPolicy sInstance = null;
 
     // Dependency on only following modules are allowed
@@ -119,6 +162,16 @@ UnexpectedExceptionHandler.TrackedModule {
 
     // channel thumbnail cache.
     private final LruChannBitmapCache mChannImgCache;
+    // Bitmaps those can be reused as 'inBitmap' when decoding channel icon.
+    private final LinkedList<Bitmap> mChannBitmapPool = new LinkedList<>();
+    // Reference count of channel bitmaps those are held by user. See acquireChannelImageBitmap.
+    // Bitmap doesn't override 'equals' and 'hashCode'. So, key is compared by identity.
+    // Weak key is used because bitmap that is not released explicitly, should not be leaked.
+    // NOTE
+    // This is also used as lock for mChannBitmapPool.
+    private final WeakHashMap<Bitmap, ChannBitmapRef> mChannBitmapRefs = new WeakHashMap<>();
+    // To serialize updating channel icon and cleaning up IconStore.
+    private final Object mIconLock = new Object();
 
     // NOTE
     // This is a kind of dirty-HACK!
@@ -129,6 +182,38 @@ UnexpectedExceptionHandler.TrackedModule {
     private final AtomicInteger mDelayedChannelUpdate = new AtomicInteger(0);
 
     private final ListenerManager mLm = new ListenerManager();
+    private final Random mRandom = new Random();
+    // Sequence number of next update telemetry. '-1' means 'not loaded from DB yet'.
+    private long mUpdTelemSeq = -1;
+    private final Object mUpdTelemLock = new Object();
+
+    // NEW_ITEMS notifications raised inside batched channel-update transaction.
+    // They are delivered after transaction is committed.
+    // Otherwise, listeners may read DB before new items are visible to them.
+    // Key : channel id, Value : number of new items.
+    private final ThreadLocal<HashMap<Long, Integer>> mDeferredNewItems = new ThreadLocal<>();
+    // Cancel flag of job that is run at this thread on behalf of other thread.
+    // (ex. persist job of UpdatePipeline.)
+    // Interrupting requester doesn't affect the job. So, this is checked with interruption.
+    private final ThreadLocal<AtomicBoolean> mJobCancelFlag = new ThreadLocal<>();
+
+    // Key : item id, Value : latest state requested.
+    // NOTE
+    // Access to this map SHOULD be synchronized with map itself.
+    // Entry is removed only at 'flushItemStates()' AFTER it is written to DB (or at DB reloading).
+    // So, reader that doesn't find pending entry, always sees up-to-date value at DB.
+    // Readers don't wait for flushing. They merge pending states to values read from DB.
+    // (See getPendingItemState() and getPendingItemStates().)
+    private final HashMap<Long, Long> mPendingItemStates = new HashMap<>();
+    // Held while pending states are written to DB.
+    private final Object mItemStateFlushLock = new Object();
+    private final Runnable mItemStateFlusher = new Runnable() {
+        @Override
+        public void
+        run() {
+            flushItemStates();
+        }
+    };
 
     @SuppressWarnings("unused")
     public interface OnChannelUpdatedListener {
@@ -160,10 +245,6 @@ UnexpectedExceptionHandler.TrackedModule {
         FILE
     }
 
-    public interface ItemDataOpInterface {
-        File getFile(Feed.Item.ParD parD) throws FeederException;
-    }
-
     private class DBAsyncThread extends HandlerThread {
         DBAsyncThread() {
             super("DBAsyncThread");
@@ -181,26 +262,29 @@ UnexpectedExceptionHandler.TrackedModule {
         }
     }
 
+    // Reference of channel bitmap held by user.
+    private static class ChannBitmapRef {
+        int cnt = 0;
+        // Bitmap is already removed from cache.
+        boolean detached = false;
+    }
+
     private static class LruChannBitmapCache extends LruCache<Long, Bitmap> {
         public LruChannBitmapCache(int maxSize) {
             super(maxSize);
         }
 
-        @Override
-        protected Bitmap
-        create(Long key) {
-            byte[] imgRaw =DBPolicy.get().getChannelImageblob(key);
-            if (imgRaw.length > 0)
-                return BitmapFactory.decodeByteArray(imgRaw, 0, imgRaw.length);
-            else
-                return null;
-        }
+        // NOTE
+        // 'create' is not overridden on purpose.
+        // Icon is decoded outside of cache lock. See acquireChannelImageBitmap.
 
         @Override
         protected void
         entryRemoved(boolean evicted, Long key, Bitmap oldValue, Bitmap newValue) {
             // DO NOT recycle old bitmap here!
             // old Bitmap may be used at anywhere else!
+            // But, it can be reused for decoding other icon if no one uses it.
+            DBPolicy.get().onChannBitmapRemoved(oldValue);
         }
 
         @Override
@@ -232,7 +316,15 @@ UnexpectedExceptionHandler.TrackedModule {
         DBAsyncThread async = new DBAsyncThread();
         async.start();
         mAsyncHandler = new Handler(async.getLooper());
-
+        mAsyncHandler.post(new Runnable() {
+            @Override
+            public void
+            run() {
+                mDb.createItemIndexes();
+                migrateChannelIcons();
+                cleanDnJournal();
+            }
+        });
     }
 
     /**
@@ -242,7 +334,9 @@ UnexpectedExceptionHandler.TrackedModule {
      */
     private void
     checkInterrupted() throws FeederException {
-        if (Thread.currentThread().isInterrupted())
+        AtomicBoolean cancelled;
+        if (Thread.currentThread().isInterrupted()
+            || (null != (cancelled = mJobCancelFlag.get()) && cancelled.get()))
             throw new FeederException(Err.INTERRUPTED);
     }
 
@@ -358,8 +452,107 @@ UnexpectedExceptionHandler.TrackedModule {
         return ret;
     }
 
+    private static boolean
+    hasColumn(ColumnItem[] columns, ColumnItem column) {
+        for (ColumnItem c : columns)
+            if (c == column)
+                return true;
+        return false;
+    }
+
+    /**
+     * Write all pending item states to DB as one SQL statement.
+     * This runs only at DBAsyncThread. Writing may wait for other DB writer
+     *   (ex. batch transaction of UpdatePipeline). So, UI and readers SHOULD NOT wait for this.
+     */
+    private void
+    flushItemStates() {
+        P.bug(Looper.myLooper() == mAsyncHandler.getLooper());
+        synchronized (mItemStateFlushLock) {
+            HashMap<Long, Long> pending;
+            synchronized (mPendingItemStates) {
+                if (mPendingItemStates.isEmpty())
+                    return;
+                pending = new HashMap<>(mPendingItemStates);
+            }
+
+            // Skip items whose state at DB is already same with requested one.
+            // (ex. opening item that is already opened.)
+            Long[] ids = pending.keySet().toArray(new Long[pending.size()]);
+            ColumnItem[] wheres = new ColumnItem[ids.length];
+            for (int i = 0; i < wheres.length; i++)
+                wheres[i] = ColumnItem.ID;
+            HashMap<Long, Long> changed = new HashMap<>(pending);
+            Cursor c = mDb.queryItemOR(new ColumnItem[] { ColumnItem.ID, ColumnItem.STATE },
+                                       wheres, ids,
+                                       new ColumnItem[] { ColumnItem.TITLE }, null, -1, -1,
+                                       0, false, true, null);
+            if (c.moveToFirst()) {
+                do {
+                    Long state = changed.get(c.getLong(0));
+                    if (null != state && state == c.getLong(1))
+                        changed.remove(c.getLong(0));
+                } while (c.moveToNext());
+            }
+            c.close();
+
+            if (!changed.isEmpty()) {
+                if (DBG) P.v("Flush pending item states : " + changed.size() + "/" + pending.size());
+                ids = changed.keySet().toArray(new Long[changed.size()]);
+                Long[] states = new Long[ids.length];
+                for (int i = 0; i < ids.length; i++)
+                    states[i] = changed.get(ids[i]);
+                mDb.updateItemSet(ColumnItem.STATE, states, ColumnItem.ID, ids);
+            }
+
+            // Now, DB has all states in 'pending'.
+            // State requested again while writing, is still pending.
+            boolean remains;
+            synchronized (mPendingItemStates) {
+                for (Map.Entry<Long, Long> e : pending.entrySet()) {
+                    if (e.getValue().equals(mPendingItemStates.get(e.getKey())))
+                        mPendingItemStates.remove(e.getKey());
+                }
+                remains = !mPendingItemStates.isEmpty();
+            }
+            if (remains) {
+                // Timer is started only by first pending change. So, restart it for remains.
+                mAsyncHandler.removeCallbacks(mItemStateFlusher);
+                mAsyncHandler.postDelayed(mItemStateFlusher, ITEM_STATE_FLUSH_DELAY);
+            }
+        }
+    }
+
+    /**
+     * @return null if there is no pending state of the item.
+     */
+    private Long
+    getPendingItemState(long id) {
+        synchronized (mPendingItemStates) {
+            return mPendingItemStates.get(id);
+        }
+    }
+
+    /**
+     * Snapshot of pending item states. Passed to DB query to be merged with values at DB.
+     * @return null if there is no pending state.
+     */
+    private HashMap<Long, Long>
+    getPendingItemStates() {
+        synchronized (mPendingItemStates) {
+            return mPendingItemStates.isEmpty()? null: new HashMap<>(mPendingItemStates);
+        }
+    }
+
     private void
     checkDelayedChannelUpdate() {
+        // NOTE
+        // Inside transaction, DB write lock is already held.
+        // Waiting here may lead to dead-lock if UI thread, holding 'delayed channel update',
+        //   tries to write DB(ex. flushing item states).
+        // Caller running transaction SHOULD check this before beginning transaction.
+        if (mDb.inTransaction())
+            return;
         long timems = System.currentTimeMillis();
             // Dangerous!!
             // Always be careful when using 'mDelayedChannelUpdate'
@@ -396,7 +589,29 @@ UnexpectedExceptionHandler.TrackedModule {
 
     public void
     reloadDatabase() {
-        mDb.reloadDatabase();
+        synchronized (mItemStateFlushLock) {
+            // Pending item states belong to old database.
+            synchronized (mPendingItemStates) {
+                mPendingItemStates.clear();
+            }
+            mDb.reloadDatabase();
+        }
+        // Icons of new database may be different.
+        mChannImgCache.evictAll();
+        // Icon files are not part of database. So, imported database may refer icons that
+        //   are not in IconStore. Validators of them SHOULD NOT be used.
+        // Icons are fetched again at next update. See IconFetcher.
+        mDb.deleteIconSrc();
+        // Imported database may be one exported by old version.
+        mAsyncHandler.post(new Runnable() {
+            @Override
+            public void
+            run() {
+                mDb.createItemIndexes();
+                migrateChannelIcons();
+                cleanDnJournal();
+            }
+        });
     }
 
     // ======================================================
@@ -447,6 +662,12 @@ UnexpectedExceptionHandler.TrackedModule {
 
     private void
     notifyNewItemsUpdated(long cid, int nrNewItems) {
+        HashMap<Long, Integer> deferred = mDeferredNewItems.get();
+        if (null != deferred) {
+            Integer nr = deferred.get(cid);
+            deferred.put(cid, null == nr? nrNewItems: nr + nrNewItems);
+            return;
+        }
         mLm.notifyDirect(UpdateType.NEW_ITEMS, cid, nrNewItems);
     }
 
@@ -479,6 +700,88 @@ UnexpectedExceptionHandler.TrackedModule {
         mDb.endTransaction();
     }
 
+    /**
+     * Run updates of several channels as one DB transaction.
+     * Committing once for several channels is much cheaper than committing for each item.
+     * Update of each channel SHOULD be run by
+     *   {@link DBPolicy#runChannelUpdateInSavepoint(long, ChannelUpdateJob)} at 'r'.
+     * Notifications for new items are delivered after commit.
+     * DO NOT run long-blocking operation (ex. network I/O) at 'r'.
+     * @param cids channels updated by 'r'.
+     */
+    public void
+    runChannelUpdatesInTransaction(long[] cids, Runnable r) {
+        checkDelayedChannelUpdate();
+        HashMap<Long, Integer> deferred = new HashMap<>();
+        mDeferredNewItems.set(deferred);
+        boolean committed = false;
+        try {
+            mDb.runInTransaction(r);
+            committed = true;
+        } finally {
+            mDeferredNewItems.set(null);
+            if (!committed) {
+                for (long cid : cids)
+                    invalidateMaxIdCache(cid);
+            }
+        }
+        mDb.notifyChannelsUpdated(cids);
+        for (Long cid : deferred.keySet())
+            notifyNewItemsUpdated(cid, deferred.get(cid));
+    }
+
+    public interface ChannelUpdateJob {
+        void run() throws FeederException;
+    }
+
+    /**
+     * Run update of one channel at it's own SAVEPOINT, inside
+     *   {@link DBPolicy#runChannelUpdatesInTransaction(long[], Runnable)}.
+     * If 'job' fails, only changes done by 'job' are rolled back and exception is passed to caller.
+     * Other channels of the transaction are not affected.
+     * Notifications deferred by 'job' are dropped too.
+     *
+     * NOTE
+     * DO NOT start nested transaction at 'job'. See comment at DB.beginSavepoint().
+     */
+    public void
+    runChannelUpdateInSavepoint(long cid, @NonNull ChannelUpdateJob job) throws FeederException {
+        HashMap<Long, Integer> deferred = mDeferredNewItems.get();
+        P.bug(null != deferred);
+        Integer nrDeferred = deferred.get(cid);
+        mDb.beginSavepoint(SAVEPOINT_CHANNEL_UPDATE);
+        boolean done = false;
+        try {
+            job.run();
+            done = true;
+        } finally {
+            if (done)
+                mDb.releaseSavepoint(SAVEPOINT_CHANNEL_UPDATE);
+            else {
+                mDb.rollbackToSavepoint(SAVEPOINT_CHANNEL_UPDATE);
+                if (null == nrDeferred)
+                    deferred.remove(cid);
+                else
+                    deferred.put(cid, nrDeferred);
+                // Cached id may be one of items rolled back.
+                invalidateMaxIdCache(cid);
+            }
+        }
+    }
+
+    /**
+     * Set cancel flag of job that is going to be run at current thread.
+     * Long loops of DB operations check this flag, in addition to interruption of current thread.
+     * @param flag null to clear.
+     */
+    public void
+    setJobCancelFlag(AtomicBoolean flag) {
+        if (null == flag)
+            mJobCancelFlag.remove();
+        else
+            mJobCancelFlag.set(flag);
+    }
+
     public boolean
     isDefaultCategoryId(long id) {
         return id == getDefaultCategoryId();
@@ -719,7 +1022,7 @@ UnexpectedExceptionHandler.TrackedModule {
                                                     ColumnItem.PUBDATE },
                                  new ColumnItem[] { ColumnItem.CHANNELID },
                                  new String[] { "" + cid },
-                                 0);
+                                 0, true);
             mainKeyI = 3; // title
             subKeyI = 4;  // pubdate
         } else {
@@ -728,7 +1031,7 @@ UnexpectedExceptionHandler.TrackedModule {
                                                     ColumnItem.ENCLOSURE_URL },// SHOULD BE index 2
                                  new ColumnItem[] { ColumnItem.CHANNELID },
                                  new String[] { "" + cid },
-                                 0);
+                                 0, true);
             mainKeyI = 1; // link
             subKeyI = 2;  // enclosure url
         }
@@ -838,11 +1141,11 @@ UnexpectedExceptionHandler.TrackedModule {
      * Update channel.
      * ColumnChannel.LASTUPDATE value is set only at this function.
      * @param newItems new items to be added to this channel.
-     * @param idop interface to get item-data-file.
+     * @param newIds (out) ids of inserted items are added in order of 'newItems'. Can be null.
      * @throws FeederException
      */
     public int
-    updateChannel(long cid, Feed.Channel.ParD ch, LinkedList<Feed.Item.ParD> newItems, ItemDataOpInterface idop)
+    updateChannel(long cid, Feed.Channel.ParD ch, LinkedList<Feed.Item.ParD> newItems, LinkedList<Long> newIds)
             throws FeederException {
         if (DBG) P.v("UpdateChannel DB Section Start : " + cid);
 
@@ -862,67 +1165,37 @@ UnexpectedExceptionHandler.TrackedModule {
             Feed.Item.DbD itemDbD = new Feed.Item.DbD();
             itemDbD.cid = cid;
 
-
             // NOTE
-            // Order is very important
-            // Order SHOULD be "get item data" => "insert to db"
-            // Why?
-            // If "insert to db" is done before "get item data", user can see item at UI.
-            // So, user may try to get item data by UI action.
-            // Then what happens?
-            // Two operations for getting same item data are running concurrently!
-            // This is not what I expected.
-            //
-            // Yes! I know.
-            // In case of 'file download operation', there can be race-condition even if
-            //   operation order is 'get' -> 'insert'.
-            //   (User request DB items at the moment between
-            //      "file download is done, and item is inserted" and
-            //      "renaming file to final name based on item id".)
-            // In this case, user may try to download again even if download is done, and second
-            //   downloaded file will be overwritten to previous one.
-            // This is not normal and my expectation.
-            // But it's NOT harmful and it's very RARE case!
-            // So, I don't use any synchronization to prevent this race condition.
-            // Now we know item id here.
-            try {
-                File f = null;
-                if (null != idop)
-                    f = idop.getFile(itemParD);
-
-                // FIXME
-                // NOTE
-                // There is possible race-condition between below three lines of code.
-                // (between "if(.....)" and "cachedItem...")
-                // But it's just one-item difference.
-                // So, user may think like "During handling user-request, DB may updated."
-                // At this moment, let's ignore this race-condition.
-                // If issued case is found, let's consider it at the moment.
-                if (0 > (itemDbD.id = mDb.insertItem(buildNewItemContentValues(itemParD, itemDbD))))
-                    throw new FeederException(Err.DB_UNKNOWN);
-                // Invalidate cached value.
-                synchronized (mMaxIdCache) {
-                    mMaxIdCache.put(cid, itemDbD.id);
-                }
-
-                if (null != idop && null != f) {
-                    // NOTE
-                    // At this moment, race-condition can be issued.
-                    // But, as I mentioned above, it's not harmful and very rare case.
-                    if (!ContentsManager.get().addItemContent(f, itemDbD.id))
-                        //noinspection ResultOfMethodCallIgnored
-                        f.delete();
-                }
-            } catch (FeederException e) {
-                if (Err.DB_UNKNOWN == e.getError())
-                    throw e;
-                // if feeder fails to get item data, just ignore it!
+            // Item data is NOT downloaded here anymore, even for update-and-download channel.
+            // Items are inserted at once, and caller downloads data of new items in parallel,
+            //   after this update is done. (See UpdateTask.)
+            // Download of item is run through RTTask with item id as it's key.
+            // So, download started by user after item is visible, and automatic one, are never
+            //   run concurrently for same item.
+
+            // FIXME
+            // NOTE
+            // There is possible race-condition between below three lines of code.
+            // (between "if(.....)" and "cachedItem...")
+            // But it's just one-item difference.
+            // So, user may think like "During handling user-request, DB may updated."
+            // At this moment, let's ignore this race-condition.
+            // If issued case is found, let's consider it at the moment.
+            if (0 > (itemDbD.id = mDb.insertItem(buildNewItemContentValues(itemParD, itemDbD))))
+                throw new FeederException(Err.DB_UNKNOWN);
+            // Invalidate cached value.
+            synchronized (mMaxIdCache) {
+                mMaxIdCache.put(cid, itemDbD.id);
             }
+            if (null != newIds)
+                newIds.add(itemDbD.id);
             checkDelayedChannelUpdate();
             checkInterrupted();
         }
         if (DBG) P.v("DBPolicy : new " + newItems.size() + " items are inserted");
         mDb.updateChannel(cid, ColumnChannel.LASTUPDATE, new Date().getTime());
+        archiveItems(cid);
+        updateSched(cid, newItems.size() > 0);
 
         if (newItems.size() > 0)
             notifyNewItemsUpdated(cid, newItems.size());
@@ -931,6 +1204,638 @@ UnexpectedExceptionHandler.TrackedModule {
         return 0;
     }
 
+    // ======================================================
+    // Adaptive update schedule
+    // ======================================================
+    private static long
+    clampSchedInterval(long interval) {
+        long min = Util.getPrefAdaptiveMinInterval();
+        long max = Util.getPrefAdaptiveMaxInterval();
+        if (interval > max)
+            interval = max;
+        // 'min' has priority over 'max' even if user sets min > max.
+        if (interval < min)
+            interval = min;
+        return interval;
+    }
+
+    /**
+     * Estimate average interval between publishing items, from recent items of channel.
+     * @return -1 if there is not enough items to estimate.
+     */
+    private long
+    estimatePublishInterval(long cid) {
+        Cursor c = mDb.queryItemAND(new ColumnItem[] { ColumnItem.PUBTIME },
+                                    new ColumnItem[] { ColumnItem.CHANNELID },
+                                    new Object[] { cid },
+                                    SCHED_ESTIMATE_NR_ITEMS, false);
+        long interval = -1;
+        if (c.getCount() >= 2
+            && c.moveToFirst()) {
+            // ordered by descending order of pubtime.
+            long newest = c.getLong(0);
+            c.moveToLast();
+            long oldest = c.getLong(0);
+            interval = (newest - oldest) / (c.getCount() - 1);
+        }
+        c.close();
+        return interval;
+    }
+
+    private long
+    getSchedInterval(long cid) {
+        Cursor c = mDb.querySched(new ColumnSched[] { ColumnSched.INTERVAL }, cid);
+        long v = -1;
+        if (c.moveToFirst())
+            v = c.getLong(0);
+        c.close();
+        return v;
+    }
+
+    /**
+     * Decide next update time of channel based on publish history and result of this update.
+     * @param gotNewItems result of this update.
+     */
+    private void
+    updateSched(long cid, boolean gotNewItems) {
+        long prev = getSchedInterval(cid);
+        long interval;
+        if (gotNewItems || prev < 0) {
+            // Update twice per expected publishing interval.
+            // Then, new item is got within half of publishing interval.
+            long est = estimatePublishInterval(cid);
+            interval = (est > 0)? est / 2: Util.DAY_IN_MS;
+        } else
+            // Nothing new. Back off gradually.
+            interval = prev * 3 / 2;
+        interval = clampSchedInterval(interval);
+        mDb.updateSched(cid, interval, new Date().getTime() + interval);
+        if (DBG) P.v("Adaptive schedule : " + cid + " : interval " + (interval / 1000) + " sec");
+    }
+
+    /**
+     * Next adaptive update of channel is postponed by it's interval from 'now'.
+     * This is called when scheduled update is started, to avoid starting it again
+     *   before this update is done. (Even if this update fails.)
+     */
+    public void
+    postponeSched(long cid, long now) {
+        long interval = getSchedInterval(cid);
+        interval = clampSchedInterval(interval < 0? Util.DAY_IN_MS: interval);
+        mDb.updateSched(cid, interval, now + interval);
+    }
+
+    /**
+     * Get time planned for next adaptive update of channels.
+     * Channel that doesn't have schedule yet, is planned one day after it's last update.
+     * @return time(ms) of each channel. Order is same with 'cids'.
+     */
+    public long[]
+    getSchedNextUpdateTimes(long[] cids) {
+        HashMap<Long, Long> map = new HashMap<>();
+        Cursor c = mDb.querySched(new ColumnSched[] { ColumnSched.CHANNELID,
+                                                      ColumnSched.NEXTUPDATE }, -1);
+        if (c.moveToFirst()) {
+            do {
+                map.put(c.getLong(0), c.getLong(1));
+            } while (c.moveToNext());
+        }
+        c.close();
+
+        HashMap<Long, Long> retryMap = getUpdateRetryTimes();
+        long[] times = new long[cids.length];
+        for (int i = 0; i < cids.length; i++) {
+            Long t = map.get(cids[i]);
+            if (null != t)
+                times[i] = t;
+            else {
+                Long lastupdate = getChannelInfoLong(cids[i], ColumnChannel.LASTUPDATE);
+                times[i] = (null == lastupdate? 0: lastupdate) + clampSchedInterval(Util.DAY_IN_MS);
+            }
+            // Failing channel is not updated until it's backoff is over.
+            Long retry = retryMap.get(cids[i]);
+            if (null != retry && retry > times[i])
+                times[i] = retry;
+        }
+        return times;
+    }
+
+    /**
+     * Get interval of adaptive update of channels.
+     * Channel that doesn't have schedule yet, is regarded as updated once a day.
+     * @return interval(ms) of each channel. Order is same with 'cids'.
+     */
+    public long[]
+    getSchedIntervals(long[] cids) {
+        long[] intervals = new long[cids.length];
+        for (int i = 0; i < cids.length; i++) {
+            long interval = getSchedInterval(cids[i]);
+            intervals[i] = clampSchedInterval(interval < 0? Util.DAY_IN_MS: interval);
+        }
+        return intervals;
+    }
+
+    /**
+     * Next adaptive update of channel is moved to 'time'.
+     * Interval of the channel is not changed.
+     */
+    public void
+    deferSched(long cid, long time) {
+        long interval = getSchedInterval(cid);
+        interval = clampSchedInterval(interval < 0? Util.DAY_IN_MS: interval);
+        mDb.updateSched(cid, interval, time);
+    }
+
+    // ======================================================
+    // Update statistics
+    // ======================================================
+    /**
+     * Record time taken by successful update of channel.
+     */
+    public void
+    recordUpdateLatency(long cid, long latency) {
+        long[] prev = getUpdateLatencies(new long[] { cid });
+        // Exponential moving average. See UPDSTAT_LATENCY_WEIGHT.
+        if (prev[0] >= 0)
+            latency = prev[0] + (latency - prev[0]) / UPDSTAT_LATENCY_WEIGHT;
+        mDb.updateUpdStat(cid, latency);
+    }
+
+    /**
+     * @return average time(ms) taken by update of each channel. Order is same with 'cids'.
+     *         '-1' if unknown.
+     */
+    public long[]
+    getUpdateLatencies(long[] cids) {
+        long[] r = new long[cids.length];
+        for (int i = 0; i < cids.length; i++) {
+            Cursor c = mDb.queryUpdStat(new ColumnUpdStat[] { ColumnUpdStat.LATENCY }, cids[i]);
+            r[i] = c.moveToFirst()? c.getLong(0): -1;
+            c.close();
+        }
+        return r;
+    }
+
+    /**
+     * How much user reads items of channel.
+     * @return ratio[0, 1] of opened items to all items of each channel. Order is same with 'cids'.
+     *         '0' for channel that doesn't have any item.
+     */
+    public float[]
+    getChannelReadRatios(long[] cids) {
+        float[] r = new float[cids.length];
+        if (0 == cids.length)
+            return r;
+        HashMap<Long, Float> map = new HashMap<>();
+        Cursor c = mDb.queryItemOpenedCounts(cids);
+        if (c.moveToFirst()) {
+            do {
+                long nr = c.getLong(1);
+                if (nr > 0)
+                    map.put(c.getLong(0), (float)c.getLong(2) / nr);
+            } while (c.moveToNext());
+        }
+        c.close();
+        for (int i = 0; i < cids.length; i++) {
+            Float v = map.get(cids[i]);
+            r[i] = (null == v)? 0: v;
+        }
+        return r;
+    }
+
+    // ======================================================
+    // Update telemetry
+    // ======================================================
+    /**
+     * Sequence number is assigned to 'run', and it overwrites the oldest run if table is full.
+     */
+    public void
+    putUpdTelem(UpdateTelemetry.Run run) {
+        synchronized (mUpdTelemLock) {
+            if (mUpdTelemSeq < 0) {
+                Cursor c = mDb.queryUpdTelemMaxSeq();
+                // MAX() of empty table is NULL.
+                mUpdTelemSeq = (c.moveToFirst() && !c.isNull(0))? c.getLong(0) + 1: 0;
+                c.close();
+            }
+            run.seq = mUpdTelemSeq++;
+        }
+        ContentValues values = new ContentValues();
+        values.put(ColumnUpdTelem.SEQ.getName(), run.seq);
+        values.put(ColumnUpdTelem.CHANNELID.getName(), run.cid);
+        values.put(ColumnUpdTelem.STARTTIME.getName(), run.startTime);
+        values.put(ColumnUpdTelem.RESULT.getName(), run.result);
+        values.put(ColumnUpdTelem.CONNECT.getName(), run.stages[UpdateTelemetry.Stage.CONNECT.ordinal()]);
+        values.put(ColumnUpdTelem.TRANSFER.getName(), run.stages[UpdateTelemetry.Stage.TRANSFER.ordinal()]);
+        values.put(ColumnUpdTelem.PARSE.getName(), run.stages[UpdateTelemetry.Stage.PARSE.ordinal()]);
+        values.put(ColumnUpdTelem.HTML.getName(), run.stages[UpdateTelemetry.Stage.HTML.ordinal()]);
+        values.put(ColumnUpdTelem.DEDUPE.getName(), run.stages[UpdateTelemetry.Stage.DEDUPE.ordinal()]);
+        values.put(ColumnUpdTelem.INSERT.getName(), run.stages[UpdateTelemetry.Stage.INSERT.ordinal()]);
+        values.put(ColumnUpdTelem.BYTES.getName(), run.bytes);
+        values.put(ColumnUpdTelem.NRITEMS.getName(), run.nrItems);
+        values.put(ColumnUpdTelem.NRNEW.getName(), run.nrNew);
+        values.put(ColumnUpdTelem.CANCEL.getName(), run.cancelLatency);
+        values.put(ColumnUpdTelem.SLOT.getName(), run.seq % UPDTELEM_SIZE);
+        mDb.updateUpdTelem(values);
+    }
+
+    /**
+     * @return all runs kept at telemetry table. From oldest.
+     */
+    public LinkedList<UpdateTelemetry.Run>
+    getUpdTelems() {
+        ColumnUpdTelem[] cols = new ColumnUpdTelem[] {
+                ColumnUpdTelem.SEQ,
+                ColumnUpdTelem.CHANNELID,
+                ColumnUpdTelem.STARTTIME,
+                ColumnUpdTelem.RESULT,
+                ColumnUpdTelem.CONNECT,
+                ColumnUpdTelem.TRANSFER,
+                ColumnUpdTelem.PARSE,
+                ColumnUpdTelem.HTML,
+                ColumnUpdTelem.DEDUPE,
+                ColumnUpdTelem.INSERT,
+                ColumnUpdTelem.BYTES,
+                ColumnUpdTelem.NRITEMS,
+                ColumnUpdTelem.NRNEW,
+                ColumnUpdTelem.CANCEL };
+        LinkedList<UpdateTelemetry.Run> runs = new LinkedList<>();
+        Cursor c = mDb.queryUpdTelem(cols);
+        if (c.moveToFirst()) {
+            do {
+                UpdateTelemetry.Run r = new UpdateTelemetry.Run(c.getLong(1));
+                r.seq = c.getLong(0);
+                r.startTime = c.getLong(2);
+                r.result = c.getString(3);
+                // Stage columns are in order of UpdateTelemetry.Stage.
+                for (int i = 0; i < r.stages.length; i++)
+                    r.stages[i] = c.getLong(4 + i);
+                r.bytes = c.getLong(10);
+                r.nrItems = c.getInt(11);
+                r.nrNew = c.getInt(12);
+                r.cancelLatency = c.getLong(13);
+                runs.add(r);
+            } while (c.moveToNext());
+        }
+        c.close();
+        return runs;
+    }
+
+    // ======================================================
+    // Update failure backoff
+    // ======================================================
+    /**
+     * Errors that are not likely to be recovered soon by just retrying.
+     * (Dead host, or url that doesn't serve feed anymore.)
+     */
+    private static boolean
+    isPersistentUpdateErr(String errName) {
+        return Err.IO_NET.name().equals(errName)
+               || Err.PARSER_UNSUPPORTED_FORMAT.name().equals(errName);
+    }
+
+    /**
+     * @param nrfail number of consecutive failures.
+     * @param lasterr name of Err of the last failure.
+     */
+    private static boolean
+    isCircuitOpen(long nrfail, String lasterr) {
+        return nrfail >= UPDFAIL_CIRCUIT_THRESHOLD
+               && isPersistentUpdateErr(lasterr);
+    }
+
+    private long
+    jitter(long v) {
+        float r = (mRandom.nextFloat() * 2 - 1) * UPDFAIL_JITTER_RATIO;
+        return v + (long)(v * r);
+    }
+
+    /**
+     * Key : channel id, Value : time before which scheduled update is not run.
+     */
+    private HashMap<Long, Long>
+    getUpdateRetryTimes() {
+        HashMap<Long, Long> map = new HashMap<>();
+        Cursor c = mDb.queryUpdFail(new ColumnUpdFail[] { ColumnUpdFail.CHANNELID,
+                                                          ColumnUpdFail.RETRYTIME }, -1);
+        if (c.moveToFirst()) {
+            do {
+                map.put(c.getLong(0), c.getLong(1));
+            } while (c.moveToNext());
+        }
+        c.close();
+        return map;
+    }
+
+    /**
+     * Record failed update of channel and decide when scheduled update can be tried again.
+     * Interruption and cancellation by user are not failures of channel.
+     */
+    public void
+    onUpdateFailed(long cid, Err err) {
+        if (Err.INTERRUPTED == err
+            || Err.USER_CANCELLED == err)
+            return;
+
+        long nrfail = 1;
+        Cursor c = mDb.queryUpdFail(new ColumnUpdFail[] { ColumnUpdFail.NRFAIL }, cid);
+        if (c.moveToFirst())
+            nrfail += c.getLong(0);
+        c.close();
+
+        long backoff;
+        if (isCircuitOpen(nrfail, err.name()))
+            backoff = UPDFAIL_CIRCUIT_RETRY;
+        else {
+            // nrfail is small enough. But, just in case of overflow.
+            backoff = UPDFAIL_BACKOFF_BASE << Math.min(nrfail - 1, 16);
+            if (backoff > UPDFAIL_BACKOFF_MAX)
+                backoff = UPDFAIL_BACKOFF_MAX;
+        }
+        backoff = jitter(backoff);
+        mDb.updateUpdFail(cid, nrfail, err.name(), new Date().getTime() + backoff);
+        if (DBG) P.v("Update failed : " + cid + " : " + err.name()
+                     + " : " + nrfail + " times, backoff " + (backoff / 1000) + " sec");
+    }
+
+    /**
+     * Successful update closes circuit and clears backoff.
+     */
+    public void
+    onUpdateSucceeded(long cid) {
+        mDb.deleteUpdFail(cid);
+    }
+
+    /**
+     * Is scheduled update of channel held back due to recent failures?
+     * NOTE
+     * Only scheduled update follows backoff. Update requested by user is always run.
+     */
+    public boolean
+    isUpdateBackedOff(long cid, long now) {
+        Cursor c = mDb.queryUpdFail(new ColumnUpdFail[] { ColumnUpdFail.RETRYTIME }, cid);
+        boolean r = c.moveToFirst() && c.getLong(0) > now;
+        c.close();
+        return r;
+    }
+
+    /**
+     * Circuit is open : channel keeps failing with persistent errors.
+     * It is tried only once a day by scheduled update until it succeeds.
+     */
+    public boolean
+    isUpdateSuspended(long cid) {
+        Cursor c = mDb.queryUpdFail(new ColumnUpdFail[] { ColumnUpdFail.NRFAIL,
+                                                          ColumnUpdFail.LASTERR }, cid);
+        boolean r = c.moveToFirst() && isCircuitOpen(c.getLong(0), c.getString(1));
+        c.close();
+        return r;
+    }
+
+    // ======================================================
+    // Icon source
+    // ======================================================
+    /**
+     * Where channel icon is fetched from, and validators of it.
+     */
+    public static class IconSrc {
+        public final String url;
+        public final String refs; // See ColumnIconSrc.REFS
+        public final String etag;
+        public final String lastModified;
+        public final String hash; // empty if last fetch failed.
+        public final long checktime;
+
+        public IconSrc(String aUrl, String aRefs, String aEtag, String aLastModified,
+                       String aHash, long aChecktime) {
+            url = aUrl;
+            refs = aRefs;
+            etag = aEtag;
+            lastModified = aLastModified;
+            hash = aHash;
+            checktime = aChecktime;
+        }
+    }
+
+    /**
+     * @return null if icon of the channel is never fetched.
+     */
+    public IconSrc
+    getIconSrc(long cid) {
+        Cursor c = mDb.queryIconSrc(new ColumnIconSrc[] { ColumnIconSrc.URL,
+                                                          ColumnIconSrc.REFS,
+                                                          ColumnIconSrc.ETAG,
+                                                          ColumnIconSrc.LASTMODIFIED,
+                                                          ColumnIconSrc.HASH,
+                                                          ColumnIconSrc.CHECKTIME }, cid);
+        IconSrc src = null;
+        if (c.moveToFirst())
+            src = new IconSrc(c.getString(0), c.getString(1), c.getString(2),
+                              c.getString(3), c.getString(4), c.getLong(5));
+        c.close();
+        return src;
+    }
+
+    public void
+    putIconSrc(long cid, IconSrc src) {
+        mDb.updateIconSrc(cid, src.url, src.refs, src.etag, src.lastModified, src.hash, src.checktime);
+    }
+
+    /**
+     * Does channel have icon data?
+     * Unlike {@link DBPolicy#acquireChannelImageBitmap(long)}, this doesn't depend on cache
+     *   and decoding.
+     * Reference to the icon that is not in IconStore, is regarded as 'no icon'.
+     */
+    public boolean
+    hasChannelImage(long cid) {
+        byte[] blob = getChannelImageblob(cid);
+        if (IconStore.isRef(blob))
+            return IconStore.get().contains(new String(blob));
+        // Raw image data stored by old version.
+        return blob.length > 0;
+    }
+
+    // ======================================================
+    // Download journal
+    // ======================================================
+    /**
+     * Validators of partially downloaded item data.
+     */
+    public static class DnJournal {
+        public final String url;
+        public final String etag;
+        public final String lastModified;
+        public final long length;
+
+        public DnJournal(String aUrl, String aEtag, String aLastModified, long aLength) {
+            url = aUrl;
+            etag = aEtag;
+            lastModified = aLastModified;
+            length = aLength;
+        }
+    }
+
+    /**
+     * @return null if there is no journal for the item.
+     */
+    public DnJournal
+    getDnJournal(long id) {
+        Cursor c = mDb.queryDnJournal(new ColumnDnJournal[] { ColumnDnJournal.URL,
+                                                              ColumnDnJournal.ETAG,
+                                                              ColumnDnJournal.LASTMODIFIED,
+                                                              ColumnDnJournal.LENGTH }, id);
+        DnJournal jn = null;
+        if (c.moveToFirst())
+            jn = new DnJournal(c.getString(0), c.getString(1), c.getString(2), c.getLong(3));
+        c.close();
+        return jn;
+    }
+
+    public void
+    putDnJournal(long id, DnJournal jn) {
+        mDb.updateDnJournal(id, jn.url, jn.etag, jn.lastModified, jn.length);
+    }
+
+    public void
+    removeDnJournal(long id) {
+        mDb.deleteDnJournal(id);
+    }
+
+    /**
+     * Remove journals of items that don't exist anymore, and partial files that don't have journal.
+     * (ex. item is deleted while it's download is paused.)
+     */
+    private void
+    cleanDnJournal() {
+        ContentsManager cm = ContentsManager.get();
+        HashSet<Long> ids = new HashSet<>();
+        Cursor c = mDb.queryDnJournal(new ColumnDnJournal[] { ColumnDnJournal.ITEMID }, -1);
+        if (c.moveToFirst()) {
+            do {
+                long id = c.getLong(0);
+                if (null == getItemInfoLong(id, ColumnItem.ID)) {
+                    mDb.deleteDnJournal(id);
+                    //noinspection ResultOfMethodCallIgnored
+                    cm.getItemPartialFile(id).delete();
+                } else
+                    ids.add(id);
+            } while (c.moveToNext());
+        }
+        c.close();
+
+        File[] fs = cm.getPartialDir().listFiles();
+        if (null == fs)
+            return;
+        for (File f : fs) {
+            if (!ids.contains(cm.getIdFromPartialFileName(f.getName()))) {
+                if (DBG) P.v("Remove orphan partial file : " + f.getName());
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+            }
+        }
+    }
+
+    // ======================================================
+    // Content index
+    // ======================================================
+    /**
+     * Record of downloaded item data.
+     */
+    public static class ContentRec {
+        public final String url;
+        public final String hash;
+        public final String etag;
+        public final String lastModified;
+        public final long length;
+        public final long id; // item whose data file has this content.
+
+        public ContentRec(String aUrl, String aHash, String aEtag, String aLastModified,
+                          long aLength, long aId) {
+            url = aUrl;
+            hash = aHash;
+            etag = aEtag;
+            lastModified = aLastModified;
+            length = aLength;
+            id = aId;
+        }
+    }
+
+    private static final ColumnContent[] sContentCols = new ColumnContent[] {
+        ColumnContent.URL,
+        ColumnContent.HASH,
+        ColumnContent.ETAG,
+        ColumnContent.LASTMODIFIED,
+        ColumnContent.LENGTH,
+        ColumnContent.ITEMID };
+
+    private LinkedList<ContentRec>
+    queryContentRecs(ColumnContent where, String value) {
+        LinkedList<ContentRec> l = new LinkedList<>();
+        Cursor c = mDb.queryContent(sContentCols, where, value);
+        if (c.moveToFirst()) {
+            do {
+                l.add(new ContentRec(c.getString(0), c.getString(1), c.getString(2),
+                                     c.getString(3), c.getLong(4), c.getLong(5)));
+            } while (c.moveToNext());
+        }
+        c.close();
+        return l;
+    }
+
+    /**
+     * @return null if data of the url is never downloaded.
+     */
+    public ContentRec
+    getContentRecByUrl(String url) {
+        LinkedList<ContentRec> l = queryContentRecs(ColumnContent.URL, url);
+        return l.isEmpty()? null: l.getFirst();
+    }
+
+    public LinkedList<ContentRec>
+    getContentRecsByHash(String hash) {
+        return queryContentRecs(ColumnContent.HASH, hash);
+    }
+
+    public void
+    putContentRec(ContentRec rec) {
+        mDb.updateContent(rec.url, rec.hash, rec.etag, rec.lastModified, rec.length, rec.id);
+    }
+
+    /**
+     * Move old items of given channel to archive.
+     * Item is archived if it is older than preference value, or if it is out of
+     *   channel's soft-max-number-of-items.
+     * @return number of archived items.
+     */
+    public int
+    archiveItems(long cid) {
+        long ageDays = Util.getPrefArchiveAge();
+        long pubtimeBefore = -1;
+        if (ageDays > 0)
+            pubtimeBefore = new Date().getTime() - ageDays * Util.DAY_IN_MS;
+
+        long nrKeep = -1;
+        Long softmax = getChannelInfoLong(cid, ColumnChannel.NRITEMS_SOFTMAX);
+        if (null != softmax
+            && softmax >= 0
+            && getChannelInfoNrItems(cid) > softmax)
+            nrKeep = softmax;
+
+        if (pubtimeBefore < 0 && nrKeep < 0)
+            return 0;
+
+        if (pubtimeBefore >= 0 && nrKeep < 0) {
+            // Check there is an item to archive, to avoid needless write at every update.
+            long minPubtime = getItemMinPubtime(new long[] { cid });
+            if (minPubtime < 0 || minPubtime >= pubtimeBefore)
+                return 0;
+        }
+        int nr = mDb.archiveItems(cid, pubtimeBefore, nrKeep);
+        if (DBG) P.v("DBPolicy : " + nr + " items are archived : " + cid);
+        return nr;
+    }
+
     /**
      * update given channel value.
      */
@@ -947,12 +1852,66 @@ UnexpectedExceptionHandler.TrackedModule {
         return mDb.updateChannel(cid, column, value);
     }
 
+    /**
+     * Icon data itself is stored at IconStore, and channel keeps only reference of it.
+     * If storing at IconStore fails, data is stored at channel table directly, as old version does.
+     * (It will be migrated later.)
+     */
     public long
     updateChannel(long cid, ColumnChannel column, byte[] data) {
         // Fields those are allowed to be updated.
         P.bug(ColumnChannel.IMAGEBLOB == column);
-        mChannImgCache.remove(cid);
-        return mDb.updateChannel(cid, ColumnChannel.IMAGEBLOB, data);
+        // Icon SHOULD NOT be removed by 'migrateChannelIcons' before channel refers it.
+        synchronized (mIconLock) {
+            if (data.length > 0 && !IconStore.isRef(data)) {
+                String ref = IconStore.get().put(data);
+                if (null != ref)
+                    data = ref.getBytes();
+            }
+            mChannImgCache.remove(cid);
+            return mDb.updateChannel(cid, ColumnChannel.IMAGEBLOB, data);
+        }
+    }
+
+    /**
+     * Move icon data stored at channel table to IconStore, and remove icons that are
+     *   not referenced by any channel anymore.
+     * Channels that fail to move, keep their icon data at channel table.
+     */
+    private void
+    migrateChannelIcons() {
+        synchronized (mIconLock) {
+            migrateChannelIconsLocked();
+        }
+    }
+
+    private void
+    migrateChannelIconsLocked() {
+        HashSet<String> refs = new HashSet<>();
+        // Unused channels also keep reference. They may be re-used later.
+        Cursor c = mDb.queryChannel(new ColumnChannel[] { ColumnChannel.ID,
+                                                          ColumnChannel.IMAGEBLOB },
+                                    (ColumnChannel[])null, null, null, false, 0);
+        if (c.moveToFirst()) {
+            do {
+                byte[] blob = c.getBlob(1);
+                if (blob.length <= 0)
+                    continue;
+                if (IconStore.isRef(blob)) {
+                    refs.add(new String(blob));
+                    continue;
+                }
+                String ref = IconStore.get().put(blob);
+                if (null == ref)
+                    continue;
+                long cid = c.getLong(0);
+                if (DBG) P.v("Channel icon is moved to IconStore : " + cid);
+                mDb.updateChannel(cid, ColumnChannel.IMAGEBLOB, ref.getBytes());
+                refs.add(ref);
+            } while (c.moveToNext());
+        }
+        c.close();
+        IconStore.get().retainOnly(refs);
     }
 
     /**
@@ -1206,9 +2165,184 @@ UnexpectedExceptionHandler.TrackedModule {
         return max;
     }
 
+    private void
+    refChannBitmapLocked(Bitmap bm) {
+        ChannBitmapRef ref = mChannBitmapRefs.get(bm);
+        if (null == ref) {
+            ref = new ChannBitmapRef();
+            mChannBitmapRefs.put(bm, ref);
+        }
+        ref.cnt++;
+    }
+
+    /**
+     * Bitmap returned by this function is not reused until it is released by
+     *   {@link DBPolicy#releaseChannelImageBitmap(Bitmap)}.
+     * Icon is decoded if it is not in cache. So, DO NOT call this at UI thread.
+     */
+    public Bitmap
+    acquireChannelImageBitmap(long cid) {
+        Bitmap bm = acquireCachedChannelImageBitmap(cid);
+        if (null != bm)
+            return bm;
+        bm = decodeChannelImage(cid);
+        if (null == bm)
+            return null;
+        synchronized (mChannBitmapRefs) {
+            // Same icon may be decoded and cached by other thread meanwhile.
+            Bitmap cached = mChannImgCache.get(cid);
+            if (null == cached)
+                mChannImgCache.put(cid, bm);
+            else {
+                offerChannBitmap(bm);
+                bm = cached;
+            }
+            refChannBitmapLocked(bm);
+            return bm;
+        }
+    }
+
+    /**
+     * Same with {@link DBPolicy#acquireChannelImageBitmap(long)}, but icon is not decoded.
+     * So, this can be called at UI thread.
+     * @return null if icon is not in cache.
+     */
     public Bitmap
-    getChannelImageBitmap(long cid) {
-        return mChannImgCache.get(cid);
+    acquireCachedChannelImageBitmap(long cid) {
+        // NOTE
+        // Getting from cache SHOULD be done with lock.
+        // Otherwise, bitmap may be removed from cache and put to the pool,
+        //   before it's reference count is increased.
+        synchronized (mChannBitmapRefs) {
+            Bitmap bm = mChannImgCache.get(cid);
+            if (null != bm)
+                refChannBitmapLocked(bm);
+            return bm;
+        }
+    }
+
+    public void
+    releaseChannelImageBitmap(Bitmap bm) {
+        if (null == bm)
+            return;
+        synchronized (mChannBitmapRefs) {
+            ChannBitmapRef ref = mChannBitmapRefs.get(bm);
+            P.bug(null != ref && ref.cnt > 0);
+            if (null == ref)
+                return;
+            if (--ref.cnt > 0)
+                return;
+            mChannBitmapRefs.remove(bm);
+            if (ref.detached)
+                offerChannBitmap(bm);
+        }
+    }
+
+    /**
+     * Called when bitmap is removed from channel image cache.
+     */
+    private void
+    onChannBitmapRemoved(Bitmap bm) {
+        synchronized (mChannBitmapRefs) {
+            ChannBitmapRef ref = mChannBitmapRefs.get(bm);
+            if (null == ref)
+                offerChannBitmap(bm);
+            else
+                // It will be put to the pool when it is released.
+                ref.detached = true;
+        }
+    }
+
+    private void
+    offerChannBitmap(Bitmap bm) {
+        // Only mutable bitmap can be reused as 'inBitmap'.
+        if (bm.isRecycled()
+            || !bm.isMutable())
+            return;
+        synchronized (mChannBitmapRefs) {
+            if (mChannBitmapPool.size() < CHANN_BITMAP_POOL_MAX)
+                mChannBitmapPool.addLast(bm);
+        }
+    }
+
+    /**
+     * Get bitmap from the pool that can be reused to decode image of given size.
+     * @return 'null' if there is no available one.
+     */
+    private Bitmap
+    pollChannBitmap(int width, int height) {
+        // Channel icon is decoded as ARGB_8888 - 4 bytes per pixel.
+        int sz = width * height * 4;
+        synchronized (mChannBitmapRefs) {
+            Iterator<Bitmap> iter = mChannBitmapPool.iterator();
+            while (iter.hasNext()) {
+                Bitmap bm = iter.next();
+                if (bm.getAllocationByteCount() >= sz) {
+                    iter.remove();
+                    return bm;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Bitmap
+    decodeChannelImage(String ref, byte[] imgRaw, BitmapFactory.Options opts) {
+        if (null != ref)
+            return IconStore.get().decode(ref, opts);
+        else
+            // Not migrated yet. See 'migrateChannelIcons'.
+            return BitmapFactory.decodeByteArray(imgRaw, 0, imgRaw.length, opts);
+    }
+
+    /**
+     * Decode channel icon.
+     * Bitmap in the pool is reused if possible.
+     */
+    private Bitmap
+    decodeChannelImage(long cid) {
+        byte[] imgRaw = getChannelImageblob(cid);
+        if (imgRaw.length <= 0)
+            return null;
+        String ref = IconStore.isRef(imgRaw)? new String(imgRaw): null;
+
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        decodeChannelImage(ref, imgRaw, opts);
+        if (opts.outWidth <= 0 || opts.outHeight <= 0)
+            return null;
+
+        opts.inJustDecodeBounds = false;
+        // To be reused later.
+        opts.inMutable = true;
+        opts.inBitmap = pollChannBitmap(opts.outWidth, opts.outHeight);
+        try {
+            return decodeChannelImage(ref, imgRaw, opts);
+        } catch (IllegalArgumentException e) {
+            // Pooled bitmap can't be reused for this image.
+            opts.inBitmap = null;
+            return decodeChannelImage(ref, imgRaw, opts);
+        }
+    }
+
+    /**
+     * Shrink memory used by channel icons.
+     * @param level level passed to {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public void
+    trimChannelImageCache(int level) {
+        synchronized (mChannBitmapRefs) {
+            mChannBitmapPool.clear();
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+            || ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL == level)
+            mChannImgCache.evictAll();
+        else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+            mChannImgCache.trimToSize(mChannImgCache.maxSize() / 2);
+        // Pool is filled by bitmaps removed above. Clear it again.
+        synchronized (mChannBitmapRefs) {
+            mChannBitmapPool.clear();
+        }
     }
 
     /**
@@ -1232,6 +2366,13 @@ UnexpectedExceptionHandler.TrackedModule {
     /**
      * Get maximum value of item id of given channel.
      */
+    private void
+    invalidateMaxIdCache(long cid) {
+        synchronized (mMaxIdCache) {
+            mMaxIdCache.remove(cid);
+        }
+    }
+
     public long
     getItemInfoMaxId(long cid) {
         synchronized (mMaxIdCache) {
@@ -1293,7 +2434,8 @@ UnexpectedExceptionHandler.TrackedModule {
     public long
     getItemMinPubtime(ColumnItem where, long mask, long value) {
         long v = -1;
-        Cursor c = mDb.queryItemMinMax(where, mask, value, ColumnItem.PUBTIME, false);
+        Cursor c = mDb.queryItemMinMax(where, mask, value, ColumnItem.PUBTIME, false, true,
+                                       ColumnItem.STATE == where? getPendingItemStates(): null);
         if (c.moveToFirst())
             v = c.getLong(0);
         c.close();
@@ -1305,7 +2447,7 @@ UnexpectedExceptionHandler.TrackedModule {
         Cursor c = mDb.queryItemAND(new ColumnItem[] { column },
                                     new ColumnItem[] { ColumnItem.ID },
                                     new Object[] { id },
-                                    0);
+                                    0, true);
         Object ret = null;
         if (c.moveToFirst())
             ret = getCursorValue(c, 0);
@@ -1316,6 +2458,12 @@ UnexpectedExceptionHandler.TrackedModule {
     public Long
     getItemInfoLong(long id, ColumnItem column) {
         P.bug(column.getType().equals("integer"));
+        if (ColumnItem.STATE == column) {
+            // State that is not written to DB yet, is latest one.
+            Long state = getPendingItemState(id);
+            if (null != state)
+                return state;
+        }
         return (Long)getItemInfoObject(id, column);
     }
 
@@ -1333,7 +2481,7 @@ UnexpectedExceptionHandler.TrackedModule {
         Cursor c = mDb.queryItemAND(columns,
                                     new ColumnItem[] { ColumnItem.ID },
                                     new Object[] { id },
-                                    0);
+                                    0, true);
         if (!c.moveToFirst()) {
             c.close();
             return null;
@@ -1388,6 +2536,7 @@ UnexpectedExceptionHandler.TrackedModule {
 
     /**
      * Query item information belonging to given channels.
+     * Archived items are included only when 'search' is valid.
      */
     public Cursor
     queryItem(long[] cids, ColumnItem[] columns,
@@ -1407,7 +2556,8 @@ UnexpectedExceptionHandler.TrackedModule {
                                new ColumnItem[] { ColumnItem.TITLE, ColumnItem.DESCRIPTION },
                                null == search? null: new String[] { search, search },
                                fromPubtime, toPubtime,
-                               0, true);
+                               0, true, Util.isValidValue(search),
+                               hasColumn(columns, ColumnItem.STATE)? getPendingItemStates(): null);
     }
 
     /**
@@ -1423,6 +2573,8 @@ UnexpectedExceptionHandler.TrackedModule {
     /**
      * Query items with masking value.
      * Usually used to select items with flag value.
+     * Flagged(ex. favorite) items should be visible even if they are archived.
+     * So, archived items are always included.
      */
     public Cursor
     queryItemMask(ColumnItem[] columns,
@@ -1431,7 +2583,9 @@ UnexpectedExceptionHandler.TrackedModule {
         return mDb.queryItemMask(columns, where, mask, value,
                                  new ColumnItem[] { ColumnItem.TITLE, ColumnItem.DESCRIPTION },
                                  new String[] { search, search },
-                                 fromPubtime, toPubtime, true);
+                                 fromPubtime, toPubtime, true, true,
+                                 ColumnItem.STATE == where || hasColumn(columns, ColumnItem.STATE)
+                                 ? getPendingItemStates(): null);
     }
 
 
@@ -1441,23 +2595,35 @@ UnexpectedExceptionHandler.TrackedModule {
      */
     public long
     updateItem_state(long id, long state) {
-        // Update item during 'updating channel' is not expected!!
-        return mDb.updateItem(id, ColumnItem.STATE, state);
+        // Pending state SHOULD NOT overwrite this one later.
+        // Flushing may be in progress with old pending state. So, wait for it.
+        synchronized (mItemStateFlushLock) {
+            synchronized (mPendingItemStates) {
+                mPendingItemStates.remove(id);
+            }
+            // Update item during 'updating channel' is not expected!!
+            return mDb.updateItem(id, ColumnItem.STATE, state);
+        }
     }
 
     /**
      * See {@link DBPolicy#updateItem_state(long, long)}
+     * Changes are coalesced per item and written to DB together at DBAsyncThread.
+     * Reading item state through DBPolicy always sees the latest requested value.
      */
     public void
-    updateItemAsync_state(final long id, final long state) {
-        mAsyncHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                long old = getItemInfoLong(id, ColumnItem.STATE);
-                if (old != state)
-                    updateItem_state(id, state);
-            }
-        });
+    updateItemAsync_state(long id, long state) {
+        int nr;
+        synchronized (mPendingItemStates) {
+            mPendingItemStates.put(id, state);
+            nr = mPendingItemStates.size();
+        }
+        if (nr >= ITEM_STATE_FLUSH_THRESHOLD) {
+            mAsyncHandler.removeCallbacks(mItemStateFlusher);
+            mAsyncHandler.post(mItemStateFlusher);
+        } else if (1 == nr)
+            // This is first pending change. Start timer.
+            mAsyncHandler.postDelayed(mItemStateFlusher, ITEM_STATE_FLUSH_DELAY);
     }
 
     /**
@@ -1499,7 +2665,16 @@ UnexpectedExceptionHandler.TrackedModule {
     // ===============================================
     public void
     registerUpdatedListener(ListenerManager.Listener listener, long flag) {
-        mDb.registerUpdatedListener(listener, flag);
+        mDb.registerUpdatedListener(listener, flag, false);
+    }
+
+    /**
+     * @param ordered See ListenerManager. Listener checked at Activity#onResume, for changes
+     *                while activity is paused, should be 'ordered'.
+     */
+    public void
+    registerUpdatedListener(ListenerManager.Listener listener, long flag, boolean ordered) {
+        mDb.registerUpdatedListener(listener, flag, ordered);
     }
 
     public void
@@ -264,6 +264,7 @@ class AtomParser extends FeedParser implements
         cv.init();
         Node n = fn.getFirstChild();
         while (null != n) {
+            checkInterrupted();
             if (n.getNodeName().equalsIgnoreCase("entry")) {
                 // Parsing elements of 'entry'
                 iv.init(); // to reuse
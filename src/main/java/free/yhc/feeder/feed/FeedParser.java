@@ -38,9 +38,12 @@ package free.yhc.feeder.feed;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.util.regex.Pattern;
 
@@ -51,6 +54,7 @@ import org.w3c.dom.Node;
 import org.xml.sax.SAXException;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.text.Html;
 
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -61,6 +65,8 @@ import free.yhc.baselib.async.HelperHandler;
 import free.yhc.baselib.net.NetReadTask;
 import free.yhc.feeder.core.Err;
 import free.yhc.feeder.core.FeederException;
+import free.yhc.feeder.core.HostGate;
+import free.yhc.feeder.core.UpdateTelemetry;
 import free.yhc.feeder.core.Util;
 
 public abstract class FeedParser {
@@ -73,6 +79,78 @@ public abstract class FeedParser {
         public Feed.Item.ParD[] items = null;
     }
 
+    // Maximum bytes given to DOM builder at one read.
+    // DOM builder can't be interrupted. So, interruption is checked at every read.
+    // This bounds time to notice interruption while building DOM.
+    private static final int PARSE_READ_CHUNK = 4 * 1024;
+
+    // Time(ns) spent at beautifying html text, accumulated per thread.
+    // Parsing runs on caller's thread. So, it can be collected without passing context to parsers.
+    private static final ThreadLocal<long[]> sHtmlTime = new ThreadLocal<long[]>() {
+        @Override
+        protected long[]
+        initialValue() {
+            return new long[1];
+        }
+    };
+
+    // Remembers when the first byte arrives.
+    private static class TimedOutputStream extends ByteArrayOutputStream {
+        private long mFirstWriteTime = -1;
+
+        private void
+        markFirstWrite() {
+            if (mFirstWriteTime < 0)
+                mFirstWriteTime = System.currentTimeMillis();
+        }
+
+        @Override
+        public synchronized void
+        write(int b) {
+            markFirstWrite();
+            super.write(b);
+        }
+
+        @Override
+        public synchronized void
+        write(@NonNull byte[] b, int off, int len) {
+            markFirstWrite();
+            super.write(b, off, len);
+        }
+
+        long
+        getFirstWriteTime() {
+            return mFirstWriteTime;
+        }
+    }
+
+    // Input stream that can be interrupted at the middle of building DOM.
+    private static class InterruptibleInputStream extends FilterInputStream {
+        InterruptibleInputStream(InputStream in) {
+            super(in);
+        }
+
+        private void
+        checkInterrupted() throws InterruptedIOException {
+            if (Thread.interrupted())
+                throw new InterruptedIOException();
+        }
+
+        @Override
+        public int
+        read() throws IOException {
+            checkInterrupted();
+            return super.read();
+        }
+
+        @Override
+        public int
+        read(@NonNull byte[] b, int off, int len) throws IOException {
+            checkInterrupted();
+            return super.read(b, off, len > PARSE_READ_CHUNK? PARSE_READ_CHUNK: len);
+        }
+    }
+
     protected static class NodeValue {
         int priority; // priority value of parsing modules which updates this value.
         String value;
@@ -283,12 +361,21 @@ public abstract class FeedParser {
         return null;
     }
 
+    /**
+     * Cancellation point of parsers. Update task is interrupted when it is cancelled.
+     */
+    protected static void
+    checkInterrupted()
+            throws FeederException {
+        if (Thread.interrupted())
+            throw new FeederException(Err.INTERRUPTED);
+    }
+
     protected final String
     getTextValue(Node n)
             throws FeederException {
 
-        if (Thread.interrupted())
-            throw new FeederException(Err.INTERRUPTED);
+        checkInterrupted();
 
         String text;
         Node t = findNodeByNameFromSiblings(n.getFirstChild(), "#text");
@@ -332,7 +419,9 @@ public abstract class FeedParser {
         //   'title' 'description' or 'cdata-section'
         // So, we need to beautify this string.(remove ugly tags and entities)
         // This may time-consuming job.
+        long startNs = System.nanoTime();
         text = Html.fromHtml(text).toString();
+        sHtmlTime.get()[0] += System.nanoTime() - startNs;
 
         //
         // [ remove leading and trailing new line. ]
@@ -401,27 +490,97 @@ public abstract class FeedParser {
             throw new FeederException(Err.PARSER_UNSUPPORTED_FORMAT);
     }
 
+    /**
+     * Read whole feed document from given url.
+     * This is I/O bound part of {@link FeedParser#parse(URL)}
+     */
     @NonNull
-    public static Result
-    parse(@NonNull URL url) throws FeederException {
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()){
+    public static byte[]
+    fetch(@NonNull URL url) throws FeederException {
+        return fetch(url, null);
+    }
+
+    /**
+     * @param run 'connect', 'transfer' stages and size of document are recorded, if not null.
+     *            Waiting at {@link HostGate} is not counted.
+     */
+    @NonNull
+    public static byte[]
+    fetch(@NonNull URL url, @Nullable UpdateTelemetry.Run run) throws FeederException {
+        HostGate.Ticket tk;
+        try {
+            tk = HostGate.get().acquire(url);
+        } catch (InterruptedException e) {
+            throw new FeederException(Err.INTERRUPTED);
+        }
+        try {
+            return fetchAdmitted(url, run);
+        } finally {
+            tk.release();
+        }
+    }
+
+    /**
+     * Same with {@link FeedParser#fetch(URL, UpdateTelemetry.Run)} except for {@link HostGate}.
+     * Caller SHOULD hold slot of the host at {@link HostGate}.
+     */
+    @NonNull
+    public static byte[]
+    fetchAdmitted(@NonNull URL url, @Nullable UpdateTelemetry.Run run) throws FeederException {
+        try (TimedOutputStream baos = new TimedOutputStream()){
+            long startTime = System.currentTimeMillis();
             NetReadTask.Builder<NetReadTask.Builder> b
                     = new NetReadTask.Builder<>(Util.createNetConn(url), baos);
             b.setOwner(HelperHandler.get());
             b.create().startSync();
-            try (ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray())) {
-                return parse(bais);
+            if (null != run) {
+                // NOTE
+                // NetReadTask doesn't expose phases of connection(dns, tls and so on).
+                // So, time to first byte is regarded as 'connect'.
+                long endTime = System.currentTimeMillis();
+                long firstTime = baos.getFirstWriteTime() < 0? endTime: baos.getFirstWriteTime();
+                run.add(UpdateTelemetry.Stage.CONNECT, firstTime - startTime);
+                run.add(UpdateTelemetry.Stage.TRANSFER, endTime - firstTime);
+                run.bytes = baos.size();
             }
+            return baos.toByteArray();
         } catch (IOException e) {
+            // NOTE
+            // SocketTimeoutException is also InterruptedIOException.
+            if (e instanceof InterruptedIOException
+                && !(e instanceof SocketTimeoutException))
+                throw new FeederException(Err.INTERRUPTED);
             throw new FeederException(Err.IO_NET);
         } catch (InterruptedException e) {
-            P.bug(false); // Never happend!
-            throw new FeederException(Err.USER_CANCELLED);
+            // Update task is interrupted when it is cancelled.
+            throw new FeederException(Err.INTERRUPTED);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    @NonNull
+    public static byte[]
+    fetch(@NonNull String url) throws FeederException {
+        return fetch(url, null);
+    }
+
+    @NonNull
+    public static byte[]
+    fetch(@NonNull String url, @Nullable UpdateTelemetry.Run run) throws FeederException {
+        try {
+            return fetch(new URL(url), run);
+        } catch (MalformedURLException e) {
+            throw new FeederException(Err.INVALID_URL);
+        }
+    }
+
+    @NonNull
+    public static Result
+    parse(@NonNull URL url) throws FeederException {
+        return parse(fetch(url));
+    }
+
     @NonNull
     public static Result
     parse(@NonNull String url) throws FeederException {
@@ -432,6 +591,37 @@ public abstract class FeedParser {
         }
     }
 
+    /**
+     * Parse feed document fetched by {@link FeedParser#fetch(URL)}.
+     * This is CPU bound part of {@link FeedParser#parse(URL)}
+     */
+    @NonNull
+    public static Result
+    parse(@NonNull byte[] data) throws FeederException {
+        try (InputStream is = new InterruptibleInputStream(new ByteArrayInputStream(data))) {
+            return parse(is);
+        } catch (IOException e) {
+            throw new FeederException(Err.UNKNOWN);
+        }
+    }
+
+    /**
+     * Reset time accumulated at beautifying html text, at this thread.
+     */
+    public static void
+    resetHtmlTime() {
+        sHtmlTime.get()[0] = 0;
+    }
+
+    /**
+     * @return time(ms) spent at beautifying html text, at this thread, since
+     *         {@link FeedParser#resetHtmlTime()}.
+     */
+    public static long
+    getHtmlTime() {
+        return sHtmlTime.get()[0] / 1000000;
+    }
+
     @NonNull
     abstract Result
     parseDom(@NonNull Document dom) throws FeederException;
@@ -445,10 +635,16 @@ public abstract class FeedParser {
                     .newInstance()
                     .newDocumentBuilder()
                     .parse(is);
+            checkInterrupted();
             return FeedParser.getParser(dom).parseDom(dom);
         } catch (DOMException | SAXException | ParserConfigurationException e) {
+            // Some parser implementations wrap exception thrown from input stream.
+            if (e.getCause() instanceof InterruptedIOException)
+                throw new FeederException(Err.INTERRUPTED);
             e.printStackTrace();
             throw new FeederException(Err.PARSER_UNSUPPORTED_FORMAT);
+        } catch (InterruptedIOException e) {
+            throw new FeederException(Err.INTERRUPTED);
         } catch (IOException e) {
             e.printStackTrace();
             throw new FeederException(Err.UNKNOWN);
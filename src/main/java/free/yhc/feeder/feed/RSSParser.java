@@ -248,6 +248,7 @@ public class RSSParser extends FeedParser implements
         cv.init();
         Node n = chn.getFirstChild();
         while (null != n) {
+            checkInterrupted();
             if (n.getNodeName().equalsIgnoreCase("item")) {
                 // Parsing elements of 'item'
                 iv.init(); // to reuse
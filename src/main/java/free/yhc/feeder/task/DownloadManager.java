@@ -0,0 +1,339 @@
+/******************************************************************************
+ * Copyright (C) 2012, 2013, 2014, 2015, 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of FeedHive
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.feeder.task;
+
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.support.annotation.NonNull;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import free.yhc.abaselib.AppEnv;
+import free.yhc.baselib.Logger;
+import free.yhc.feeder.R;
+import free.yhc.feeder.core.RTTask;
+import free.yhc.feeder.core.Util;
+
+//
+// Global arbiter of item data downloads.
+// - Number of concurrent downloads is limited separately from number of RTTask workers.
+//   Download task waits for it's slot here, before it is added to RTTask. So, waiting downloads
+//   don't hold RTTask workers, and at least one worker is always left for other tasks
+//   (ex. UpdateTask).
+// - Downloads requested by user are served before automatic downloads(update-and-download
+//     channel). Running automatic download yields it's slot to waiting user download.
+//   Yielding download closes it's connection and stops. It is queued again as new task, and
+//     resumed from received point later. (See DownloadTask)
+// - Total download bandwidth is limited by one token bucket shared by all downloads.
+//
+// Usage
+//   RTTask.get().addTask(task, id, RTTask.Action.DOWNLOAD) : Task is submitted to here.
+//   At the task
+//       ... for each chunk read : DownloadManager.get().onTransfer(ticket, nrBytes)
+//       DownloadManager.get().release(ticket) at the end.
+//
+public class DownloadManager implements
+SharedPreferences.OnSharedPreferenceChangeListener {
+    private static final boolean DBG = Logger.DBG_DEFAULT;
+    private static final Logger P = Logger.create(DownloadManager.class, Logger.LOGLV_DEFAULT);
+
+    // Delay before trying again to start task whose previous task is not removed from RTTask yet.
+    private static final long START_RETRY_DELAY = 500; // ms
+
+    private static DownloadManager sInstance = null;
+
+    // Lock for slots and waiting queue.
+    private final Object mLock = new Object();
+    // Ordered by priority, and FIFO in same priority.
+    private final LinkedList<DownloadTask> mWaitQ = new LinkedList<>();
+    private final LinkedList<Ticket> mRunning = new LinkedList<>();
+
+    // Token bucket
+    private final Object mBucketLock = new Object();
+    private double mTokens = 0; // bytes
+    private long mBucketTime = 0; // ms
+    // Cached preference. onTransfer is called for every chunk read.
+    private volatile long mRateLimit;
+
+    private final Runnable mDispatcher = new Runnable() {
+        @Override
+        public void
+        run() {
+            dispatch();
+        }
+    };
+
+    public enum Priority {
+        // Order is priority. Higher one first.
+        USER,
+        AUTO
+    }
+
+    /**
+     * Thrown at {@link #onTransfer(Ticket, int)} when download should yield it's slot.
+     */
+    public static class PreemptedException extends InterruptedException {
+        PreemptedException() {
+            super("Download is preempted");
+        }
+    }
+
+    public static class Ticket {
+        final Priority prio;
+        final long id; // Item id.
+        // Set when higher priority download is waiting for this ticket's slot.
+        // NOTE
+        // One ticket may be shared by several threads(ex. segmented download).
+        volatile boolean preempted = false;
+
+        Ticket(Priority aPrio, long aId) {
+            prio = aPrio;
+            id = aId;
+        }
+    }
+
+    private DownloadManager() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(AppEnv.getAppContext());
+        prefs.registerOnSharedPreferenceChangeListener(this);
+        mRateLimit = Util.getPrefDnRateLimit();
+    }
+
+    public static DownloadManager
+    get() {
+        if (null == sInstance) {
+            synchronized (DownloadManager.class) {
+                if (null == sInstance)
+                    sInstance = new DownloadManager();
+            }
+        }
+        return sInstance;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    // Slots
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    /**
+     * @return number of downloads run at once. This may be less than preference.
+     */
+    public static int
+    getMaxNrSlots() {
+        // One RTTask worker is left for other tasks.
+        int max = Math.min(Util.getPrefMaxNrDownload(), RTTask.MAX_CONCURRENT_TASKS - 1);
+        return max < 1? 1: max;
+    }
+
+    private void
+    enqueueLocked(@NonNull DownloadTask t) {
+        int i = 0;
+        for (DownloadTask w : mWaitQ) {
+            if (w.getDownloadPriority().ordinal() > t.getDownloadPriority().ordinal())
+                break;
+            i++;
+        }
+        mWaitQ.add(i, t);
+    }
+
+    /**
+     * Ask running automatic downloads to yield their slots to waiting user downloads.
+     */
+    private void
+    preemptLocked() {
+        int nrUserWaiting = 0;
+        for (DownloadTask w : mWaitQ) {
+            if (Priority.USER == w.getDownloadPriority())
+                nrUserWaiting++;
+        }
+        // Free slots are taken without preemption.
+        nrUserWaiting -= getMaxNrSlots() - mRunning.size();
+        for (Ticket r : mRunning) {
+            if (0 >= nrUserWaiting)
+                break;
+            if (Priority.AUTO == r.prio && !r.preempted) {
+                r.preempted = true;
+                nrUserWaiting--;
+            }
+        }
+    }
+
+    /**
+     * Assign free slots to waiting tasks, and add them to RTTask.
+     */
+    private void
+    dispatch() {
+        LinkedList<DownloadTask> starts = new LinkedList<>();
+        synchronized (mLock) {
+            int max = getMaxNrSlots();
+            while (!mWaitQ.isEmpty()
+                   && mRunning.size() < max) {
+                DownloadTask t = mWaitQ.removeFirst();
+                Ticket tk = new Ticket(t.getDownloadPriority(), t.getItemId());
+                mRunning.add(tk);
+                t.setTicket(tk);
+                starts.add(t);
+            }
+        }
+        RTTask rtt = RTTask.get();
+        for (DownloadTask t : starts) {
+            if (rtt.startPendingDownload(t)) {
+                if (DBG) P.v("Download slot is assigned : " + t.getItemId());
+                continue;
+            }
+            // Previous task of the item(ex. preempted one) is still at RTTask, or task is cancelled.
+            boolean retry = rtt.isPendingDownload(t);
+            synchronized (mLock) {
+                mRunning.remove(t.getTicket());
+                t.setTicket(null);
+                if (retry)
+                    enqueueLocked(t);
+            }
+            if (retry) {
+                AppEnv.getUiHandler().removeCallbacks(mDispatcher);
+                AppEnv.getUiHandler().postDelayed(mDispatcher, START_RETRY_DELAY);
+            }
+        }
+    }
+
+    /**
+     * Queue download task. Task is added to RTTask when download slot is available.
+     * This is called by RTTask. Use RTTask#addTask to start download.
+     */
+    public void
+    submit(@NonNull DownloadTask t) {
+        synchronized (mLock) {
+            enqueueLocked(t);
+            preemptLocked();
+        }
+        dispatch();
+    }
+
+    /**
+     * Remove task that is not started yet, from waiting queue.
+     * This is called by RTTask. Use RTTask#cancelDownload to cancel download.
+     */
+    public void
+    withdraw(@NonNull DownloadTask t) {
+        synchronized (mLock) {
+            mWaitQ.remove(t);
+        }
+    }
+
+    public void
+    release(@NonNull Ticket t) {
+        synchronized (mLock) {
+            mRunning.remove(t);
+        }
+        dispatch();
+    }
+
+    /**
+     * @return position(1-based) at waiting queue of download of item. '0' if it is not waiting.
+     */
+    public int
+    getQueuePosition(long id) {
+        synchronized (mLock) {
+            int pos = 1;
+            Iterator<DownloadTask> iter = mWaitQ.iterator();
+            while (iter.hasNext()) {
+                if (iter.next().getItemId() == id)
+                    return pos;
+                pos++;
+            }
+        }
+        return 0;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    // Bandwidth
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    /**
+     * Take tokens for 'nrBytes' from the bucket.
+     * @return time(ms) to wait until tokens are available.
+     */
+    private long
+    takeTokens(int nrBytes, long rate) {
+        synchronized (mBucketLock) {
+            long now = System.currentTimeMillis();
+            mTokens += (now - mBucketTime) * rate / 1000.0;
+            // Burst is limited to 1 second of data.
+            if (mTokens > rate)
+                mTokens = rate;
+            mBucketTime = now;
+            // Tokens can be negative. It is debt paid by waiting.
+            mTokens -= nrBytes;
+            return mTokens >= 0? 0: (long)(-mTokens * 1000 / rate);
+        }
+    }
+
+    /**
+     * Should be called whenever data is received.
+     * Caller is blocked if download is over bandwidth limit.
+     * @throws PreemptedException if it's slot is taken by higher priority download.
+     *   Caller should close connection and stop.
+     */
+    public void
+    onTransfer(@NonNull Ticket t, int nrBytes) throws InterruptedException {
+        long rate = mRateLimit;
+        if (rate > 0) {
+            long wait = takeTokens(nrBytes, rate);
+            if (wait > 0)
+                Thread.sleep(wait);
+        }
+
+        if (t.preempted) {
+            if (DBG) P.v("Download is preempted : " + t.id);
+            throw new PreemptedException();
+        }
+    }
+
+    //=========================================================================
+    // Overriding
+    //=========================================================================
+    @Override
+    public void
+    onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+        if (Util.getResString(R.string.csdn_rate_limit).equals(key))
+            mRateLimit = Util.getPrefDnRateLimit();
+        else if (Util.getResString(R.string.csmaxnr_download).equals(key))
+            // Waiting tasks may be able to start.
+            dispatch();
+    }
+}
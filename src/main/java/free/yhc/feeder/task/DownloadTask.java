@@ -40,10 +40,19 @@ import android.os.Handler;
 import android.support.annotation.NonNull;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
 import java.net.SocketException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import free.yhc.baselib.Logger;
 import free.yhc.baselib.adapter.HandlerAdapter;
@@ -51,8 +60,10 @@ import free.yhc.baselib.adapter.android.AHandlerAdapter;
 import free.yhc.baselib.async.ThreadEx;
 import free.yhc.baselib.net.NetConn;
 import free.yhc.baselib.net.NetDownloadTask;
+import free.yhc.feeder.core.ContentIndex;
 import free.yhc.feeder.core.ContentsManager;
 import free.yhc.feeder.core.Err;
+import free.yhc.feeder.core.RTTask;
 import free.yhc.feeder.core.Util;
 import free.yhc.feeder.db.ColumnItem;
 import free.yhc.feeder.db.DBPolicy;
@@ -62,21 +73,45 @@ public class DownloadTask extends NetDownloadTask {
     private static final Logger P = Logger.create(DownloadTask.class, Logger.LOGLV_DEFAULT);
 
     private static final int DEFAULT_NET_READ_BUFFER_SIZE = 16 * 1024;
+    private static final int CONNECT_TIMEOUT = 10 * 1000; // ms
+    private static final int READ_TIMEOUT = 30 * 1000; // ms
+    // Download is restarted from the beginning at most this number of times,
+    //   when server rejects resuming.
+    private static final int MAX_RESTART = 1;
+    // File smaller than this is always downloaded through one connection.
+    private static final long SEGMENTED_MIN_SIZE = 8 * 1024 * 1024;
+    // Interval of publishing progress of segmented download.
+    private static final long SEGMENTED_PROGRESS_INTERVAL = 500; // ms
 
-    private long mId;
-    private long mCid;
+    private final URL mUrl;
+    private final File mOutFile;
+    private final int mBufferSize;
+    private final DownloadManager.Priority mDnPrio;
+    private final long mId;
+    // Channel of the item. This is recorded at creation and used as index key by RTTask.
+    private final long mCid;
     private Err mErr = Err.UNKNOWN;
+    private volatile HttpURLConnection mConn = null;
+    // Slot assigned by DownloadManager before task is added to RTTask.
+    private volatile DownloadManager.Ticket mTicket = null;
+    // Slot is taken by higher priority download. Task is continued by new task.
+    private volatile boolean mPreempted = false;
+    // Connections of segments at segmented download.
+    private final LinkedList<HttpURLConnection> mSegConns = new LinkedList<>();
 
     public DownloadTask(
             @NonNull String name,
             @NonNull HandlerAdapter owner,
+            @NonNull URL url,
             @NonNull NetConn netConn,
             @NonNull File tmpFile,
             @NonNull File outFile,
             int netReadBufferSize,
             int priority,
             boolean interruptOnCancel,
-            long id)
+            long id,
+            long cid,
+            @NonNull DownloadManager.Priority dnPrio)
             throws IOException {
         super(name,
               owner,
@@ -86,23 +121,46 @@ public class DownloadTask extends NetDownloadTask {
               netReadBufferSize,
               priority,
               interruptOnCancel);
+        mUrl = url;
+        mOutFile = outFile;
+        mBufferSize = netReadBufferSize > 0? netReadBufferSize: DEFAULT_NET_READ_BUFFER_SIZE;
         mId = id;
-        mCid = DBPolicy.get().getItemInfoLong(mId, ColumnItem.CHANNELID);
+        mDnPrio = dnPrio;
+        mCid = cid;
     }
 
     public static class Builder<B extends Builder>
             extends NetDownloadTask.Builder<B> {
+        protected final URL mUrl;
         protected final long mId;
+        protected final long mCid;
+        protected DownloadManager.Priority mDnPrio = DownloadManager.Priority.USER;
 
+        /**
+         * @throws IOException also if item doesn't exist.(ex. deleted just before.)
+         */
         public Builder(
-                @NonNull NetConn netConn,
+                @NonNull URL url,
                 @NonNull File outfile,
                 long id) throws IOException {
-            super(netConn, outfile);
+            super(Util.createNetConn(url), outfile);
+            Long cid = DBPolicy.get().getItemInfoLong(id, ColumnItem.CHANNELID);
+            if (null == cid)
+                throw new IOException("Item doesn't exist : " + id);
             mName = "DownloadTask(" + id + ")";
             mPriority = ThreadEx.TASK_PRIORITY_MIN;
             mInterruptOnCancel = true;
+            mUrl = url;
             mId = id;
+            mCid = cid;
+        }
+
+        @SuppressWarnings("unchecked")
+        @NonNull
+        public B
+        setDownloadPriority(@NonNull DownloadManager.Priority prio) {
+            mDnPrio = prio;
+            return (B)this;
         }
 
         @Override
@@ -112,13 +170,16 @@ public class DownloadTask extends NetDownloadTask {
             try {
                 return new DownloadTask(mName,
                                         mOwner,
+                                        mUrl,
                                         mNetConn,
                                         mTmpFile,
                                         mOutfile,
                                         mBufferSize,
                                         mPriority,
                                         mInterruptOnCancel,
-                                        mId);
+                                        mId,
+                                        mCid,
+                                        mDnPrio);
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
@@ -130,26 +191,465 @@ public class DownloadTask extends NetDownloadTask {
     //
     //
     ///////////////////////////////////////////////////////////////////////////
+    private static boolean
+    canResume(@NonNull DBPolicy.DnJournal jn) {
+        // Without validator, there is no way to know that partial data is still valid.
+        return Util.isValidValue(jn.etag)
+               || Util.isValidValue(jn.lastModified);
+    }
+
+    /**
+     * @return start offset of "Content-Range: bytes <start>-<end>/<total>". '-1' if invalid.
+     */
+    private static long
+    contentRangeStart(String range) {
+        if (null == range || !range.startsWith("bytes "))
+            return -1;
+        int i = range.indexOf('-');
+        if (i < 0)
+            return -1;
+        try {
+            return Long.parseLong(range.substring("bytes ".length(), i).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return total length at "Content-Range". '-1' if unknown.
+     */
+    private static long
+    contentRangeTotal(String range) {
+        int i = (null == range)? -1: range.lastIndexOf('/');
+        if (i < 0)
+            return -1;
+        try {
+            return Long.parseLong(range.substring(i + 1).trim());
+        } catch (NumberFormatException e) {
+            // '*' : unknown total length.
+            return -1;
+        }
+    }
+
+    @NonNull
+    private static String
+    headerOrEmpty(@NonNull HttpURLConnection conn, @NonNull String name) {
+        String v = conn.getHeaderField(name);
+        return null == v? "": v;
+    }
+
+    @NonNull
+    private HttpURLConnection
+    openConnection() throws IOException {
+        if (!Util.isNetworkAvailable())
+            throw new SocketException("Network is not available");
+        HttpURLConnection conn = (HttpURLConnection)mUrl.openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(READ_TIMEOUT);
+        return conn;
+    }
+
+    /**
+     * Conditional request with validators of recorded data. See ContentIndex.
+     */
+    private boolean
+    isNotModified(@NonNull DBPolicy.ContentRec rec) throws IOException {
+        if (!Util.isValidValue(rec.etag)
+            && !Util.isValidValue(rec.lastModified))
+            return false; // There is no way to validate.
+        HttpURLConnection conn = openConnection();
+        mConn = conn;
+        try {
+            if (Util.isValidValue(rec.etag))
+                conn.setRequestProperty("If-None-Match", rec.etag);
+            if (Util.isValidValue(rec.lastModified))
+                conn.setRequestProperty("If-Modified-Since", rec.lastModified);
+            // Body of '200' isn't read. Data is downloaded through usual path.
+            return HttpURLConnection.HTTP_NOT_MODIFIED == conn.getResponseCode();
+        } finally {
+            mConn = null;
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * @param end inclusive. '< 0' for end of data.
+     * @param jn if not null, range is requested only if entity is not changed since 'jn'.
+     */
+    @NonNull
+    private HttpURLConnection
+    openRangeConnection(long start, long end, DBPolicy.DnJournal jn) throws IOException {
+        HttpURLConnection conn = openConnection();
+        conn.setRequestProperty("Range", "bytes=" + start + "-" + (end < 0? "": end));
+        // If entity is changed, server sends whole new entity(200) instead of partial one(206).
+        if (null != jn && canResume(jn))
+            conn.setRequestProperty("If-Range",
+                                    Util.isValidValue(jn.etag)? jn.etag: jn.lastModified);
+        return conn;
+    }
+
+    /**
+     * Download item data to partial file, continuing from previously downloaded part
+     *   if it is still valid.
+     * Partial file and it's journal are kept on failure or cancel. So, download can be
+     *   resumed even after process is restarted.
+     * @param maxSegs maximum number of connections used for new download.
+     * @return partial file having whole data.
+     * NOTE
+     * This is package private to be tested with local server. See DownloadResumeTest.
+     */
+    @NonNull
+    File
+    downloadResumable(int maxSegs) throws IOException, InterruptedException {
+        DBPolicy dbp = DBPolicy.get();
+        File part = ContentsManager.get().getItemPartialFile(mId);
+        //noinspection ResultOfMethodCallIgnored
+        part.getParentFile().mkdirs();
+
+        DBPolicy.DnJournal jn = dbp.getDnJournal(mId);
+        long offset = 0;
+        if (null != jn
+            && part.exists()
+            && mUrl.toString().equals(jn.url)
+            && canResume(jn))
+            offset = part.length();
+        // Segmented download is used only for new download.
+        int nrSegs = (0 == offset)? maxSegs: 1;
+
+        int restart = 0;
+        while (true) {
+            if (0 == offset) {
+                //noinspection ResultOfMethodCallIgnored
+                part.delete();
+            }
+            HttpURLConnection conn;
+            if (offset > 0)
+                conn = openRangeConnection(offset, -1, jn);
+            else if (nrSegs > 1)
+                // To know whether server supports range request or not.
+                conn = openRangeConnection(0, -1, null);
+            else
+                conn = openConnection();
+            mConn = conn;
+            try {
+                int rcode = conn.getResponseCode();
+                long total;
+                if (HttpURLConnection.HTTP_PARTIAL == rcode
+                    && offset == contentRangeStart(conn.getHeaderField("Content-Range"))) {
+                    total = contentRangeTotal(conn.getHeaderField("Content-Range"));
+                    if (DBG) P.v("Resume download : " + mId + " : from " + offset);
+                } else if (HttpURLConnection.HTTP_OK == rcode) {
+                    // Whole data. Entity is changed or server doesn't support range request.
+                    offset = 0;
+                    total = conn.getContentLength();
+                } else if (offset > 0
+                           && restart < MAX_RESTART
+                           && (HttpURLConnection.HTTP_PARTIAL == rcode
+                               || 416 == rcode)) { // Range Not Satisfiable
+                    if (416 == rcode
+                        && null != jn
+                        && jn.length == offset)
+                        return part; // Already downloaded fully before.
+                    // Partial data is useless. Start over.
+                    restart++;
+                    offset = 0;
+                    continue;
+                } else
+                    throw new IOException("Unexpected response : " + rcode);
+
+                jn = new DBPolicy.DnJournal(mUrl.toString(),
+                                            headerOrEmpty(conn, "ETag"),
+                                            headerOrEmpty(conn, "Last-Modified"),
+                                            total);
+                if (0 == offset
+                    && nrSegs > 1
+                    && HttpURLConnection.HTTP_PARTIAL == rcode
+                    && total >= SEGMENTED_MIN_SIZE) {
+                    // Segments are written out of order. So, partial file has holes until
+                    //   all segments are done, and it cannot be resumed as contiguous data.
+                    // Validators are not journaled to restart from the beginning next time.
+                    dbp.putDnJournal(mId, new DBPolicy.DnJournal(mUrl.toString(), "", "", total));
+                    transferSegmented(conn, part, total, nrSegs, jn);
+                    return part;
+                }
+                dbp.putDnJournal(mId, jn);
+                transfer(conn, part, offset, total);
+                return part;
+            } finally {
+                mConn = null;
+                conn.disconnect();
+            }
+        }
+    }
+
+    private void
+    transfer(@NonNull HttpURLConnection conn, @NonNull File part, long offset, long total)
+            throws IOException, InterruptedException {
+        // Progress is continued from the resumed point.
+        publishProgressInit(total);
+        publishProgress(offset);
+        long progress = offset;
+        byte[] buf = new byte[mBufferSize];
+        try (InputStream is = conn.getInputStream();
+             FileOutputStream fos = new FileOutputStream(part, offset > 0)) {
+            int nr;
+            while (0 < (nr = is.read(buf))) {
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+                fos.write(buf, 0, nr);
+                progress += nr;
+                publishProgress(progress);
+                DownloadManager.get().onTransfer(mTicket, nr);
+            }
+        }
+        if (total >= 0 && progress != total)
+            throw new SocketException("Connection closed before all data is received");
+    }
+
+    // ------------------------------------------------------------------------
+    // Segmented download
+    // ------------------------------------------------------------------------
+    /**
+     * Range [start, end] of data downloaded through one connection.
+     */
+    private class Segment implements Runnable {
+        final long start;
+        final long end; // inclusive
+        final FileChannel fc;
+        final DBPolicy.DnJournal jn;
+        final AtomicLong progress;
+        // First failure among segments of the download. Shared by all segments.
+        final AtomicReference<Exception> failure;
+        // Connection already opened. 'null' to open new one.
+        HttpURLConnection conn;
+        long received = 0;
+
+        Segment(long aStart, long aEnd, @NonNull FileChannel aFc, @NonNull DBPolicy.DnJournal aJn,
+                @NonNull AtomicLong aProgress, @NonNull AtomicReference<Exception> aFailure,
+                HttpURLConnection aConn) {
+            start = aStart;
+            end = aEnd;
+            fc = aFc;
+            jn = aJn;
+            progress = aProgress;
+            failure = aFailure;
+            conn = aConn;
+        }
+
+        private void
+        download() throws IOException, InterruptedException {
+            if (null == conn) {
+                conn = openRangeConnection(start, end, jn);
+                synchronized (mSegConns) {
+                    mSegConns.add(conn);
+                }
+                // Other segment may fail while connecting.
+                if (isCancel() || null != failure.get())
+                    throw new InterruptedIOException();
+                if (HttpURLConnection.HTTP_PARTIAL != conn.getResponseCode()
+                    || start != contentRangeStart(conn.getHeaderField("Content-Range")))
+                    throw new IOException("Range is not served : " + start);
+            }
+            long len = end - start + 1;
+            byte[] buf = new byte[mBufferSize];
+            try (InputStream is = conn.getInputStream()) {
+                int nr;
+                while (received < len
+                       && 0 < (nr = is.read(buf, 0, (int)Math.min(buf.length, len - received)))) {
+                    ByteBuffer bb = ByteBuffer.wrap(buf, 0, nr);
+                    long pos = start + received;
+                    // Positional write. Segments share one channel without seeking.
+                    while (bb.hasRemaining())
+                        pos += fc.write(bb, pos);
+                    received += nr;
+                    progress.addAndGet(nr);
+                    DownloadManager.get().onTransfer(mTicket, nr);
+                }
+            }
+        }
+
+        @Override
+        public void
+        run() {
+            try {
+                download();
+            } catch (IOException | InterruptedException e) {
+                // Whole download fails if one segment fails.
+                // So, stop other segments at once instead of letting them download their ranges.
+                if (failure.compareAndSet(null, e))
+                    disconnectSegments();
+            } finally {
+                // 'conn' is null if opening connection fails.
+                if (null != conn)
+                    conn.disconnect();
+            }
+        }
+    }
+
+    private void
+    disconnectSegments() {
+        synchronized (mSegConns) {
+            for (HttpURLConnection c : mSegConns)
+                c.disconnect();
+        }
+    }
+
+    /**
+     * Download data through 'nrSegs' connections at once.
+     * @param conn connection already opened with "Range: bytes=0-". Used for first segment.
+     */
+    private void
+    transferSegmented(@NonNull HttpURLConnection conn, @NonNull File part,
+                      long total, int nrSegs, @NonNull DBPolicy.DnJournal jn)
+            throws IOException, InterruptedException {
+        if (DBG) P.v("Segmented download : " + mId + " : " + nrSegs + " segments, " + total + " bytes");
+        publishProgressInit(total);
+        publishProgress(0);
+        AtomicLong progress = new AtomicLong(0);
+        AtomicReference<Exception> failure = new AtomicReference<>(null);
+        // First segment uses 'conn'. It should be stopped together with others, too.
+        synchronized (mSegConns) {
+            mSegConns.add(conn);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(part, "rw")) {
+            // Preallocate. Segments write their own range.
+            raf.setLength(total);
+            FileChannel fc = raf.getChannel();
+            long segsz = total / nrSegs;
+            Segment[] segs = new Segment[nrSegs];
+            Thread[] thds = new Thread[nrSegs];
+            for (int i = 0; i < nrSegs; i++) {
+                long start = segsz * i;
+                long end = (nrSegs - 1 == i)? total - 1: start + segsz - 1;
+                segs[i] = new Segment(start, end, fc, jn, progress, failure, 0 == i? conn: null);
+                thds[i] = new Thread(segs[i], "DownloadTask(" + mId + ").Segment" + i);
+                thds[i].start();
+            }
+            try {
+                for (Thread t : thds) {
+                    while (t.isAlive()) {
+                        t.join(SEGMENTED_PROGRESS_INTERVAL);
+                        publishProgress(progress.get());
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Cancelled. Stop all segments before closing file.
+                disconnectSegments();
+                for (Thread t : thds) {
+                    t.interrupt();
+                    t.join();
+                }
+                throw e;
+            } finally {
+                synchronized (mSegConns) {
+                    mSegConns.clear();
+                }
+            }
+
+            // Verify : all ranges should be fully received.
+            // Failure of other segments is caused by the first one.
+            Exception ex = failure.get();
+            if (ex instanceof IOException)
+                throw (IOException)ex;
+            if (ex instanceof InterruptedException)
+                throw (InterruptedException)ex;
+            P.bug(null == ex);
+            for (Segment seg : segs) {
+                if (seg.received != seg.end - seg.start + 1)
+                    throw new SocketException("Connection closed before all data is received");
+            }
+            fc.force(false);
+        }
+        publishProgress(total);
+    }
+
+    @Override
+    protected void
+    onEarlyCancel(boolean started, Object param) {
+        super.onEarlyCancel(started, param);
+        // Blocked read on socket is not interrupted by Thread.interrupt().
+        HttpURLConnection conn = mConn;
+        if (null != conn)
+            conn.disconnect();
+        disconnectSegments();
+    }
+
     @Override
     protected NetDownloadTask.Result
     doAsync() throws IOException, InterruptedException {
+        DownloadManager dm = DownloadManager.get();
+        DBPolicy dbp = DBPolicy.get();
+        ContentsManager cm = ContentsManager.get();
+        String url = mUrl.toString();
+        P.bug(null != mTicket);
         try {
-            NetDownloadTask.Result r = super.doAsync();
-            ContentsManager cm = ContentsManager.get();
-            cm.addItemContent(r.outFile, mId);
+            // Same data may be already downloaded by other item.
+            if (ContentIndex.reuse(url, mId, mOutFile, new ContentIndex.Revalidator() {
+                    @Override
+                    public boolean
+                    isNotModified(DBPolicy.ContentRec rec) throws IOException {
+                        return DownloadTask.this.isNotModified(rec);
+                    }
+                })) {
+                cm.addItemContent(mOutFile, mId);
+                mErr = Err.NO_ERR;
+                return new NetDownloadTask.Result(mOutFile);
+            }
+            File part = downloadResumable(Util.getPrefDnSegments());
+            if (!part.renameTo(mOutFile))
+                throw new IOException("Fail to move downloaded data");
+            DBPolicy.DnJournal jn = dbp.getDnJournal(mId);
+            dbp.removeDnJournal(mId);
+            ContentIndex.record(url,
+                                (null == jn)? "": jn.etag,
+                                (null == jn)? "": jn.lastModified,
+                                mId, mOutFile);
+            cm.addItemContent(mOutFile, mId);
             mErr = Err.NO_ERR;
-            return r;
+            return new NetDownloadTask.Result(mOutFile);
         } catch (SocketException | InterruptedIOException e) {
             /* SocketTimeoutException extends InterruptedIOException.
              */
+            if (isCancel()) {
+                // Connection is closed by cancel.
+                mErr = Err.USER_CANCELLED;
+                throw new InterruptedException();
+            }
             mErr = Err.IO_NET;
             throw e;
+        } catch (DownloadManager.PreemptedException e) {
+            // Connection is already closed. Partial data and it's journal are kept.
+            mErr = Err.INTERRUPTED;
+            if (!isCancel())
+                requeue();
+            throw e;
         } catch (InterruptedException e) {
             mErr = Err.USER_CANCELLED;
             throw e;
         } catch (IOException e) {
             mErr = Err.IO_FILE;
             throw e;
+        } finally {
+            dm.release(mTicket);
+        }
+    }
+
+    /**
+     * Queue new task continuing this preempted download.
+     * It waits for slot at DownloadManager without holding RTTask worker, and resumes
+     *   from received point.
+     * NOTE
+     * Segmented download cannot be resumed. (See downloadResumable()) It starts over.
+     */
+    private void
+    requeue() {
+        mPreempted = true;
+        try {
+            DownloadTask t = create(mUrl.toString(), mId, mDnPrio);
+            if (!RTTask.get().addTask(t, mId, RTTask.Action.DOWNLOAD))
+                if (DBG) P.w("Preempted download is already restarted : " + mId);
+        } catch (IOException e) {
+            if (DBG) P.w("Fail to requeue preempted download : " + mId);
         }
     }
 
@@ -165,8 +665,19 @@ public class DownloadTask extends NetDownloadTask {
     @NonNull
     public static DownloadTask
     create(String url, long id) throws IOException {
-        NetConn netConn = Util.createNetConn(new URL(url));
-        File tf = Util.getNewTempFile();
+        return create(url, id, DownloadManager.Priority.USER);
+    }
+
+    /**
+     * @param prio priority at DownloadManager.
+     * @throws IOException (MalformedURLException, IOException)
+     */
+    @NonNull
+    public static DownloadTask
+    create(String url, long id, @NonNull DownloadManager.Priority prio) throws IOException {
+        // Data is downloaded to partial file of the item - not to new temp file.
+        // See downloadResumable().
+        File tf = ContentsManager.get().getItemPartialFile(id);
         File of = ContentsManager.get().getItemInfoDataFile(id);
         if (null == of)
             throw new IOException();
@@ -174,8 +685,9 @@ public class DownloadTask extends NetDownloadTask {
         //noinspection ResultOfMethodCallIgnored
         of.getParentFile().mkdirs();
         DownloadTask.Builder<DownloadTask.Builder> b
-                = new DownloadTask.Builder<>(netConn, of, id);
+                = new DownloadTask.Builder<>(new URL(url), of, id);
         b.setTmpFile(tf);
+        b.setDownloadPriority(prio);
         return b.create();
     }
 
@@ -184,6 +696,30 @@ public class DownloadTask extends NetDownloadTask {
         return mErr;
     }
 
+    void
+    setTicket(DownloadManager.Ticket ticket) {
+        mTicket = ticket;
+    }
+
+    DownloadManager.Ticket
+    getTicket() {
+        return mTicket;
+    }
+
+    @NonNull
+    DownloadManager.Priority
+    getDownloadPriority() {
+        return mDnPrio;
+    }
+
+    /**
+     * @return true if download yielded it's slot, and is continued by new task.
+     */
+    public boolean
+    isPreempted() {
+        return mPreempted;
+    }
+
     public long
     getItemId() {
         return mId;
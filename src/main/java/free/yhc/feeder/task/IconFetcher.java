@@ -0,0 +1,291 @@
+/******************************************************************************
+ * Copyright (C) 2012, 2013, 2014, 2015, 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of FeedHive
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.feeder.task;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.LinkedList;
+
+import free.yhc.baselib.Logger;
+import free.yhc.feeder.core.HostGate;
+import free.yhc.feeder.core.IconStore;
+import free.yhc.feeder.core.Util;
+import free.yhc.feeder.db.ColumnChannel;
+import free.yhc.feeder.db.DBPolicy;
+import free.yhc.feeder.feed.Feed;
+
+//
+// Fetching channel icon - out of channel update path.
+// Requests are handled one by one at low-priority background thread.
+//
+// Source URL, validators and hash of fetched icon are kept per channel(See ColumnIconSrc).
+// Icon is fetched again only when
+//   - requested references are changed.
+//   - last fetch failed, and RETRY_INTERVAL is passed.
+//   - REVALIDATE_INTERVAL is passed. Conditional request is used. So, usually server just
+//     answers 'Not Modified'.
+// Same data from server is not decoded and stored again.
+//
+public class IconFetcher {
+    private static final boolean DBG = Logger.DBG_DEFAULT;
+    private static final Logger P = Logger.create(IconFetcher.class, Logger.LOGLV_DEFAULT);
+
+    private static final long REVALIDATE_INTERVAL = 7 * Util.DAY_IN_MS;
+    private static final long RETRY_INTERVAL = Util.DAY_IN_MS;
+    private static final int CONNECT_TIMEOUT = 10 * 1000; // ms
+    private static final int READ_TIMEOUT = 30 * 1000; // ms
+    // Data larger than this is not regarded as icon.
+    private static final int MAX_ICON_SIZE = 1024 * 1024;
+
+    private static IconFetcher sInstance = null;
+
+    private final Handler mHandler;
+    // Channels whose request is waiting to be handled. Guarded by itself.
+    private final HashSet<Long> mPending = new HashSet<>();
+
+    private static class Response {
+        final int code;
+        final byte[] data; // null if 'Not Modified'
+        final String etag;
+        final String lastModified;
+
+        Response(int aCode, byte[] aData, String aEtag, String aLastModified) {
+            code = aCode;
+            data = aData;
+            etag = aEtag;
+            lastModified = aLastModified;
+        }
+    }
+
+    private IconFetcher() {
+        HandlerThread ht = new HandlerThread("IconFetcher", Process.THREAD_PRIORITY_BACKGROUND);
+        ht.start();
+        mHandler = new Handler(ht.getLooper());
+    }
+
+    public static IconFetcher
+    get() {
+        if (null == sInstance) {
+            synchronized (IconFetcher.class) {
+                if (null == sInstance)
+                    sInstance = new IconFetcher();
+            }
+        }
+        return sInstance;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    //
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    @NonNull
+    private static String
+    headerOrEmpty(@NonNull HttpURLConnection conn, @NonNull String name) {
+        String v = conn.getHeaderField(name);
+        return (null == v)? "": v;
+    }
+
+    /**
+     * @param cond if not null, icon is requested only if it is changed since 'cond'.
+     * @return null if icon is not available at the url.
+     */
+    @Nullable
+    private static Response
+    fetch(@NonNull String urlstr, @Nullable DBPolicy.IconSrc cond)
+            throws IOException, InterruptedException {
+        URL url;
+        try {
+            url = new URL(urlstr);
+        } catch (MalformedURLException e) {
+            return null;
+        }
+        if (!Util.isNetworkAvailable())
+            throw new SocketException("Network is not available");
+        HostGate.Ticket tk = HostGate.get().acquire(url);
+        HttpURLConnection conn = null;
+        try {
+            conn = (HttpURLConnection)url.openConnection();
+            conn.setConnectTimeout(CONNECT_TIMEOUT);
+            conn.setReadTimeout(READ_TIMEOUT);
+            if (null != cond) {
+                if (Util.isValidValue(cond.etag))
+                    conn.setRequestProperty("If-None-Match", cond.etag);
+                if (Util.isValidValue(cond.lastModified))
+                    conn.setRequestProperty("If-Modified-Since", cond.lastModified);
+            }
+            int code = conn.getResponseCode();
+            String etag = headerOrEmpty(conn, "ETag");
+            String lastModified = headerOrEmpty(conn, "Last-Modified");
+            if (HttpURLConnection.HTTP_NOT_MODIFIED == code)
+                return new Response(code, null, etag, lastModified);
+            if (HttpURLConnection.HTTP_OK != code
+                || conn.getContentLength() > MAX_ICON_SIZE)
+                return null;
+            try (InputStream is = conn.getInputStream();
+                 ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+                byte[] buf = new byte[8 * 1024];
+                int n;
+                while (0 < (n = is.read(buf))) {
+                    if (baos.size() + n > MAX_ICON_SIZE)
+                        return null;
+                    baos.write(buf, 0, n);
+                }
+                return new Response(code, baos.toByteArray(), etag, lastModified);
+            }
+        } finally {
+            if (null != conn)
+                conn.disconnect();
+            tk.release();
+        }
+    }
+
+    private static void
+    handle(long cid, @NonNull String[] refs) throws InterruptedException {
+        DBPolicy dbp = DBPolicy.get();
+        DBPolicy.IconSrc src = dbp.getIconSrc(cid);
+        boolean hasIcon = dbp.hasChannelImage(cid);
+        boolean fetched = null != src && hasIcon && Util.isValidValue(src.hash);
+        long now = System.currentTimeMillis();
+        // Decided with requested references - not with source of icon.
+        // Icon may come from fallback reference. Then source is always different from the first
+        //   reference, and failing one would be tried again at every update.
+        String key = TextUtils.join("\n", refs);
+        if (null != src
+            && key.equals(src.refs)
+            && now - src.checktime < (fetched? REVALIDATE_INTERVAL: RETRY_INTERVAL))
+            return;
+
+        for (String ref : refs) {
+            // Validators are meaningful only for the source of icon that channel has now.
+            DBPolicy.IconSrc cond = (fetched && src.url.equals(ref))? src: null;
+            Response r;
+            try {
+                r = fetch(ref, cond);
+            } catch (IOException e) {
+                if (DBG) P.w("Fail to fetch icon : " + ref + " : " + e.getMessage());
+                continue;
+            }
+            if (null == r)
+                continue;
+
+            if (null == r.data) {
+                if (DBG) P.v("Icon is not modified : " + cid);
+                //noinspection ConstantConditions
+                dbp.putIconSrc(cid, new DBPolicy.IconSrc(ref, key, r.etag, r.lastModified, cond.hash, now));
+                return;
+            }
+
+            String hash = IconStore.hash(r.data);
+            if (null == hash)
+                return;
+            if (null == cond
+                || !hash.equals(cond.hash)) {
+                Bitmap bm = Util.decodeImage(r.data,
+                                             Feed.Channel.ICON_MAX_WIDTH,
+                                             Feed.Channel.ICON_MAX_HEIGHT);
+                if (null == bm)
+                    continue;
+                byte[] imageblob = Util.compressBitmap(bm);
+                bm.recycle();
+                dbp.updateChannel(cid, ColumnChannel.IMAGEBLOB, imageblob);
+            }
+            dbp.putIconSrc(cid, new DBPolicy.IconSrc(ref, key, r.etag, r.lastModified, hash, now));
+            return;
+        }
+        // Icon that channel has now(if any), is kept.
+        dbp.putIconSrc(cid, new DBPolicy.IconSrc(refs[0], key, "", "", "", now));
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    //
+    //
+    ///////////////////////////////////////////////////////////////////////////
+    /**
+     * Request fetching icon of channel, if needed.
+     * This returns immediately. Request for channel that is already waiting, is ignored.
+     * @param imageref icon reference of feed.
+     * @param customRef reference used when 'imageref' is not available.
+     */
+    public void
+    request(final long cid, @Nullable String imageref, @Nullable String customRef) {
+        // Kind Of Policy!!
+        // Original image reference always has priority!
+        LinkedList<String> l = new LinkedList<>();
+        if (Util.isValidValue(imageref))
+            l.add(imageref);
+        if (Util.isValidValue(customRef))
+            l.add(customRef);
+        if (l.isEmpty())
+            return;
+        final String[] refs = l.toArray(new String[l.size()]);
+
+        synchronized (mPending) {
+            if (!mPending.add(cid))
+                return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void
+            run() {
+                synchronized (mPending) {
+                    mPending.remove(cid);
+                }
+                try {
+                    handle(cid, refs);
+                } catch (InterruptedException e) {
+                    if (DBG) P.w("Icon fetching is interrupted : " + cid);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,356 @@
+/******************************************************************************
+ * Copyright (C) 2012, 2013, 2014, 2015, 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of FeedHive
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.feeder.task;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+import java.net.URL;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import free.yhc.baselib.Logger;
+import free.yhc.feeder.core.FeederException;
+import free.yhc.feeder.core.RTTask;
+import free.yhc.feeder.core.UpdateTelemetry;
+import free.yhc.feeder.db.DBPolicy;
+import free.yhc.feeder.feed.FeedParser;
+
+//
+// Stages of channel update.
+//   fetch   : Network I/O bound. Run at network executor.
+//   parse   : CPU bound. Run at parse executor having as many threads as cores.
+//             So, parsing doesn't steal CPU from each other, while other tasks are waiting network.
+//   persist : DB bound. Run at one DB writer thread.
+//             Persisting jobs of several channels are written as one DB transaction.
+//
+// UpdateTask's thread(RTTask worker) just hands over each stage and waits for the result.
+// If UpdateTask is cancelled, stage being run is interrupted.
+//
+// Queue for persisting is bounded. If writer falls behind, update tasks wait before
+//   queueing instead of piling up parsed feeds on memory.(Back-pressure)
+//
+// Result of failed update(failure count and telemetry) is also written by the writer thread.
+// (See record().) So, no update writes DB out of the writer's transactions.
+//
+public class UpdatePipeline {
+    private static final boolean DBG = Logger.DBG_DEFAULT;
+    private static final Logger P = Logger.create(UpdatePipeline.class, Logger.LOGLV_DEFAULT);
+
+    private static final int AVAILABLE_PROCESSOR = Runtime.getRuntime().availableProcessors();
+    private static final int MAX_PERSIST_QUEUE = 8;
+    // Maximum number of channels written as one transaction.
+    private static final int MAX_PERSIST_BATCH = 8;
+
+    private static UpdatePipeline sInstance = null;
+
+    // NOTE
+    // Each UpdateTask has at most one fetch at a time. So, more threads than RTTask workers
+    //   are useless.
+    private final ExecutorService mFetchExec
+            = Executors.newFixedThreadPool(RTTask.MAX_CONCURRENT_TASKS,
+                                           new StageThreadFactory("UpdatePipeline.Fetch"));
+    private final ExecutorService mParseExec
+            = Executors.newFixedThreadPool(AVAILABLE_PROCESSOR > 1? AVAILABLE_PROCESSOR: 1,
+                                           new StageThreadFactory("UpdatePipeline.Parse"));
+    private final ArrayBlockingQueue<PersistEntry> mPersistQ = new ArrayBlockingQueue<>(MAX_PERSIST_QUEUE);
+    // Jobs queued by record(). Nobody waits for them. So, they are not bounded.
+    private final ConcurrentLinkedQueue<PersistEntry> mRecordQ = new ConcurrentLinkedQueue<>();
+    // Put to mPersistQ just to wake up writer for mRecordQ.
+    private final PersistEntry mWakeup = new PersistEntry(-1, null);
+
+    interface PersistJob {
+        /**
+         * Run at DB writer thread inside DB transaction, at it's own SAVEPOINT.
+         * If exception is thrown, all changes done by this job are rolled back.
+         * DO NOT run long-blocking operation (ex. network I/O) here.
+         * DO NOT start nested DB transaction here. (See DBPolicy#runChannelUpdateInSavepoint)
+         */
+        void persist() throws FeederException;
+    }
+
+    private static class PersistEntry {
+        final long cid;
+        final PersistJob job;
+        final CountDownLatch done = new CountDownLatch(1);
+        // Job checks this at it's long loops. See DBPolicy#setJobCancelFlag.
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        Exception ex = null;
+
+        PersistEntry(long aCid, PersistJob aJob) {
+            cid = aCid;
+            job = aJob;
+        }
+    }
+
+    private static class StageThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mSeq = new AtomicInteger(0);
+
+        StageThreadFactory(@NonNull String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread
+        newThread(@NonNull final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void
+                run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, mName + "-" + mSeq.getAndIncrement());
+        }
+    }
+
+    private class Writer extends Thread {
+        Writer() {
+            super("UpdatePipeline.Writer");
+        }
+
+        private void
+        writeBatch(final LinkedList<PersistEntry> batch) {
+            long[] cids = new long[batch.size()];
+            int i = 0;
+            for (PersistEntry e : batch)
+                cids[i++] = e.cid;
+            try {
+                DBPolicy.get().runChannelUpdatesInTransaction(cids, new Runnable() {
+                    @Override
+                    public void
+                    run() {
+                        DBPolicy dbp = DBPolicy.get();
+                        for (final PersistEntry e : batch) {
+                            // Requester may be cancelled while previous jobs are written.
+                            if (e.cancelled.get())
+                                continue;
+                            dbp.setJobCancelFlag(e.cancelled);
+                            try {
+                                // Each job has it's own SAVEPOINT.
+                                // Changes of failed job are rolled back, and others in the batch
+                                //   are committed.
+                                dbp.runChannelUpdateInSavepoint(e.cid, new DBPolicy.ChannelUpdateJob() {
+                                    @Override
+                                    public void
+                                    run() throws FeederException {
+                                        e.job.persist();
+                                    }
+                                });
+                            } catch (FeederException | RuntimeException ex) {
+                                e.ex = ex;
+                            } finally {
+                                dbp.setJobCancelFlag(null);
+                            }
+                        }
+                    }
+                });
+            } catch (RuntimeException ex) {
+                // Transaction itself fails. Nothing of the batch is written.
+                for (PersistEntry e : batch) {
+                    if (null == e.ex)
+                        e.ex = ex;
+                }
+            }
+        }
+
+        @Override
+        public void
+        run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            LinkedList<PersistEntry> batch = new LinkedList<>();
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                try {
+                    batch.add(mPersistQ.take());
+                } catch (InterruptedException ignored) {
+                    continue;
+                }
+                mPersistQ.drainTo(batch, MAX_PERSIST_BATCH - 1);
+                PersistEntry r;
+                while (null != (r = mRecordQ.poll()))
+                    batch.add(r);
+                LinkedList<PersistEntry> jobs = new LinkedList<>();
+                for (PersistEntry e : batch) {
+                    if (mWakeup == e)
+                        continue;
+                    if (e.cancelled.get())
+                        e.done.countDown();
+                    else
+                        jobs.add(e);
+                }
+                if (!jobs.isEmpty()) {
+                    if (DBG) P.v("Persist batch : " + jobs.size() + " jobs");
+                    writeBatch(jobs);
+                    for (PersistEntry e : jobs) {
+                        e.done.countDown();
+                        if (DBG && null != e.ex)
+                            P.w("Persist job fails(" + e.cid + ") : " + e.ex.getMessage());
+                    }
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    private UpdatePipeline() {
+        new Writer().start();
+    }
+
+    public static UpdatePipeline
+    get() {
+        if (null == sInstance) {
+            synchronized (UpdatePipeline.class) {
+                if (null == sInstance)
+                    sInstance = new UpdatePipeline();
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Wait result of the stage. If caller is interrupted, stage is interrupted too.
+     */
+    private static <T> T
+    await(@NonNull Future<T> f) throws FeederException, InterruptedException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            f.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof FeederException)
+                throw (FeederException)cause;
+            else if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            else if (cause instanceof Error)
+                throw (Error)cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Fetch stage.
+     * Caller SHOULD hold slot of the host at HostGate. See UpdateTask.
+     * @param run See {@link FeedParser#fetch(URL, UpdateTelemetry.Run)}.
+     */
+    @NonNull
+    byte[]
+    fetch(@NonNull final URL url, @NonNull final UpdateTelemetry.Run run)
+            throws FeederException, InterruptedException {
+        return await(mFetchExec.submit(new Callable<byte[]>() {
+            @Override
+            public byte[]
+            call() throws FeederException {
+                return FeedParser.fetchAdmitted(url, run);
+            }
+        }));
+    }
+
+    /**
+     * Parse stage.
+     * @param run 'parse' and 'html' stages are recorded. Waiting for parse thread is not counted.
+     */
+    @NonNull
+    FeedParser.Result
+    parse(@NonNull final byte[] data, @NonNull final UpdateTelemetry.Run run)
+            throws FeederException, InterruptedException {
+        return await(mParseExec.submit(new Callable<FeedParser.Result>() {
+            @Override
+            public FeedParser.Result
+            call() throws FeederException {
+                long startTime = System.currentTimeMillis();
+                // HTML time is counted per thread.
+                FeedParser.resetHtmlTime();
+                try {
+                    return FeedParser.parse(data);
+                } finally {
+                    run.add(UpdateTelemetry.Stage.PARSE, System.currentTimeMillis() - startTime);
+                    run.add(UpdateTelemetry.Stage.HTML, FeedParser.getHtmlTime());
+                }
+            }
+        }));
+    }
+
+    /**
+     * Queue job recording result of update, without waiting for it.
+     * Job is run at DB writer thread at it's own SAVEPOINT, like job of persist stage.
+     * Failure of job is just logged.
+     */
+    void
+    record(long cid, @NonNull PersistJob job) {
+        mRecordQ.add(new PersistEntry(cid, job));
+        // If queue is full, writer is busy and it will pick up the job at next batch.
+        mPersistQ.offer(mWakeup);
+    }
+
+    /**
+     * Persist stage.
+     * Caller is blocked until job is written to DB.
+     * If caller is interrupted before job is started, job is dropped.
+     * If caller is interrupted while job is running, caller returns at once, and job stops
+     *   at it's next cancellation point.
+     */
+    void
+    persist(long cid, @NonNull PersistJob job) throws FeederException, InterruptedException {
+        PersistEntry e = new PersistEntry(cid, job);
+        mPersistQ.put(e);
+        try {
+            e.done.await();
+        } catch (InterruptedException ex) {
+            e.cancelled.set(true);
+            throw ex;
+        }
+        if (e.ex instanceof FeederException)
+            throw (FeederException)e.ex;
+        else if (e.ex instanceof RuntimeException)
+            throw (RuntimeException)e.ex;
+        P.bug(null == e.ex);
+    }
+}
@@ -0,0 +1,196 @@
+/******************************************************************************
+ * Copyright (C) 2012, 2013, 2014, 2015, 2016
+ * Younghyung Cho. <yhcting77@gmail.com>
+ * All rights reserved.
+ *
+ * This file is part of FeedHive
+ *
+ * This program is licensed under the FreeBSD license
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ *****************************************************************************/
+
+package free.yhc.feeder.task;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+
+import free.yhc.abaselib.AppEnv;
+import free.yhc.baselib.Logger;
+import free.yhc.feeder.core.RTTask;
+import free.yhc.feeder.core.Util;
+import free.yhc.feeder.db.ColumnChannel;
+import free.yhc.feeder.db.DBPolicy;
+
+//
+// Decide which of due channels are updated at this scheduled update, and in which order.
+//
+// Channels are ordered by priority score - value / cost.
+//   value : time since last update(staleness), weighted by how much user reads the channel.
+//   cost  : average time taken by update of the channel.
+// Channels are admitted in this order while their expected time fits in time budget.
+// Updates run in parallel. So, expected time is sum of costs divided by number of
+//   concurrent tasks.
+// Channels that are not admitted, are deferred as a whole - NOT partially run.
+//
+public class UpdatePlanner {
+    private static final boolean DBG = Logger.DBG_DEFAULT;
+    private static final Logger P = Logger.create(UpdatePlanner.class, Logger.LOGLV_DEFAULT);
+
+    // Cost of channel that is never updated successfully.
+    private static final long DEFAULT_LATENCY = 10 * 1000; // ms
+    private static final long MIN_LATENCY = 1000; // ms
+    // Staleness longer than this is regarded as same.
+    private static final long MAX_STALENESS = 7 * Util.DAY_IN_MS;
+    // Channel that user never reads still has this much weight.
+    private static final float BASE_READ_WEIGHT = 0.5f;
+    private static final int LOW_BATTERY_PERCENT = 15;
+
+    public static class Plan {
+        // Channels to update now. Ordered by priority.
+        public final long[] run;
+        // Channels to update later.
+        public final long[] deferred;
+        // ms. '0' means 'unlimited'.
+        public final long budget;
+
+        Plan(long[] aRun, long[] aDeferred, long aBudget) {
+            run = aRun;
+            deferred = aDeferred;
+            budget = aBudget;
+        }
+    }
+
+    private static class Cand {
+        final long cid;
+        final long cost;
+        final double score;
+
+        Cand(long aCid, long aCost, double aScore) {
+            cid = aCid;
+            cost = aCost;
+            score = aScore;
+        }
+    }
+
+    private static boolean
+    isLowBattery() {
+        // Sticky intent. Receiver is not registered actually.
+        Intent i = AppEnv.getAppContext().registerReceiver(
+                null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (null == i)
+            return false;
+        int status = i.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        if (BatteryManager.BATTERY_STATUS_CHARGING == status
+            || BatteryManager.BATTERY_STATUS_FULL == status)
+            return false;
+        int level = i.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = i.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        return level >= 0
+               && scale > 0
+               && level * 100 / scale <= LOW_BATTERY_PERCENT;
+    }
+
+    /**
+     * Time budget of scheduled update at this moment.
+     * Budget is halved while battery is low.
+     * @return ms. '0' means 'unlimited'.
+     */
+    public static long
+    getBudget() {
+        long budget = Util.getPrefUpdateTimeBudget();
+        if (budget > 0 && isLowBattery())
+            budget /= 2;
+        return budget;
+    }
+
+    /**
+     * @param cids due channels. Duplicated one is ignored.
+     */
+    @NonNull
+    public static Plan
+    plan(@NonNull long[] cids, long now) {
+        DBPolicy dbp = DBPolicy.get();
+        LinkedHashSet<Long> set = new LinkedHashSet<>();
+        for (long cid : cids)
+            set.add(cid);
+        long[] chans = new long[set.size()];
+        int n = 0;
+        for (long cid : set)
+            chans[n++] = cid;
+
+        long[] latencies = dbp.getUpdateLatencies(chans);
+        float[] readRatios = dbp.getChannelReadRatios(chans);
+        Cand[] cands = new Cand[chans.length];
+        for (int i = 0; i < chans.length; i++) {
+            Long lastupdate = dbp.getChannelInfoLong(chans[i], ColumnChannel.LASTUPDATE);
+            long staleness = now - (null == lastupdate? 0: lastupdate);
+            if (staleness > MAX_STALENESS || staleness < 0)
+                staleness = MAX_STALENESS;
+            long cost = latencies[i] < 0? DEFAULT_LATENCY: latencies[i];
+            if (cost < MIN_LATENCY)
+                cost = MIN_LATENCY;
+            double value = (double)staleness * (BASE_READ_WEIGHT + readRatios[i]);
+            cands[i] = new Cand(chans[i], cost, value / cost);
+        }
+        Arrays.sort(cands, new Comparator<Cand>() {
+            @Override
+            public int
+            compare(Cand c0, Cand c1) {
+                return Double.compare(c1.score, c0.score);
+            }
+        });
+
+        long budget = getBudget();
+        // Budget is compared with sum of costs. See comment at the top.
+        long capacity = budget * RTTask.MAX_CONCURRENT_TASKS;
+        long[] run = new long[cands.length];
+        long[] deferred = new long[cands.length];
+        int nrRun = 0;
+        int nrDeferred = 0;
+        long used = 0;
+        for (Cand c : cands) {
+            // At least one channel is run. Otherwise, it may be deferred forever.
+            if (budget <= 0
+                || 0 == nrRun
+                || used + c.cost <= capacity) {
+                used += c.cost;
+                run[nrRun++] = c.cid;
+            } else
+                deferred[nrDeferred++] = c.cid;
+        }
+        if (DBG) P.v("Plan : run " + nrRun + ", deferred " + nrDeferred
+                     + ", budget " + (budget / 1000) + " sec");
+        return new Plan(Arrays.copyOf(run, nrRun), Arrays.copyOf(deferred, nrDeferred), budget);
+    }
+}
@@ -36,26 +36,29 @@
 
 package free.yhc.feeder.task;
 
-import android.graphics.Bitmap;
+import android.database.sqlite.SQLiteException;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InterruptedIOException;
-import java.net.SocketException;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import free.yhc.abaselib.AppEnv;
 import free.yhc.baselib.Logger;
 import free.yhc.baselib.async.HelperHandler;
+import free.yhc.baselib.async.TaskBase;
 import free.yhc.baselib.async.ThreadEx;
 import free.yhc.baselib.async.TmTask;
-import free.yhc.baselib.net.NetDownloadTask;
-import free.yhc.baselib.net.NetReadTask;
+import free.yhc.feeder.core.ContentsManager;
 import free.yhc.feeder.core.Err;
+import free.yhc.feeder.core.HostGate;
+import free.yhc.feeder.core.RTTask;
+import free.yhc.feeder.core.UpdateTelemetry;
 import free.yhc.feeder.core.Util;
 import free.yhc.feeder.db.ColumnChannel;
 import free.yhc.feeder.db.DBPolicy;
@@ -71,10 +74,15 @@ public class UpdateTask extends TmTask<Err> {
 
     private final DBPolicy mDbp = DBPolicy.get();
 
-    private final AtomicReference<NetDownloadTask> mDnTask = new AtomicReference<>(null);
     private final long mCid;
     private final String mCustomIconRef;
     private Err mErr = Err.UNKNOWN;
+    // Time when cancel is requested. Used to measure cancellation latency. '0' if not cancelled.
+    private volatile long mCancelTime = 0;
+    // Slot of channel's host, assigned by RTTask before task is started. Released after fetch.
+    private volatile HostGate.Ticket mHostTicket = null;
+    // Result of this run is written to DB. Accessed at DB writer thread. See UpdatePipeline.
+    private final AtomicBoolean mRecorded = new AtomicBoolean(false);
 
     private void
     checkCancel() throws InterruptedException {
@@ -82,6 +90,13 @@ public class UpdateTask extends TmTask<Err> {
             throw new InterruptedException();
     }
 
+    private void
+    releaseHostTicket() {
+        HostGate.Ticket tk = mHostTicket;
+        if (null != tk)
+            tk.release();
+    }
+
     public UpdateTask(
             long cid,
             @Nullable String customIconRef) {
@@ -91,27 +106,107 @@ public class UpdateTask extends TmTask<Err> {
               true);
         mCid = cid;
         mCustomIconRef = customIconRef;
+        addEventListener(new TaskBase.EventListener<UpdateTask, Err>() {
+            @Override
+            public void
+            onCancel(@NonNull UpdateTask task, Object param) {
+                mCancelTime = System.currentTimeMillis();
+            }
+
+            @Override
+            public void
+            onCancelled(@NonNull UpdateTask task, Object param) {
+                // Task may be cancelled before it is run.
+                releaseHostTicket();
+            }
+        });
     }
 
 
-    @Override
-    protected void
-    onEarlyCancel(boolean started, Object param) {
-        super.onEarlyCancel(started, param);
-        NetDownloadTask t = mDnTask.get();
-        if (null != t)
-            t.cancel();
+    /**
+     * Start downloading data of new items of update-and-download channel.
+     * Downloads are queued at DownloadManager at automatic priority. Only as many as download
+     *   slots are run at once, and waiting ones don't hold RTTask workers.
+     *   So, channel having lots of new items doesn't block other channels' updates.
+     * Item whose download is already started(ex. by user) or whose data already exists,
+     *   is skipped.
+     */
+    private static void
+    startAutoDownloads(long action,
+                       @NonNull LinkedList<Feed.Item.ParD> items,
+                       @NonNull LinkedList<Long> ids) {
+        P.bug(items.size() == ids.size());
+        final LinkedList<Long> dnIds = new LinkedList<>();
+        final LinkedList<String> dnUrls = new LinkedList<>();
+        Iterator<Long> idIter = ids.iterator();
+        for (Feed.Item.ParD item : items) {
+            long id = idIter.next();
+            String url = FeedPolicy.getDynamicActionTargetUrl(action, item.link, item.enclosureUrl);
+            if (!Util.isValidValue(url))
+                continue;
+            dnIds.add(id);
+            dnUrls.add(url);
+        }
+        // Tasks are added at UI thread like ones started by user.
+        // So, checking state and adding task are not interleaved with user's request.
+        AppEnv.getUiHandler().post(new Runnable() {
+            @Override
+            public void
+            run() {
+                RTTask rtt = RTTask.get();
+                ContentsManager cm = ContentsManager.get();
+                Iterator<String> urlIter = dnUrls.iterator();
+                for (long id : dnIds) {
+                    String url = urlIter.next();
+                    File f = cm.getItemInfoDataFile(id);
+                    if (null == f
+                        || f.exists()
+                        || RTTask.RtState.IDLE != rtt.getRtState(rtt.getDownloadTask(id)))
+                        continue;
+                    try {
+                        DownloadTask t = DownloadTask.create(url, id, DownloadManager.Priority.AUTO);
+                        // Task waits at DownloadManager until it's slot is available.
+                        if (!rtt.addTask(t, id, RTTask.Action.DOWNLOAD))
+                            if (DBG) P.w("Duplicated download : " + id);
+                    } catch (IOException e) {
+                        if (DBG) P.w("Fail to start auto download : " + id);
+                    }
+                }
+            }
+        });
     }
 
     private Err
-    doAsyncTaskInternal()
+    doAsyncTaskInternal(@NonNull final UpdateTelemetry.Run run)
             throws InterruptedException, FeederException{
-        String url = mDbp.getChannelInfoString(mCid, ColumnChannel.URL);
-        P.bug(null != url);
-        if (DBG) P.v("Loading Items: " + url);
-        FeedParser.Result parD;
-        assert url != null;
-        parD = FeedParser.parse(url);
+        String urlstr = mDbp.getChannelInfoString(mCid, ColumnChannel.URL);
+        P.bug(null != urlstr);
+        if (DBG) P.v("Loading Items: " + urlstr);
+        assert urlstr != null;
+        URL url;
+        try {
+            url = new URL(urlstr);
+        } catch (MalformedURLException e) {
+            throw new FeederException(Err.INVALID_URL);
+        }
+        checkCancel();
+        // Stage 1 : fetch.
+        // Slot is assigned by RTTask#addTask. Task started in other ways waits it here.
+        if (null == mHostTicket)
+            mHostTicket = HostGate.get().acquire(url);
+        byte[] data;
+        try {
+            data = UpdatePipeline.get().fetch(url, run);
+        } finally {
+            // Other channels of the host don't need to wait parse and persist of this channel.
+            releaseHostTicket();
+        }
+        checkCancel();
+        // Stage 2 : parse.
+        final FeedParser.Result parD = UpdatePipeline.get().parse(data, run);
+        run.nrItems = parD.items.length;
+        //noinspection UnusedAssignment
+        data = null; // raw data is not used anymore. Let GC collect it while waiting persist stage.
         // set to given value in force due to this is 'update' - Not new insertion.
 
         // decide action type.
@@ -125,112 +220,113 @@ public class UpdateTask extends TmTask<Err> {
         if (action != oldAction)
             mDbp.updateChannel(mCid, ColumnChannel.ACTION, action);
 
-        if (null == mDbp.getChannelImageBitmap(mCid)) {
-            // Kind Of Policy!!
-            // Original image reference always has priority!
-            byte[] bmdata = null;
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream()){
-                if (Util.isValidValue(parD.channel.imageref)) {
-                    NetReadTask.Builder<NetReadTask.Builder> b = new NetReadTask.Builder<>(
-                            Util.createNetConn(new URL(parD.channel.imageref)),
-                            baos);
-                    b.create().startSync();
-                    bmdata = baos.toByteArray();
-                }
-            } catch (IOException ignored) {
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
-
-
-            if (null == bmdata && null != mCustomIconRef) {
-                try (ByteArrayOutputStream baos = new ByteArrayOutputStream()){
-                    NetReadTask.Builder<NetReadTask.Builder> b = new NetReadTask.Builder<>(
-                            Util.createNetConn(new URL(mCustomIconRef)),
-                            baos);
-                    b.create().startSync();
-                    bmdata = baos.toByteArray();
-                } catch (IOException ignored) {
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-            }
-
-            if (null != bmdata) {
-                Bitmap bm = Util.decodeImage(
-                        bmdata,
-                        Feed.Channel.ICON_MAX_WIDTH,
-                        Feed.Channel.ICON_MAX_HEIGHT);
-                if (null != bm) {
-                    byte[] imageblob = Util.compressBitmap(bm);
-                    bm.recycle();
-                    mDbp.updateChannel(mCid, ColumnChannel.IMAGEBLOB, imageblob);
-                }
-            }
-            //logI("TIME: Handle Image : " + (System.currentTimeMillis() - time));
-            checkCancel();
-        }
-
-        LinkedList<Feed.Item.ParD> newItems = new LinkedList<>();
-        mDbp.getNewItems(mCid, parD.items, newItems);
+        // Icon is fetched at background, only if it's source or validators are changed.
+        // So, updating channel doesn't wait for it.
+        IconFetcher.get().request(mCid, parD.channel.imageref, mCustomIconRef);
 
-        DBPolicy.ItemDataOpInterface idop = null;
         // NOTE
         // Information in "ch.dynD" is not available in case update.
         // ('imageblob' and 'action' is exception case controlled with argument.)
         // This is dynamically assigned variable.
         long updateMode = mDbp.getChannelInfoLong(mCid, ColumnChannel.UPDATEMODE);
-        if (Feed.Channel.isUpdDn(updateMode)) {
-            final long chact = action;
-            idop = new DBPolicy.ItemDataOpInterface() {
+
+        // Stage 3 : persist.
+        // Batched with other channels' update at DB writer thread.
+        final LinkedList<Feed.Item.ParD> newItems = new LinkedList<>();
+        final LinkedList<Long> newIds = new LinkedList<>();
+        checkCancel();
+        try {
+            UpdatePipeline.get().persist(mCid, new UpdatePipeline.PersistJob() {
                 @Override
-                public File
-                getFile(Feed.Item.ParD parD) throws FeederException {
-                    String url = FeedPolicy.getDynamicActionTargetUrl(
-                            chact, parD.link, parD.enclosureUrl);
-                    if (!Util.isValidValue(url))
-                        return null;
-                    try {
-                        File tempOut = Util.getNewTempFile();
-                        NetDownloadTask.Builder<NetDownloadTask.Builder> b
-                                = new NetDownloadTask.Builder<>(
-                                Util.createNetConn(new URL(url)),
-                                tempOut);
-                        mDnTask.set(b.create());
-                        if (isCancel())
-                            throw new InterruptedException();
-                        mDnTask.get().startSync();
-                        return tempOut;
-                    } catch (SocketException | InterruptedIOException e) {
-                        /* SocketTimeoutException extends InterruptedIOException.
-                         */
-                        throw new FeederException(Err.IO_NET);
-                    } catch (IOException e) {
-                        throw new FeederException(Err.IO_FILE);
-                    } catch (InterruptedException e) {
-                        throw new FeederException(Err.USER_CANCELLED);
-                    } catch (Exception e) {
-                        throw new RuntimeException(e);
-                    }
+                public void
+                persist() throws FeederException {
+                    long t0 = System.currentTimeMillis();
+                    Err err = mDbp.getNewItems(mCid, parD.items, newItems);
+                    // Cancelled while finding new items. Nothing is written yet.
+                    if (Err.NO_ERR != err)
+                        throw new FeederException(err);
+                    long t1 = System.currentTimeMillis();
+                    mDbp.updateChannel(mCid, parD.channel, newItems, newIds);
+                    long t2 = System.currentTimeMillis();
+                    run.add(UpdateTelemetry.Stage.DEDUPE, t1 - t0);
+                    run.add(UpdateTelemetry.Stage.INSERT, t2 - t1);
+                    run.nrNew = newIds.size();
+                    run.result = Err.NO_ERR.name();
+                    // Result of successful update is written with new items, in same transaction.
+                    mDbp.onUpdateSucceeded(mCid);
+                    // Used to estimate cost of scheduled update. See UpdatePlanner.
+                    mDbp.recordUpdateLatency(mCid, t2 - run.startTime);
+                    UpdateTelemetry.record(run);
+                    mRecorded.set(true);
                 }
-            };
+            });
+        } catch (RuntimeException e) {
+            // Job may be done, and then transaction fails. Then nothing is written.
+            mRecorded.set(false);
+            throw e;
         }
-        checkCancel();
-        mDbp.updateChannel(mCid, parD.channel, newItems, idop);
+
+        if (Feed.Channel.isUpdDn(updateMode)
+            && !newIds.isEmpty())
+            startAutoDownloads(action, newItems, newIds);
         return Err.NO_ERR;
     }
 
+    /**
+     * Write result of failed run at DB writer thread.
+     * Successful run is written by it's persist job. See doAsyncTaskInternal().
+     */
+    private void
+    recordFailure(@NonNull final UpdateTelemetry.Run run) {
+        final Err err = mErr;
+        UpdatePipeline.get().record(mCid, new UpdatePipeline.PersistJob() {
+            @Override
+            public void
+            persist() {
+                // Persist job may be committed after this task is interrupted.
+                // Job of persist stage is always run before this job.
+                if (mRecorded.get())
+                    return;
+                mDbp.onUpdateFailed(mCid, err);
+                UpdateTelemetry.record(run);
+                mRecorded.set(true);
+            }
+        });
+    }
+
     @Override
     protected Err
     doAsync() throws Exception {
+        UpdateTelemetry.Run run = new UpdateTelemetry.Run(mCid);
+        boolean done = false;
         try {
-            return doAsyncTaskInternal();
+            Err r = doAsyncTaskInternal(run);
+            done = true;
+            return r;
         } catch (InterruptedException e) {
             mErr = Err.INTERRUPTED;
             throw e;
         } catch (FeederException e) {
             mErr = e.getError();
             throw e;
+        } catch (RuntimeException e) {
+            // Unexpected failure at parser or DB. (ex. SQLiteException thrown while persisting)
+            // This is also regarded as failure of update. So, failure count of the channel is
+            //   increased and scheduled update may be suspended.
+            mErr = e instanceof SQLiteException? Err.DB_UNKNOWN: Err.UNKNOWN;
+            throw e;
+        } finally {
+            releaseHostTicket();
+            if (!done) {
+                run.result = mErr.name();
+                // Parser and DB loops are interrupted at their cancellation points.
+                // See FeedParser#checkInterrupted and DBPolicy#setJobCancelFlag.
+                if (Err.INTERRUPTED == mErr && mCancelTime > 0) {
+                    run.cancelLatency = System.currentTimeMillis() - mCancelTime;
+                    if (DBG) P.v("Cancellation latency(" + mCid + ") : " + run.cancelLatency + " ms");
+                }
+                recordFailure(run);
+            }
         }
     }
 
@@ -248,4 +344,12 @@ public class UpdateTask extends TmTask<Err> {
     getChannelId() {
         return mCid;
     }
+
+    /**
+     * Called by RTTask when slot of channel's host is assigned to this task.
+     */
+    public void
+    setHostTicket(@Nullable HostGate.Ticket tk) {
+        mHostTicket = tk;
+    }
 }